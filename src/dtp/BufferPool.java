@@ -0,0 +1,101 @@
+package dtp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of direct buffers that datagrams are received into.
+ * Each listening socket owns a pool, which it shares with the sockets it accept()s.
+ * The buffers are kept in their Datagram, so receiving a datagram allocates
+ * neither a buffer nor the holder of its address and header. A datagram goes
+ * back to the pool once the socket has consumed it.
+ * 
+ * A hit is a buffer taken from the pool, a miss is a buffer that had to be
+ * allocated because the pool was empty. Lots of misses means the pool is too small.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int capacity;
+    private final BlockingQueue<Datagram> buffers;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    /**
+     * @param bufferSize the size of each buffer in bytes
+     * @param capacity the maximum number of buffers kept in the pool
+     */
+    BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.buffers = new ArrayBlockingQueue<>(capacity);
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    /**
+     * @return a datagram with a cleared buffer from the pool, or a new one if
+     * the pool is empty.
+     */
+    Datagram acquire() {
+        Datagram datagram = buffers.poll();
+        if (datagram == null) {
+            misses.increment();
+            return new Datagram(ByteBuffer.allocateDirect(bufferSize), this);
+        }
+        hits.increment();
+        datagram.getBuffer().clear();
+        return datagram;
+    }
+
+    /**
+     * Gives a datagram back to the pool. It is dropped if the pool is full.
+     * @param datagram a datagram from acquire() that is no longer used
+     */
+    void release(Datagram datagram) {
+        buffers.offer(datagram);
+    }
+
+    /**
+     * @return the number of buffers that were taken from the pool.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of buffers that were allocated because the pool was empty.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of buffers waiting in the pool.
+     */
+    public int getAvailable() {
+        return buffers.size();
+    }
+
+    /**
+     * @return the maximum number of buffers kept in the pool.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the size of each buffer in bytes.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + " misses=" + getMisses()
+                + " available=" + getAvailable() + "/" + capacity;
+    }
+}
@@ -0,0 +1,120 @@
+package dtp;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Checksum algorithms of DTP packets, see README for details.
+ *
+ * The internet checksum is the ones' complement of the ones' complement sum of
+ * the pseudo-header and the packet, summed 64 bits at a time and folded down to
+ * 16 bits. The CRC32C checksum is used when both endpoints agree on it during
+ * connection establishment. It is folded down to 16 bits and mixed with the
+ * pseudo-header sum, and packets carrying it have the CRC flag set.
+ *
+ * Both work on the packet in place, from index 0 up to the length of the packet.
+ */
+final class Checksum {
+
+    private final static int CHECKSUM_INDEX = 12;
+
+    // CRC32C is not thread-safe and sockets are used from several threads
+    private final static ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+
+    private Checksum() {
+    }
+
+    /**
+     * The part of the pseudo-header that only depends on the IP addresses,
+     * calculated once per connection. The packet length is added per packet.
+     * @return the ones' complement sum of the addresses, folded to 16 bits.
+     */
+    static int sumPseudoHeader(InetAddress src, InetAddress dest) {
+        long sum = 0;
+        for (byte[] address : new byte[][] {src.getAddress(), dest.getAddress()}) {
+            for (int i = 0; i < address.length; i += 2) {
+                sum += (address[i] & 0xFF) << 8 | (address[i+1] & 0xFF);
+            }
+        }
+        return fold(sum);
+    }
+
+    /**
+     * Calculates the internet checksum of a packet whose checksum field is 0.
+     */
+    static short internet(ByteBuffer packet, int length, int pseudoHeaderSum) {
+        return (short) ~sum(packet, length, pseudoHeaderSum);
+    }
+
+    /**
+     * Checks the internet checksum of a packet. The checksum field is summed
+     * with the rest of the packet, which adds up to all ones for a good packet.
+     */
+    static boolean isInternetGood(ByteBuffer packet, int length, int pseudoHeaderSum) {
+        return sum(packet, length, pseudoHeaderSum) == 0xFFFF;
+    }
+
+    /**
+     * Calculates the CRC32C checksum of a packet, skipping its checksum field.
+     * The position and limit of the buffer are restored to 0 and length.
+     */
+    static short crc32c(ByteBuffer packet, int length, int pseudoHeaderSum) {
+        CRC32C crc = CRC.get();
+        crc.reset();
+        packet.limit(CHECKSUM_INDEX).position(0);
+        crc.update(packet);
+        packet.limit(length).position(CHECKSUM_INDEX + 2);
+        crc.update(packet);
+        packet.position(0);
+
+        int value = (int) crc.getValue();
+        return (short) ((value >>> 16) ^ value ^ pseudoHeaderSum);
+    }
+
+    /*
+     * Ones' complement sum of the pseudo-header and the packet, folded to 16 bits.
+     * Words are summed 64 bits at a time, adding carries back in, which gives
+     * the same result as summing 16-bit words.
+     */
+    private static int sum(ByteBuffer packet, int length, int pseudoHeaderSum) {
+        long sum = pseudoHeaderSum + length;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long word = packet.getLong(i);
+            sum += word;
+            if (Long.compareUnsigned(sum, word) < 0) {
+                sum++;
+            }
+        }
+        long tail = 0;
+        if (i + 4 <= length) {
+            tail += packet.getInt(i) & 0xFFFFFFFFL;
+            i += 4;
+        }
+        if (i + 2 <= length) {
+            tail += packet.getShort(i) & 0xFFFF;
+            i += 2;
+        }
+        if (i < length) {
+            // an odd byte is padded with a zero byte on the right
+            tail += (packet.get(i) & 0xFF) << 8;
+        }
+        sum += tail;
+        if (Long.compareUnsigned(sum, tail) < 0) {
+            sum++;
+        }
+        return fold(sum);
+    }
+
+    /*
+     * Folds a 64-bit ones' complement sum down to 16 bits.
+     */
+    private static int fold(long sum) {
+        long folded = (sum >>> 32) + (sum & 0xFFFFFFFFL);
+        folded = (folded >>> 32) + (folded & 0xFFFFFFFFL);
+        int result = (int) ((folded >>> 16) + (folded & 0xFFFF));
+        result = (result >>> 16) + (result & 0xFFFF);
+        return (result >>> 16) + (result & 0xFFFF);
+    }
+}
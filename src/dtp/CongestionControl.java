@@ -0,0 +1,45 @@
+package dtp;
+
+/**
+ * Congestion control algorithm used by a DTP sender.
+ * The congestion window is counted in chunks (packets), the same unit as the
+ * receiver's advertised window. The sender never has more than
+ * min(congestion window, advertised window) chunks in flight.
+ */
+public interface CongestionControl {
+
+    /**
+     * @return the congestion window, in chunks. Always at least 1.
+     */
+    int getWindow();
+
+    /**
+     * @return true while the window grows by the number of chunks ACKed, that
+     * is, it doubles every round trip. The sender paces its chunks faster then.
+     */
+    boolean isSlowStart();
+
+    /**
+     * Called when chunks that were in flight get ACKed for the first time.
+     * @param numAcked the number of chunks newly ACKed
+     * @param srttNanos the connection's smoothed round-trip time, 0 if unknown
+     */
+    void onAck(int numAcked, long srttNanos);
+
+    /**
+     * Called once per loss event when 3 duplicate ACKs trigger a fast retransmit.
+     */
+    void onFastRetransmit();
+
+    /**
+     * Called once per loss event when a retransmission timer expires.
+     */
+    void onTimeout();
+
+    /**
+     * Creates a new instance of the same algorithm with a fresh state.
+     * Used to give every accept()ed socket its own congestion window.
+     * @return a congestion control in its initial state.
+     */
+    CongestionControl create();
+}
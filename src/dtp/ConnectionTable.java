@@ -0,0 +1,174 @@
+package dtp;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Random;
+
+/**
+ * The accept()ed sockets of a listening DTPSocket, keyed by the address and
+ * port of their client.
+ *
+ * An open addressing hash table with linear probing over primitive long keys,
+ * the IPv4 address and the port of the client packed together, so looking up
+ * the socket of a received packet allocates nothing. Removed entries are
+ * filled by shifting the rest of their probe sequence back, so no tombstones
+ * are left behind. Only sockets that aren't closed are kept, so the size of the
+ * table is the number of live connections.
+ *
+ * The table also counts the sockets on each server port, so a socket can be
+ * given a port no live socket uses.
+ */
+final class ConnectionTable {
+
+    private final static int INITIAL_CAPACITY = 64;
+    private final static long EMPTY = 0;   // ports start at 1, so no key is 0
+    private final static int MAX_PORT = 31999;
+    private final static int RANDOM_TRIES = 16;
+
+    private long[] keys;
+    private DTPSocket[] sockets;
+    private int mask;
+    private int size;
+    private final int[] portUses = new int[MAX_PORT + 1];   // the live sockets on each server port
+
+    ConnectionTable() {
+        this.keys = new long[INITIAL_CAPACITY];
+        this.sockets = new DTPSocket[INITIAL_CAPACITY];
+        this.mask = INITIAL_CAPACITY - 1;
+    }
+
+    /**
+     * Packs the address and port of a client into a key. The hash code of an
+     * IPv4 address is the address itself. Other addresses are hashed into the
+     * key, so their sockets are checked against the client on get().
+     */
+    static long key(InetAddress address, int port) {
+        return (address.hashCode() & 0xFFFFFFFFL) << 16 | (port & 0xFFFF);
+    }
+
+    /**
+     * @return the socket of the client, or null if there is none.
+     */
+    synchronized DTPSocket get(InetAddress address, int port) {
+        long key = key(address, port);
+        for (int i = index(key); keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                DTPSocket socky = sockets[i];
+                if (address instanceof Inet4Address || socky.isConnectedTo(address, port)) {
+                    return socky;
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the socket of a client, replacing the socket it had before.
+     */
+    synchronized void put(InetAddress address, int port, DTPSocket socky) {
+        long key = key(address, port);
+        int i = index(key);
+        for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                portUses[sockets[i].getSrcPort()]--;
+                portUses[socky.getSrcPort()]++;
+                sockets[i] = socky;
+                return;
+            }
+        }
+        keys[i] = key;
+        sockets[i] = socky;
+        portUses[socky.getSrcPort()]++;
+        size++;
+        // at most half full, so probe sequences stay short
+        if (size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+    }
+
+    /**
+     * Removes the socket of a client, unless the client has a newer socket.
+     * @return true if the socket was removed.
+     */
+    synchronized boolean remove(InetAddress address, int port, DTPSocket socky) {
+        long key = key(address, port);
+        int i = index(key);
+        for (; keys[i] != key; i = (i + 1) & mask) {
+            if (keys[i] == EMPTY) return false;
+        }
+        if (sockets[i] != socky) return false;
+        portUses[socky.getSrcPort()]--;
+
+        // moves back the entries after i that would no longer be found
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = index(keys[j]);
+            // entry j can fill the hole if its home isn't cyclically in (hole, j]
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                sockets[hole] = sockets[j];
+                hole = j;
+            }
+        }
+        keys[hole] = EMPTY;
+        sockets[hole] = null;
+        size--;
+        return true;
+    }
+
+    /**
+     * @return the number of live connections.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return true if a live socket uses the server port.
+     */
+    synchronized boolean isPortUsed(int port) {
+        return portUses[port] > 0;
+    }
+
+    /**
+     * Picks a random server port that no live socket uses.
+     * @param reserved a port that must not be picked, the one of serverSocket
+     * @return the port, or -1 if every port is taken.
+     */
+    synchronized int freePort(Random random, int reserved) {
+        for (int i = 0; i < RANDOM_TRIES; i++) {
+            int port = random.nextInt(MAX_PORT) + 1;
+            if (port != reserved && portUses[port] == 0) return port;
+        }
+        // the table is nearly full, looking through every port from a random one
+        int start = random.nextInt(MAX_PORT);
+        for (int i = 0; i < MAX_PORT; i++) {
+            int port = (start + i) % MAX_PORT + 1;
+            if (port != reserved && portUses[port] == 0) return port;
+        }
+        return -1;
+    }
+
+    private int index(long key) {
+        // the low bits of the address and port are the busy ones, mixed so
+        // clients on neighbouring ports spread out
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        DTPSocket[] oldSockets = sockets;
+        keys = new long[capacity];
+        sockets = new DTPSocket[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY) continue;
+            int j = index(oldKeys[i]);
+            while (keys[j] != EMPTY) j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            sockets[j] = oldSockets[i];
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package dtp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CUBIC congestion control (RFC 8312).
+ * After a loss, the window grows along a cubic function of the time since the
+ * loss, centered on the window where the loss happened. This recovers faster
+ * than NewReno on paths with a large bandwidth-delay product and shares a
+ * bottleneck more fairly between connections with different round-trip times.
+ */
+public class CubicCongestionControl implements CongestionControl {
+
+    public final static int INITIAL_WINDOW = 10;
+    public final static int MIN_THRESHOLD = 2;
+
+    private final static double C = 0.4;
+    private final static double BETA = 0.7;
+
+    private double cwnd;
+    private double ssthresh;
+    private double wMax;            // window right before the last reduction
+    private double k;               // seconds it takes to grow back to wMax
+    private long epochStart;        // nanoTime of the first ACK after the last reduction
+    private double wEst;            // window NewReno would have, for the TCP-friendly region
+
+    public CubicCongestionControl() {
+        this.cwnd = INITIAL_WINDOW;
+        this.ssthresh = Double.MAX_VALUE;
+    }
+
+    @Override
+    public synchronized int getWindow() {
+        return Math.max(1, (int) cwnd);
+    }
+
+    @Override
+    public synchronized boolean isSlowStart() {
+        return cwnd < ssthresh;
+    }
+
+    @Override
+    public synchronized void onAck(int numAcked, long srttNanos) {
+        if (cwnd < ssthresh) {
+            cwnd = Math.min(cwnd + numAcked, Math.max(ssthresh, cwnd));
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (epochStart == 0) {
+            epochStart = now;
+            if (cwnd < wMax) {
+                k = Math.cbrt((wMax - cwnd) / C);
+            } else {
+                k = 0;
+                wMax = cwnd;
+            }
+            wEst = cwnd;
+        }
+
+        double rtt = srttNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        double t = (now - epochStart) / (double) TimeUnit.SECONDS.toNanos(1) + rtt;
+        double target = C * Math.pow(t - k, 3) + wMax;
+
+        for (int i = 0; i < numAcked; i++) {
+            if (target > cwnd) {
+                cwnd += (target - cwnd) / cwnd;
+            } else {
+                cwnd += 0.01 / cwnd;
+            }
+            // TCP-friendly region, never grow slower than NewReno would
+            wEst += 3 * (1 - BETA) / (1 + BETA) / cwnd;
+        }
+        if (wEst > cwnd) {
+            cwnd = wEst;
+        }
+    }
+
+    @Override
+    public synchronized void onFastRetransmit() {
+        reduce();
+    }
+
+    @Override
+    public synchronized void onTimeout() {
+        reduce();
+        cwnd = 1;
+    }
+
+    /*
+     * Multiplicative decrease, with fast convergence so that a connection
+     * that keeps losing packets below its last maximum releases bandwidth.
+     */
+    private void reduce() {
+        epochStart = 0;
+        if (cwnd < wMax) {
+            wMax = cwnd * (1 + BETA) / 2;
+        } else {
+            wMax = cwnd;
+        }
+        cwnd = Math.max(cwnd * BETA, MIN_THRESHOLD);
+        ssthresh = cwnd;
+    }
+
+    @Override
+    public CongestionControl create() {
+        return new CubicCongestionControl();
+    }
+
+    @Override
+    public String toString() {
+        return "cubic";
+    }
+}
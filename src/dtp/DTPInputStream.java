@@ -0,0 +1,143 @@
+package dtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * InputStream that reads from a connected DTPSocket.
+ *
+ * A receiver thread receives messages into reassembly buffers while the
+ * application reads from the previous one, so the other endpoint can send the
+ * next message without waiting for the application. Reads return whatever is
+ * available, up to the requested length.
+ *
+ * Use with a DTPOutputStream on the other endpoint, messages must not be larger
+ * than DTPOutputStream.MESSAGE_SIZE. When the length of the stream is given, the
+ * receiver thread stops after that many bytes so the socket can be used for
+ * other messages afterwards. Otherwise the stream ends when the connection closes.
+ */
+public class DTPInputStream extends InputStream {
+
+    private final static int NUM_BUFFERS = 2;
+    private final static ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final DTPSocket socket;
+    private final long length;
+    private final BlockingQueue<ByteBuffer> filled;
+    private final BlockingQueue<ByteBuffer> free;
+    private final Thread receiver;
+    private ByteBuffer current;
+    private boolean isEnd;
+    private volatile IOException error;
+
+    /**
+     * Creates a stream that reads from the socket until the connection closes.
+     * @param socket a connected DTPSocket
+     */
+    public DTPInputStream(DTPSocket socket) {
+        this(socket, -1);
+    }
+
+    /**
+     * Creates a stream that reads exactly length bytes from the socket.
+     * @param socket a connected DTPSocket
+     * @param length the number of bytes in the stream
+     */
+    public DTPInputStream(DTPSocket socket, long length) {
+        this.socket = socket;
+        this.length = length;
+        this.filled = new ArrayBlockingQueue<>(NUM_BUFFERS + 1);
+        this.free = new ArrayBlockingQueue<>(NUM_BUFFERS);
+        for (int i = 0; i < NUM_BUFFERS; i++) {
+            free.add(ByteBuffer.allocateDirect(DTPOutputStream.MESSAGE_SIZE));
+        }
+
+        this.receiver = new Thread() {
+            public void run() {
+                receiveLoop();
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    /**
+     * Reads up to len bytes, blocking only if no bytes are available.
+     * @return the number of bytes read, or -1 at the end of the stream.
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) return 0;
+        while (current == null || !current.hasRemaining()) {
+            if (current != null) {
+                free.offer(current);
+                current = null;
+            }
+            if (isEnd) return -1;
+            try {
+                ByteBuffer next = filled.take();
+                if (next == END) {
+                    isEnd = true;
+                    if (error != null) throw new IOException(error.getMessage(), error);
+                    return -1;
+                }
+                current = next;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(e.getMessage());
+            }
+        }
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.remaining();
+    }
+
+    /**
+     * Stops the receiver thread. A message still being received is abandoned.
+     */
+    @Override
+    public void close() {
+        isEnd = true;
+        receiver.interrupt();
+    }
+
+    /*
+     * Receives messages into free buffers until the length of the stream
+     * is reached or the connection closes.
+     */
+    private void receiveLoop() {
+        long received = 0;
+        try {
+            while (length < 0 || received < length) {
+                ByteBuffer buffer = free.take();
+                buffer.clear();
+                int n = socket.recv(buffer);
+                if (n == 0) break;
+                buffer.flip();
+                filled.put(buffer);
+                received += n;
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException(e.getMessage());
+        }
+        filled.offer(END);
+    }
+}
@@ -0,0 +1,700 @@
+package dtp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Runs many independent streams over one connected DTPSocket.
+ *
+ * Every stream has its own id, its own byte offsets and its own flow control
+ * credit, while all of them share the connection's handshake, congestion window,
+ * round trip estimate and pacer. Stream packets carry the STR flag, and the
+ * socket hands them to the multiplexer as they arrive instead of queueing them
+ * for recv(). Each stream puts its own bytes in order by their offsets, so a lost
+ * packet only holds back the stream it belongs to.
+ *
+ * Both endpoints send whenever the congestion window and the credit of a stream
+ * allow, there are no turns. A stream with bytes to send gets one packet at a
+ * time round robin, so a short control message never waits behind the bytes of a
+ * big file.
+ *
+ * Stream packets are numbered in the sequence number field, one number space per
+ * direction. A frame that is lost is sent again in a packet with a new number,
+ * so every ACK gives a clean round trip sample. ACKs carry, in the ACK number,
+ * the number up to which every packet arrived, and SACK blocks of the packets
+ * received after a hole. Every second packet is ACKed, any other after a delay,
+ * and ACKs ride on the packets sent anyway. A packet is lost once a packet sent
+ * REORDER_THRESHOLD packets after it is ACKed, or when the retransmission timer
+ * expires. Pure ACKs have the number 0 and are never ACKed themselves.
+ *
+ * A packet carries one frame, told apart by its option:
+ * DATA: the STREAM option, with the id of the stream (32 bits), the offset of
+ *       the bytes in the stream (64 bits) and flags (8 bits). The payload is the
+ *       bytes. The FIN flag ends the stream.
+ * WINDOW: the WINDOW option, with the id of the stream (32 bits) and the offset
+ *       up to which the other endpoint may send on the stream (64 bits).
+ *
+ * Streams opened by the client have odd ids, streams opened by the server even
+ * ones. A stream is opened by its first frame and forgotten once both endpoints
+ * got the other's FIN. All the state is guarded by the lock of the multiplexer.
+ * Packets are handled on the reactor thread, which also runs the timers.
+ */
+public class DTPMultiplexer {
+
+    /** Most streams an endpoint can have open at once. */
+    public final static int MAX_STREAMS = 64;
+    // bytes a stream buffers for the application in each direction
+    final static int STREAM_WINDOW = 1024 * 1024;
+    // packets whose fate is tracked in each direction, a power of 2
+    private final static int MAX_TRACKED = 8192;
+    private final static int MAX_IN_FLIGHT = MAX_TRACKED / 2;
+    // packets ACKed after a packet before it is lost
+    private final static int REORDER_THRESHOLD = 3;
+    private final static int ACK_EVERY = 2;
+    private final static int MAX_SACK_BLOCKS = 4;
+
+    private final static byte FRAME_DATA = 0;
+    private final static byte FRAME_WINDOW = 1;
+    private final static byte FLAG_FIN = 1;
+    private final static int STREAM_OPTION_LENGTH = 13;
+    private final static int WINDOW_OPTION_LENGTH = 12;
+
+    private final DTPSocket socket;
+    private final boolean isClient;
+    private final Reactor reactor;
+    private final RttEstimator rtt;
+    private final CongestionControl congestionControl;
+    private final int mss;
+    private final Map<Integer, DTPStream> streams;    // open streams by id
+    private final List<DTPStream> turns;              // open streams in round robin order
+    private final Queue<DTPStream> acceptQueue;       // streams the other endpoint opened
+    private final ByteBuffer sendBuffer;
+    private final Packet sendPacket;
+    private final Packet receivedPacket;
+    private final TimerWheel.Timer ackTimer;
+    private final TimerWheel.Timer retransmitTimer;
+    private final TimerWheel.Timer pacingTimer;
+    private int nextStreamId;
+    private int highestPeerStreamId;
+    private int numLocalStreams;
+    private int nextTurn;
+    private boolean isClosed;
+    private boolean isPeerClosed;       // the connection got the FIN of the other endpoint
+    private boolean isFinAnswered;
+    private IOException error;
+
+    // sending, sent[n % MAX_TRACKED] is packet n while it is tracked
+    private final SentPacket[] sent;
+    private int nextPacket = 1;
+    private int oldestInFlight = 1;     // no packet before it is in flight
+    private int largestAcked;
+    private int numInFlight;
+    private int recoveryPoint;          // losses up to here were answered already
+
+    // receiving, isReceived[n % MAX_TRACKED] for the packets after cumulativeReceived
+    private final boolean[] isReceived;
+    private int cumulativeReceived;     // every packet up to here arrived
+    private int largestReceived;
+    private int numUnacked;             // packets received since the last ACK
+
+    /**
+     * Starts multiplexing streams over the socket. Both endpoints of the
+     * connection must create a multiplexer, and the socket must not be used
+     * directly afterwards. Stream packets that arrive before the multiplexer of
+     * this endpoint exists are dropped and sent again.
+     * @param socket a connected DTPSocket
+     * @param isClient true on the endpoint that connect()ed
+     */
+    public DTPMultiplexer(DTPSocket socket, boolean isClient) {
+        this.socket = socket;
+        this.isClient = isClient;
+        try {
+            // a connected socket already started the reactor
+            this.reactor = Reactor.get();
+        } catch (IOException e) {
+            throw new IllegalStateException("Socket is not connected!", e);
+        }
+        this.rtt = socket.getRtt();
+        this.congestionControl = socket.getCongestionControl();
+        this.mss = socket.getMss();
+        this.streams = new HashMap<>();
+        this.turns = new ArrayList<>();
+        this.acceptQueue = new ArrayDeque<>();
+        this.sendBuffer = ByteBuffer.allocateDirect(Packet.MAX_HEADER_SIZE + mss);
+        this.sendPacket = new Packet(sendBuffer);
+        this.receivedPacket = new Packet(sendBuffer);   // a view over each datagram, see received()
+        this.ackTimer = new TimerWheel.Timer(this::ackTimerExpired);
+        this.retransmitTimer = new TimerWheel.Timer(this::retransmitTimerExpired);
+        this.pacingTimer = new TimerWheel.Timer(this::pacingTimerExpired);
+        this.sent = new SentPacket[MAX_TRACKED];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = new SentPacket();
+        }
+        this.isReceived = new boolean[MAX_TRACKED];
+        this.nextStreamId = isClient ? 1 : 2;
+        socket.setMultiplexer(this);
+    }
+
+    /**
+     * Opens a new stream to the other endpoint, blocking while MAX_STREAMS
+     * streams opened by this endpoint are still open.
+     * @return the stream.
+     * @throws IOException if the multiplexer is closed.
+     */
+    public synchronized DTPStream openStream() throws IOException {
+        while (numLocalStreams >= MAX_STREAMS) {
+            checkOpen();
+            waitForChange();
+        }
+        checkOpen();
+        DTPStream stream = new DTPStream(this, nextStreamId);
+        nextStreamId += 2;
+        numLocalStreams++;
+        addStream(stream);
+        return stream;
+    }
+
+    /**
+     * Waits for the other endpoint to open a stream. Once the other endpoint
+     * closed the connection, answers its FIN, so the socket can be closed.
+     * @return the stream, or null once the multiplexer is closed.
+     * @throws InterruptedException
+     */
+    public DTPStream acceptStream() throws InterruptedException {
+        synchronized (this) {
+            while (acceptQueue.isEmpty() && !isClosed) {
+                wait();
+            }
+            if (!acceptQueue.isEmpty() || !isPeerClosed || isFinAnswered) {
+                return acceptQueue.poll();
+            }
+            isFinAnswered = true;
+        }
+        try {
+            // recv() takes the FIN and answers it
+            socket.recv(ByteBuffer.allocate(1));
+        } catch (IOException e) {
+            // the connection is gone either way
+        }
+        return null;
+    }
+
+    /**
+     * Stops multiplexing. Streams still open fail. The socket stays open.
+     */
+    public synchronized void close() {
+        if (isClosed) return;
+        if (numUnacked > 0) {
+            // the other endpoint may wait on the ACK of what it sent last
+            try {
+                sendAck();
+            } catch (IOException e) {
+                // the other endpoint resends, and gets no answer either way
+            }
+        }
+        stop(null);
+    }
+
+    /**
+     * @return true once the multiplexer stopped, because it was closed, the
+     * connection was closed or an error occurred.
+     */
+    public synchronized boolean isClosed() {
+        return isClosed;
+    }
+
+    /**
+     * @return the number of streams that are open.
+     */
+    public synchronized int getStreamCount() {
+        return streams.size();
+    }
+
+
+    /*******************************************************
+     * Called by the socket on the reactor thread
+     *******************************************************/
+    /*
+     * A stream packet arrived. The datagram is released by the socket afterwards.
+     */
+    synchronized void received(Datagram msg) {
+        if (isClosed) return;
+        PacketHeader header = msg.getHeader();
+        Packet packet = receivedPacket.wrap(msg.getBuffer());
+        try {
+            if (header.ack()) {
+                ackReceived(packet, header.ackNum());
+            }
+            if (header.seqNum() != 0) {
+                packetReceived(packet, header);
+            }
+            sendPackets();
+        } catch (IOException e) {
+            stop(e);
+        }
+        notifyAll();
+    }
+
+    /*
+     * The other endpoint closed the connection, so nothing more comes.
+     */
+    synchronized void peerClosed() {
+        isPeerClosed = true;
+        stop(new IOException("Connection closed by the other endpoint!"));
+    }
+
+
+    /*******************************************************
+     * Called by the streams holding the lock
+     *******************************************************/
+    /*
+     * A stream has something new to send, or read enough to open its window.
+     */
+    void streamChanged() {
+        try {
+            sendPackets();
+        } catch (IOException e) {
+            stop(e);
+        }
+        notifyAll();
+    }
+
+    /*
+     * Throws if the multiplexer stopped.
+     */
+    void checkOpen() throws IOException {
+        if (error != null) throw new IOException(error.getMessage(), error);
+        if (isClosed) throw new IOException("Multiplexer is closed!");
+    }
+
+    /*
+     * Waits for a packet, a timer or another stream to change something.
+     */
+    void waitForChange() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+
+    /*******************************************************
+     * Receiving
+     *******************************************************/
+    /*
+     * Tracks the number of a packet that needs an ACK and hands its frame to its
+     * stream. A packet that arrived before is only ACKed again, its ACK was lost.
+     */
+    private void packetReceived(Packet packet, PacketHeader header) throws IOException {
+        int number = header.seqNum();
+        boolean isInOrder = number == largestReceived + 1;
+        if (number > largestReceived) {
+            // lost frames are sent again in new packets, so holes are never filled.
+            // The sender stopped waiting on packets MAX_IN_FLIGHT before this one.
+            int oldest = number - MAX_IN_FLIGHT;
+            for (int n = cumulativeReceived + 1; n <= Math.min(oldest, largestReceived); n++) {
+                isReceived[n & (MAX_TRACKED - 1)] = false;
+            }
+            cumulativeReceived = Math.max(cumulativeReceived, oldest);
+            largestReceived = number;
+        } else if (number <= cumulativeReceived || isReceived[number & (MAX_TRACKED - 1)]) {
+            sendAck();
+            return;
+        }
+        isReceived[number & (MAX_TRACKED - 1)] = true;
+        while (isReceived[(cumulativeReceived + 1) & (MAX_TRACKED - 1)]) {
+            cumulativeReceived++;
+            isReceived[cumulativeReceived & (MAX_TRACKED - 1)] = false;
+        }
+        frameReceived(packet, header);
+
+        // holes and what fills them are ACKed right away, so losses are found fast
+        numUnacked++;
+        if (numUnacked >= ACK_EVERY || !isInOrder) {
+            sendAck();
+        } else if (numUnacked == 1) {
+            reactor.schedule(ackTimer, socket.delayedAckNanos());
+        }
+    }
+
+    /*
+     * Frames of streams that were already forgotten, or that break the
+     * stream's window, are dropped.
+     */
+    private void frameReceived(Packet packet, PacketHeader header) {
+        ByteBuffer buffer = packet.getBuffer();
+        int index = packet.findOption(Packet.OPTION_STREAM);
+        if (index >= 0 && buffer.get(index-1) == STREAM_OPTION_LENGTH) {
+            DTPStream stream = findStream(buffer.getInt(index));
+            if (stream != null) {
+                long offset = buffer.getLong(index+4);
+                boolean isFin = (buffer.get(index+12) & FLAG_FIN) != 0;
+                stream.received(buffer, header.headerLength(), offset, header.dataLength(), isFin);
+                removeIfFinished(stream);
+            }
+            return;
+        }
+        index = packet.findOption(Packet.OPTION_WINDOW);
+        if (index >= 0 && buffer.get(index-1) == WINDOW_OPTION_LENGTH) {
+            DTPStream stream = findStream(buffer.getInt(index));
+            if (stream != null) {
+                stream.windowUpdated(buffer.getLong(index+4));
+            }
+        }
+    }
+
+    /*
+     * Finds the stream of a frame, opening it if the other endpoint just did.
+     */
+    private DTPStream findStream(int streamId) {
+        DTPStream stream = streams.get(streamId);
+        boolean isPeerStream = (streamId % 2 == 1) != isClient;
+        if (stream == null && isPeerStream && streamId > highestPeerStreamId) {
+            highestPeerStreamId = streamId;
+            stream = new DTPStream(this, streamId);
+            addStream(stream);
+            acceptQueue.add(stream);
+        }
+        return stream;
+    }
+
+    /*
+     * Sends an ACK of every packet received, with SACK blocks of the latest
+     * runs received after a hole.
+     */
+    private void sendAck() throws IOException {
+        sendPacket.clearHeader();
+        sendPacket.setAck(true);
+        sendPacket.setAckNum(cumulativeReceived);
+        int index = Packet.MIN_HEADER_SIZE + 2;
+        int number = largestReceived;
+        int numBlocks = 0;
+        while (numBlocks < MAX_SACK_BLOCKS && number > cumulativeReceived) {
+            int last = number;
+            while (number > cumulativeReceived && isReceived[number & (MAX_TRACKED - 1)]) {
+                number--;
+            }
+            sendBuffer.putInt(index, number + 1);
+            sendBuffer.putInt(index+4, last);
+            index += 8;
+            numBlocks++;
+            while (number > cumulativeReceived && !isReceived[number & (MAX_TRACKED - 1)]) {
+                number--;
+            }
+        }
+        if (numBlocks > 0) {
+            sendBuffer.put(Packet.MIN_HEADER_SIZE, Packet.OPTION_SACK);
+            sendBuffer.put(Packet.MIN_HEADER_SIZE + 1, (byte) (numBlocks * 8));
+            sendPacket.setHeaderLength((byte) index);
+        }
+        socket.sendStreamPacket(sendPacket);
+        ackSent();
+    }
+
+    private void ackSent() {
+        numUnacked = 0;
+        reactor.cancel(ackTimer);
+    }
+
+    private synchronized void ackTimerExpired() {
+        if (isClosed || numUnacked == 0) return;
+        try {
+            sendAck();
+        } catch (IOException e) {
+            stop(e);
+        }
+    }
+
+
+    /*******************************************************
+     * Sending
+     *******************************************************/
+    /*
+     * Sends frames while the congestion window and the pacer let them go:
+     * WINDOW frames first, then the streams round robin, a packet each, the
+     * frames a stream lost before its new bytes.
+     */
+    private void sendPackets() throws IOException {
+        int window = Math.min(congestionControl.getWindow(), MAX_IN_FLIGHT);
+        socket.updatePacingRate(window);
+        while (!isClosed && numInFlight < window && nextPacket - oldestInFlight < MAX_IN_FLIGHT) {
+            long delay = socket.pacingDelayNanos();
+            if (delay > 0) {
+                reactor.schedule(pacingTimer, delay);
+                return;
+            }
+            if (!sendFrame()) return;
+        }
+    }
+
+    /*
+     * Sends the next frame due, returns false if there is none.
+     */
+    private boolean sendFrame() throws IOException {
+        int numStreams = turns.size();
+        for (int i = 0; i < numStreams; i++) {
+            DTPStream stream = turns.get(i);
+            if (stream.isWindowUpdateDue()) {
+                sendWindow(stream, stream.updateWindow());
+                return true;
+            }
+        }
+        for (int i = 0; i < numStreams; i++) {
+            DTPStream stream = turns.get((nextTurn + i) % numStreams);
+            long[] frame = stream.pollRetransmission();
+            if (frame != null) {
+                nextTurn = (nextTurn + i + 1) % numStreams;
+                sendData(stream, frame[0], (int) frame[1], frame[2] != 0);
+                return true;
+            }
+            int length = Math.min(mss, stream.sendable());
+            if (length > 0 || stream.isFinDue()) {
+                nextTurn = (nextTurn + i + 1) % numStreams;
+                long offset = stream.getSentOffset();
+                boolean isFin = stream.dataSent(length);
+                sendData(stream, offset, length, isFin);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendData(DTPStream stream, long offset, int length, boolean isFin) throws IOException {
+        sendPacket.clearHeader();
+        int index = Packet.MIN_HEADER_SIZE;
+        sendBuffer.put(index, Packet.OPTION_STREAM);
+        sendBuffer.put(index+1, (byte) STREAM_OPTION_LENGTH);
+        sendBuffer.putInt(index+2, stream.getId());
+        sendBuffer.putLong(index+6, offset);
+        sendBuffer.put(index+14, isFin ? FLAG_FIN : 0);
+        index += 2 + STREAM_OPTION_LENGTH;
+        sendPacket.setHeaderLength((byte) index);
+        stream.copySent(sendBuffer, index, offset, length);
+        sendPacket.setDataLength(length);
+        sendNumbered(stream, FRAME_DATA, offset, length, isFin);
+    }
+
+    private void sendWindow(DTPStream stream, long limit) throws IOException {
+        sendPacket.clearHeader();
+        int index = Packet.MIN_HEADER_SIZE;
+        sendBuffer.put(index, Packet.OPTION_WINDOW);
+        sendBuffer.put(index+1, (byte) WINDOW_OPTION_LENGTH);
+        sendBuffer.putInt(index+2, stream.getId());
+        sendBuffer.putLong(index+6, limit);
+        sendPacket.setHeaderLength((byte) (index + 2 + WINDOW_OPTION_LENGTH));
+        sendNumbered(stream, FRAME_WINDOW, limit, 0, false);
+    }
+
+    /*
+     * Numbers the packet in the send buffer, puts the ACK of what was received
+     * on it and tracks it until it is ACKed or lost.
+     */
+    private void sendNumbered(DTPStream stream, byte type, long offset, int length, boolean isFin)
+            throws IOException {
+        int number = nextPacket++;
+        sendPacket.setSeqNum(number);
+        sendPacket.setAck(true);
+        sendPacket.setAckNum(cumulativeReceived);
+        socket.sendStreamPacket(sendPacket);
+        // an ACK without SACK blocks only stands in for a pure one without holes
+        if (numUnacked > 0 && largestReceived == cumulativeReceived) {
+            ackSent();
+        }
+
+        SentPacket packet = sent[number & (MAX_TRACKED - 1)];
+        packet.number = number;
+        packet.stream = stream;
+        packet.type = type;
+        packet.offset = offset;
+        packet.length = length;
+        packet.isFin = isFin;
+        packet.sentTime = System.nanoTime();
+        packet.isInFlight = true;
+        if (numInFlight++ == 0) {
+            reactor.schedule(retransmitTimer, rtt.getTimeoutNanos());
+        }
+    }
+
+    private synchronized void pacingTimerExpired() {
+        if (isClosed) return;
+        streamChanged();
+    }
+
+    /*
+     * Takes in the ACK number and the SACK blocks of an ACK. Packets ACKed for
+     * the first time grow the congestion window, and the newest of them gives a
+     * round trip sample.
+     */
+    private void ackReceived(Packet packet, int cumulative) {
+        if (cumulative >= nextPacket) return;
+        int numAcked = 0;
+        int newest = 0;
+        for (int number = oldestInFlight; number <= cumulative; number++) {
+            if (acked(number)) {
+                numAcked++;
+                newest = number;
+            }
+        }
+        int index = packet.findOption(Packet.OPTION_SACK);
+        if (index >= 0) {
+            ByteBuffer buffer = packet.getBuffer();
+            int end = index + (buffer.get(index-1) & 0xFF);
+            for (; index + 8 <= end; index += 8) {
+                int first = Math.max(buffer.getInt(index), oldestInFlight);
+                int last = Math.min(buffer.getInt(index+4), nextPacket - 1);
+                for (int number = first; number <= last; number++) {
+                    if (acked(number)) {
+                        numAcked++;
+                        newest = Math.max(newest, number);
+                    }
+                }
+            }
+        }
+        if (numAcked == 0) return;
+
+        if (newest > largestAcked) {
+            largestAcked = newest;
+            rtt.sample(System.nanoTime() - sent[newest & (MAX_TRACKED - 1)].sentTime);
+        }
+        congestionControl.onAck(numAcked, rtt.getSrtt());
+        detectLosses();
+        while (oldestInFlight < nextPacket && !sent[oldestInFlight & (MAX_TRACKED - 1)].isInFlight) {
+            oldestInFlight++;
+        }
+        if (numInFlight > 0) {
+            reactor.schedule(retransmitTimer, rtt.getTimeoutNanos());
+        } else {
+            reactor.cancel(retransmitTimer);
+        }
+    }
+
+    /*
+     * Returns true if the packet was in flight until now.
+     */
+    private boolean acked(int number) {
+        SentPacket packet = sent[number & (MAX_TRACKED - 1)];
+        if (packet.number != number || !packet.isInFlight) return false;
+        packet.isInFlight = false;
+        numInFlight--;
+        if (packet.type == FRAME_DATA) {
+            packet.stream.dataAcked(packet.offset, packet.length, packet.isFin);
+            removeIfFinished(packet.stream);
+        }
+        packet.stream = null;
+        return true;
+    }
+
+    /*
+     * Packets sent REORDER_THRESHOLD packets before one that was ACKed are lost.
+     * The window is reduced once per loss event, for the first packet lost
+     * after the last reduction.
+     */
+    private void detectLosses() {
+        boolean isNewLoss = false;
+        for (int number = oldestInFlight; number <= largestAcked - REORDER_THRESHOLD; number++) {
+            SentPacket packet = sent[number & (MAX_TRACKED - 1)];
+            if (packet.number == number && packet.isInFlight) {
+                lost(packet);
+                isNewLoss |= number > recoveryPoint;
+            }
+        }
+        if (isNewLoss) {
+            congestionControl.onFastRetransmit();
+            recoveryPoint = nextPacket - 1;
+        }
+    }
+
+    /*
+     * The frame of a lost packet is sent again in a new packet, a WINDOW
+     * frame with the latest limit.
+     */
+    private void lost(SentPacket packet) {
+        packet.isInFlight = false;
+        numInFlight--;
+        if (packet.type == FRAME_DATA) {
+            packet.stream.dataLost(packet.offset, packet.length, packet.isFin);
+        } else {
+            packet.stream.windowLost();
+        }
+        packet.stream = null;
+    }
+
+    /*
+     * Nothing was ACKed for a retransmission timeout, so everything in flight
+     * is lost.
+     */
+    private synchronized void retransmitTimerExpired() {
+        if (isClosed || numInFlight == 0) return;
+        for (int number = oldestInFlight; number < nextPacket; number++) {
+            SentPacket packet = sent[number & (MAX_TRACKED - 1)];
+            if (packet.isInFlight) {
+                lost(packet);
+            }
+        }
+        oldestInFlight = nextPacket;
+        recoveryPoint = nextPacket - 1;
+        congestionControl.onTimeout();
+        rtt.backoff();
+        streamChanged();
+    }
+
+
+    /*******************************************************
+     * Streams
+     *******************************************************/
+    private void addStream(DTPStream stream) {
+        streams.put(stream.getId(), stream);
+        turns.add(stream);
+        notifyAll();
+    }
+
+    /*
+     * The multiplexer forgets a stream once both endpoints got the other's FIN.
+     */
+    private void removeIfFinished(DTPStream stream) {
+        if (!stream.isFinished() || streams.remove(stream.getId()) == null) return;
+        int turn = turns.indexOf(stream);
+        turns.remove(turn);
+        if (turn < nextTurn) nextTurn--;
+        if (nextTurn >= turns.size()) nextTurn = 0;
+        if ((stream.getId() % 2 == 1) == isClient) {
+            numLocalStreams--;
+        }
+    }
+
+    /*
+     * Stops the multiplexer and lets the socket drop stream packets again.
+     */
+    private void stop(IOException e) {
+        if (isClosed) return;
+        isClosed = true;
+        error = e;
+        socket.setMultiplexer(null);
+        reactor.cancel(ackTimer);
+        reactor.cancel(retransmitTimer);
+        reactor.cancel(pacingTimer);
+        notifyAll();
+    }
+
+    /*
+     * What the sender remembers of a packet in flight.
+     */
+    private static class SentPacket {
+        int number;
+        DTPStream stream;
+        byte type;
+        long offset;        // of the bytes, or the limit of a WINDOW frame
+        int length;
+        boolean isFin;
+        long sentTime;
+        boolean isInFlight;
+    }
+}
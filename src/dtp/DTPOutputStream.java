@@ -0,0 +1,186 @@
+package dtp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * OutputStream that writes to a connected DTPSocket.
+ *
+ * Writes are copied into a ring buffer and return right away unless the ring is
+ * full. A sender thread sends whatever is in the ring as DTP messages of up to
+ * MESSAGE_SIZE bytes, so while one message is in flight the application keeps
+ * filling the ring for the next one, and small writes are sent together. The
+ * messages are pipelined: the next one goes out while the last chunks of the
+ * previous one wait for their ACKs, so the window doesn't drain between them.
+ *
+ * Use with a DTPInputStream on the other endpoint. Closing the stream flushes it
+ * but does not close the socket, which can still be used afterwards.
+ */
+public class DTPOutputStream extends OutputStream {
+
+    /** Largest message the stream sends, a DTPInputStream can receive all of it. */
+    public final static int MESSAGE_SIZE = 1024 * 1024;
+    private final static int RING_SIZE = 4 * MESSAGE_SIZE;
+
+    private final DTPSocket socket;
+    private final ByteBuffer ring;
+    private long written;       // bytes written into the ring so far
+    private long handed;        // bytes handed to the socket so far
+    private long sent;          // bytes the other endpoint received so far
+    private boolean isClosed;
+    private IOException error;
+
+    /**
+     * Creates a stream writing to the socket and starts its sender thread.
+     * @param socket a connected DTPSocket
+     */
+    public DTPOutputStream(DTPSocket socket) {
+        this.socket = socket;
+        this.ring = ByteBuffer.allocateDirect(RING_SIZE);
+
+        Thread sender = new Thread() {
+            public void run() {
+                sendLoop();
+            }
+        };
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    /**
+     * Copies the bytes into the ring buffer, blocking only while the ring is full.
+     */
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        while (len > 0) {
+            if (isClosed) throw new IOException("Stream is closed!");
+            checkError();
+            int free = RING_SIZE - (int) (written - sent);
+            if (free == 0) {
+                waitForSender();
+                continue;
+            }
+            int n = Math.min(len, free);
+            int index = (int) (written % RING_SIZE);
+            int first = Math.min(n, RING_SIZE - index);
+            ring.put(index, b, off, first);
+            ring.put(0, b, off + first, n - first);
+            written += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until everything written so far has been sent and acknowledged.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        while (sent < written) {
+            checkError();
+            waitForSender();
+        }
+        checkError();
+    }
+
+    /**
+     * Flushes the stream and stops its sender thread. The socket stays open.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (isClosed) return;
+        }
+        try {
+            flush();
+        } finally {
+            synchronized (this) {
+                isClosed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Sends the ring buffer contents as messages until the stream is closed.
+     */
+    private void sendLoop() {
+        DTPSocket.Pipeline pipeline = new DTPSocket.Pipeline() {
+            public ByteBuffer[] next() {
+                return nextMessage();
+            }
+
+            public void delivered(int size) {
+                messageDelivered(size);
+            }
+        };
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (handed == written && !isClosed && error == null) {
+                        wait();
+                    }
+                    if (handed == written) return;
+                }
+                if (socket.send(pipeline) < 0) {
+                    throw new IOException("Connection closed by the other endpoint!");
+                }
+            }
+        } catch (IOException e) {
+            setError(e);
+        } catch (InterruptedException e) {
+            setError(new InterruptedIOException(e.getMessage()));
+        }
+    }
+
+    /*
+     * Hands the socket the bytes written but not yet handed as the next message.
+     * A message that wraps around the end of the ring is sent with a gathering send.
+     */
+    private synchronized ByteBuffer[] nextMessage() {
+        if (handed == written) return null;
+        int length = (int) Math.min(written - handed, MESSAGE_SIZE);
+        int index = (int) (handed % RING_SIZE);
+        int first = Math.min(length, RING_SIZE - index);
+        handed += length;
+        if (first == length) {
+            return new ByteBuffer[] {ring.slice(index, length)};
+        }
+        return new ByteBuffer[] {ring.slice(index, first), ring.slice(0, length - first)};
+    }
+
+    /*
+     * Frees the ring space of a message the other endpoint received.
+     */
+    private synchronized void messageDelivered(int size) {
+        sent += size;
+        notifyAll();
+    }
+
+    private synchronized void setError(IOException e) {
+        error = e;
+        notifyAll();
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) throw new IOException(error.getMessage(), error);
+    }
+
+    private void waitForSender() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+}
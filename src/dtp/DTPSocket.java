@@ -2,20 +2,19 @@ package dtp;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -34,9 +33,16 @@ public class DTPSocket {
     private final static int TIMEOUT = 1000;
     private final static int MAX_RETRY = 21;
     private final static TimeUnit TIME_UNIT = TimeUnit.MILLISECONDS;
+    private final static int POOL_BYTES = 4 * 1024 * 1024;
+    private final static int MIN_POOL_BUFFERS = 64;
+    // datagrams received per readiness event, so one busy channel can't starve the others
+    private final static int MAX_RECEIVE_BATCH = 64;
+    // how many retransmission timeouts a closed connection stays in TIMED_WAIT
+    private final static int TIMED_WAIT_RTOS = 3;
+    private final static int DEFAULT_BACKLOG = 128;
 
-    private DatagramSocket socket;
-    private SocketState state;
+    private DatagramChannel channel;
+    private volatile SocketState state;     // also read by the reactor thread
 
     private InetAddress srcIp;
     private short srcPort;
@@ -50,15 +56,66 @@ public class DTPSocket {
     private int seqNum;
     private int ackNum;
 
-    private short maxWindowSize;
+    private volatile short maxWindowSize;
+    private volatile boolean autoWindow;    // whether recv() tunes the window, see WindowTuner
+    private WindowTuner windowTuner;
+    private ReceiveBudget receiveBudget;    // shared with accept()ed and sibling sockets
+    private int reservedWindow;             // the window reserved in the budget while live
+    private int mss;
+    private short peerWindowSize = 1;
+    private boolean lengthInData = true;
+    private byte[] ticket;          // resumption ticket to present on connect()
+    private RttEstimator rtt;
+    private CongestionControl congestionControl;
+    private TokenBucket pacer;          // spreads the chunks of a window over the round trip
+    private volatile long maxRate;      // bytes per second of one connection, 0 for no limit
+    private TokenBucket totalRate;      // shared with accept()ed and sibling sockets
+    private volatile boolean fec;       // whether parity packets cover the chunks sent
+    private XorParity parity;           // computes the parities of the groups sent
+    // chunks sent and lost, halved as they grow so the loss rate follows recent losses
+    private double chunksSent;
+    private double chunksLost;
+    // when send() last reduced the congestion window, chunks sent before it
+    // don't reduce it again
+    private long lastReduction = Long.MIN_VALUE;
 
     // for server usage only
     private BlockingQueue<DTPSocket> requestQueue;
-    private ConcurrentMap<InetSocketAddress, DTPSocket> connectedMap;
+    private ConnectionTable connections;
     private String challenge;
-
-    private BlockingQueue<DatagramPacket> packets;
+    private SynCookies cookies;
+    private SessionTickets tickets;
+    private volatile int backlog = DEFAULT_BACKLOG;
+    // only written by the reactor thread
+    private volatile long droppedRequests;
+    private volatile long failedChallenges;
+    private volatile long droppedPackets;
+    private volatile Packet synAckPacket;   // the SYN-ACK that established an accept()ed socket
+
+    private ReceiveRing packets;
+    private Datagram lastReceived;
+    // datagrams of the next message that arrived while recv() still missed chunks
+    // of its own, and how many of them the running recv() takes first, see stash()
+    private ArrayDeque<Datagram> stashed;
+    private int numReplayed;
+    private volatile BufferPool bufferPool;    // replaced when serverSocket changes its MSS
     private boolean isInHegemony;
+    private DTPSocket listener;         // the serverSocket of an accept()ed socket
+    private TimerWheel.Timer timedWaitTimer;
+    private TimerWheel.Timer receiveTimer;  // ends the waits of recv(), see ReceiveRing.take()
+    private volatile long receiveDeadline;
+    private volatile DTPMultiplexer multiplexer;   // takes the stream packets, see deliver()
+
+    // reused buffers and packet views, so the data path creates no garbage
+    private ByteBuffer sendBuffer;
+    private Packet sendPacket;
+    private ByteBuffer ackBuffer;
+    private Packet ackPacket;
+    private Packet readPacket;          // for the thread calling send() and recv()
+    private Packet listenerPacket;      // for the listening thread
+    private boolean crc32c;         // whether CRC32C is offered
+    private boolean useCrc32c;      // whether both endpoints agreed on CRC32C
+    private int pseudoHeaderSum;
 
     /**
      * Creates a DTPSocket binded to srcPort and interfacing with netEmuIp:netEmuPort.
@@ -69,30 +126,58 @@ public class DTPSocket {
      * @throws IOException
      */
     public DTPSocket(int srcPort, InetAddress netEmuIp, int netEmuPort) throws IOException {
+        this(null, null, srcPort, netEmuIp, netEmuPort);
+    }
+
+    /*
+     * Creates the socket on top of a DatagramChannel. A new channel binded to
+     * srcPort is opened if channel is null, and the local host is looked up
+     * if srcIp is null.
+     */
+    private DTPSocket(DatagramChannel channel, InetAddress srcIp, int srcPort,
+            InetAddress netEmuIp, int netEmuPort) throws IOException {
         if (!ConvertLib.isValidShort(srcPort)) throw new InvalidPortException(srcPort);
         if (!ConvertLib.isValidShort(netEmuPort)) throw new InvalidPortException(netEmuPort);
 
-        this.srcIp = Inet4Address.getLocalHost();
+        this.srcIp = srcIp != null ? srcIp : Inet4Address.getLocalHost();
         this.srcPort = (short)srcPort;
         this.destIp = netEmuIp;
         this.netEmuPort = (short)netEmuPort;
 
-        this.packets = new LinkedBlockingQueue<>();
-        this.socket = new DatagramSocket(new InetSocketAddress(srcPort));
+        if (channel == null) {
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(srcPort));
+        }
+        this.channel = channel;
         this.randy = new Random();
         this.seqNum = randy.nextInt(Integer.MAX_VALUE - 1) + 1;
-        this.maxWindowSize = 1;     // default value is 1 (STOP AND WAIT)
+        this.maxWindowSize = WindowTuner.INITIAL_WINDOW;
+        this.autoWindow = true;
+        this.windowTuner = new WindowTuner();
+        this.receiveBudget = new ReceiveBudget();
+        this.packets = new ReceiveRing(maxWindowSize);
+        this.mss = Packet.MAX_PACKET_DATA_SIZE;
+        this.rtt = new RttEstimator();
+        this.congestionControl = new RenoCongestionControl();
+        this.pacer = new TokenBucket();
+        this.totalRate = new TokenBucket();
+        this.readPacket = new Packet();
+        this.listenerPacket = new Packet();
+        this.stashed = new ArrayDeque<>();
+        this.pseudoHeaderSum = Checksum.sumPseudoHeader(this.srcIp, destIp);
+        this.timedWaitTimer = new TimerWheel.Timer(this::timedWaitExpired);
+        this.receiveTimer = new TimerWheel.Timer(this::receiveTimerExpired);
 
         this.setState(SocketState.CLOSED);
     }
 
     /*
      * Overloaded constructor used for the server to created accept()ed clients.
+     * Package-private for the tests of the ConnectionTable.
      */
-    private DTPSocket(DatagramSocket socky, int srcPort,
+    DTPSocket(DatagramChannel channel, InetAddress srcIp, int srcPort,
             InetAddress destIp, int destPort, int netEmuPort) throws IOException {
-        this(srcPort, destIp, netEmuPort);
-        this.socket = socky;
+        this(channel, srcIp, srcPort, destIp, netEmuPort);
         this.destPort = (short) destPort;
         this.destAddr = new InetSocketAddress(this.destIp, this.netEmuPort);
         this.isInHegemony = true;
@@ -101,6 +186,7 @@ public class DTPSocket {
     /**
      * Adjusts the receiving window size for the socket. windowSize
      * is valued in "chunks" of packet size determined in PAcket.java.
+     * Setting the window turns off autotuning, see autoWindow().
      * Note in serverSocket, sockets returned by accept() will inherit the window
      * size of serverSocket. accept()ed socket window sizes can be configured
      * independently of its serverSocket.
@@ -111,10 +197,276 @@ public class DTPSocket {
         if (!ConvertLib.isValidShort(windowSize)) {
             return false;
         }
-        this.maxWindowSize = (short)windowSize;
+        this.autoWindow = false;
+        setWindow(windowSize);
+        return true;
+    }
+
+    /**
+     * Chooses whether the socket tunes its receiving window to about twice the
+     * bandwidth-delay product it measures, starting from the current window.
+     * Windows grow within the memory budget, see maxReceiveMemory(). Can be
+     * changed at any time. Note in serverSocket, sockets returned by accept()
+     * will inherit the setting of serverSocket.
+     * @param autoWindow true to tune the window (the default, from 64 chunks),
+     * false to keep it as it is
+     * @return true if the setting is set correctly, false otherwise.
+     */
+    public boolean autoWindow(boolean autoWindow) {
+        this.autoWindow = autoWindow;
+        return true;
+    }
+
+    /**
+     * Caps the memory the receiving windows of the socket and its connections
+     * take together, counted as the window times the buffer a packet takes.
+     * Autotuned windows only grow within the cap, and each live socket may keep
+     * an even share of it. Windows set with window() are always granted, but
+     * count against the cap. Note in serverSocket, the cap is shared by all its
+     * accept()ed sockets, and sockets created with createSibling() share the cap
+     * of their socket. Can be changed at any time.
+     * @param bytes the most bytes, 64 MB by default
+     * @return true if the cap is set correctly, false otherwise.
+     */
+    public boolean maxReceiveMemory(long bytes) {
+        if (bytes < 1) {
+            return false;
+        }
+        receiveBudget.setLimit(bytes);
+        return true;
+    }
+
+    /*
+     * Changes the window within the memory budget once the socket is live.
+     */
+    private synchronized void setWindow(int windowSize) {
+        if (reservedWindow > 0) {
+            windowSize = receiveBudget.resize(reservedWindow, windowSize, getChunkBytes(), autoWindow);
+            reservedWindow = windowSize;
+        }
+        this.maxWindowSize = (short) windowSize;
+        this.packets.ensureCapacity(windowSize);
+    }
+
+    /*
+     * The window of a socket counts against the memory budget from when it is
+     * established until it is closed.
+     */
+    private synchronized void reserveWindow() {
+        if (reservedWindow == 0) {
+            reservedWindow = receiveBudget.join(maxWindowSize, getChunkBytes(), autoWindow);
+            this.maxWindowSize = (short) reservedWindow;
+            this.packets.ensureCapacity(reservedWindow);
+        }
+    }
+    private synchronized void releaseWindow() {
+        if (reservedWindow > 0) {
+            receiveBudget.leave(reservedWindow, getChunkBytes());
+            reservedWindow = 0;
+        }
+    }
+
+    /*
+     * The bytes a chunk takes in the receiving buffer.
+     */
+    private int getChunkBytes() {
+        return Packet.MAX_HEADER_SIZE + mss;
+    }
+
+    /**
+     * Adjusts the maximum segment size (MSS), the largest payload the socket
+     * will send or receive in one packet. The MSS is offered during connection
+     * establishment and both endpoints use the smaller of their offers.
+     * Note in serverSocket, sockets returned by accept() will offer the MSS of
+     * serverSocket. Can only be changed before the connection is established.
+     * @param mss 1 - 65,252 bytes, 1,000 by default
+     * @return true if mss is set correctly, false otherwise.
+     */
+    public boolean mss(int mss) {
+        if (mss < 1 || mss > Packet.MAX_MSS) {
+            return false;
+        }
+        if (!this.getState().equals(SocketState.CLOSED)
+                && !this.getState().equals(SocketState.LISTENING)) {
+            return false;
+        }
+        boolean isResized = mss != this.mss;
+        this.mss = mss;
+        // the pool of serverSocket must hold the packets of the new MSS, the
+        // datagrams received so far go back to the old pool they came from
+        if (isResized && this.getState().equals(SocketState.LISTENING)) {
+            this.bufferPool = createBufferPool();
+        }
+        return true;
+    }
+
+    /**
+     * Chooses how the length of a message sent by the socket is framed.
+     * By default the length rides in an option of the first data packets, so data
+     * is sent right away and the receiver sets up the message when a data packet
+     * arrives. Otherwise a separate size packet is sent first and data only
+     * follows once it is ACKed, which costs one more round trip per message.
+     * The receiver understands both. Note in serverSocket, sockets returned by
+     * accept() will inherit the framing of serverSocket.
+     * @param lengthInData true to carry the length in the data packets
+     * @return true if the framing is set correctly, false otherwise.
+     */
+    public boolean lengthInData(boolean lengthInData) {
+        this.lengthInData = lengthInData;
+        return true;
+    }
+
+    /**
+     * Chooses whether the socket offers CRC32C checksums when connecting.
+     * CRC32C catches more corruption than the internet checksum and is
+     * hardware-accelerated on most machines. It is only used when both
+     * endpoints offer it, otherwise packets carry the internet checksum.
+     * Note in serverSocket, sockets returned by accept() will offer the checksum
+     * of serverSocket. Can only be changed before the connection is established.
+     * @param crc32c true to offer CRC32C, false by default
+     * @return true if the checksum is set correctly, false otherwise.
+     */
+    public boolean crc32c(boolean crc32c) {
+        if (!this.getState().equals(SocketState.CLOSED)
+                && !this.getState().equals(SocketState.LISTENING)) {
+            return false;
+        }
+        this.crc32c = crc32c;
+        return true;
+    }
+
+    /**
+     * Chooses whether the socket sends parity packets along with its chunks, so
+     * the receiver rebuilds lost chunks without waiting for a retransmission.
+     * The number of parity packets follows the loss rate the socket sees, and
+     * none are sent while it sees next to no losses. Receivers always understand
+     * parity packets, so only the sender needs it. Can be changed at any time.
+     * Note in serverSocket, sockets returned by accept() will inherit the setting
+     * of serverSocket.
+     * @param fec true to send parity packets, false by default
+     * @return true if the setting is set correctly, false otherwise.
+     */
+    public boolean fec(boolean fec) {
+        this.fec = fec;
+        return true;
+    }
+
+    /**
+     * Presents a resumption ticket on the next connect(). A server that accepts
+     * the ticket skips the challenge and the connection is established in one
+     * round trip. A ticket is good for one connection from the same IP address
+     * for 10 minutes. Otherwise the server challenges the client as usual.
+     * Can only be changed before the connection is established.
+     * @param ticket a ticket from getTicket(), null for none
+     * @return true if the ticket is set correctly, false otherwise.
+     */
+    public boolean ticket(byte[] ticket) {
+        if (!this.getState().equals(SocketState.CLOSED)
+                || (ticket != null && ticket.length != SessionTickets.TICKET_SIZE)) {
+            return false;
+        }
+        this.ticket = ticket == null ? null : ticket.clone();
         return true;
     }
 
+    /**
+     * Gives the resumption ticket the server issued when the socket connected,
+     * to present on a later connection with ticket(byte[]).
+     * @return the ticket, or null if the server didn't issue one.
+     */
+    public byte[] getTicket() {
+        return ticket == null ? null : ticket.clone();
+    }
+
+    /**
+     * Sets the congestion control algorithm used when sending. The sender keeps
+     * at most min(congestion window, receiver's window) chunks in flight.
+     * Note in serverSocket, sockets returned by accept() will get a fresh instance
+     * of the algorithm of serverSocket. The default algorithm is NewReno.
+     * @param congestionControl the algorithm, such as RenoCongestionControl
+     * or CubicCongestionControl
+     * @return true if the algorithm is set correctly, false otherwise.
+     */
+    public boolean congestionControl(CongestionControl congestionControl) {
+        if (congestionControl == null) {
+            return false;
+        }
+        this.congestionControl = congestionControl;
+        return true;
+    }
+
+    /**
+     * Bounds the number of established connections waiting to be accept()ed by
+     * serverSocket. Clients that finish their handshake while the backlog is full
+     * are dropped, see getDroppedRequests(), and get in when they resend their
+     * handshake and there is room. Can be changed at any time.
+     * @param backlog 1 - 32,000, 128 by default
+     * @return true if backlog is set correctly, false otherwise.
+     */
+    public boolean backlog(int backlog) {
+        if (!ConvertLib.isValidShort(backlog)) {
+            return false;
+        }
+        this.backlog = backlog;
+        return true;
+    }
+
+    /**
+     * Caps the rate the socket sends at. Chunks are always paced over the
+     * round-trip time, so a window goes out evenly instead of in one burst, and
+     * this cap slows the pace further. Can be changed at any time.
+     * Note in serverSocket, the cap applies to each of its accept()ed sockets,
+     * including the ones already connected.
+     * @param bytesPerSecond the most bytes per second, 0 for no limit (the default)
+     * @return true if the cap is set correctly, false otherwise.
+     */
+    public boolean maxRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            return false;
+        }
+        this.maxRate = bytesPerSecond;
+        return true;
+    }
+
+    /**
+     * Caps the rate all the connections of the socket send at together. The
+     * cap is shared by serverSocket and its accept()ed sockets, and by a socket
+     * and the sockets created with createSibling(). Can be changed at any time.
+     * @param bytesPerSecond the most bytes per second, 0 for no limit (the default)
+     * @return true if the cap is set correctly, false otherwise.
+     */
+    public boolean maxTotalRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            return false;
+        }
+        totalRate.setRate(bytesPerSecond, Math.max(bytesPerSecond * PACING_QUANTUM / NANOS_PER_SECOND, mss));
+        return true;
+    }
+
+    /**
+     * Creates another socket to talk to the same NetEmu, binded to srcPort, with
+     * the window size, MSS, framing, checksum, rate caps and memory budget of this
+     * socket and a fresh instance of its congestion control. Used to open more
+     * connections to the same server.
+     * @param srcPort the port number the new socket will bind to
+     * @return the new socket, not connected yet.
+     * @throws IOException if srcPort can't be binded to
+     */
+    public DTPSocket createSibling(int srcPort) throws IOException {
+        DTPSocket socky = new DTPSocket(null, srcIp, srcPort, destIp, netEmuPort);
+        socky.window(maxWindowSize);
+        socky.autoWindow = autoWindow;
+        socky.receiveBudget = receiveBudget;
+        socky.mss = mss;
+        socky.lengthInData = lengthInData;
+        socky.crc32c = crc32c;
+        socky.fec = fec;
+        socky.congestionControl = congestionControl.create();
+        socky.maxRate = maxRate;
+        socky.totalRate = totalRate;
+        return socky;
+    }
+
     /**
      * Allows the socket to connect to the server via port number.
      * Cannot listen if connect() returns true on the socket.
@@ -133,82 +485,99 @@ public class DTPSocket {
         this.destPort = (short)destPort;
         this.destAddr = new InetSocketAddress(destIp, netEmuPort);
 
-        Packet receivingPacket = null;
-        byte[] sendingPacket = null;
-        DatagramPacket msg;
+        PacketHeader receivingHeader = null;
+        Datagram msg;
 
         String answer = "";
         int numRetries = 0;
+        int numSent = 0;
+        long sentTime = 0;
 
         boolean isReceived = false;
         boolean isAcked = false;
 
-        // Loop that listens for incoming packets from the DatagramSocket
-        // and delivers then into the receive buffer.
-        Thread listening = new Thread() {
-            public void run() {
-                while (!socket.isClosed()) {
-                    try {
-                        DatagramPacket msg = new DatagramPacket(new byte[Packet.MAX_PACKET_SIZE], Packet.MAX_PACKET_SIZE);
-                        socket.receive(msg);
-                        if (!getState().equals(SocketState.CLOSED)) {
-                            deliver(msg);
-                        }
-                    } catch (IOException e) {
-                        printDebug("EXCEPTION: " + e.getMessage() + " YARG!!!");
-                        e.printStackTrace();
-                    }
-                }
-            }
-        };
-        listening.start();
+        // The reactor delivers incoming packets from the DatagramChannel
+        // into the receive buffer.
+        this.bufferPool = createBufferPool();
+        Reactor.get().register(channel, this::receiveDatagrams);
 
         do {
             try {
                 if (!isReceived) {
                     printStatus("Connecting... Requesting connection from server...");
-                    Packet synPacket = packetHelper();
+                    Packet synPacket = packetHelper(new byte[0],
+                            createHandshakeOptions(this.mss, this.crc32c, this.ticket));
                     synPacket.setSyn(true);
                     synPacket.setChecksum(calculateChecksum(synPacket));
-                    sendingPacket = synPacket.getPacket();
-                    msg = new DatagramPacket(sendingPacket, sendingPacket.length, this.destAddr);
-                    this.send(msg);
+                    // the reactor drops what a CLOSED socket receives, and the
+                    // answer may come back before send() returns
                     this.setState(SocketState.CONNECTING);
+                    this.send(synPacket);
+                    sentTime = System.nanoTime();
+                    numSent++;
                 }
 
                 else if (isReceived && !isAcked) {
                     printStatus("Request sent. Waiting for server response...");
-                    Packet answerPacket = packetHelper(ConvertLib.convertStringToBytes(answer));
+                    // the MSS is echoed, the server keeps no state until it gets the answer
+                    Packet answerPacket = packetHelper(ConvertLib.convertStringToBytes(answer),
+                            createHandshakeOptions(this.mss, false, null));
                     answerPacket.setChl(true);
                     answerPacket.setAck(true);
                     answerPacket.setChecksum(calculateChecksum(answerPacket));
-                    sendingPacket = answerPacket.getPacket();
-                    msg = new DatagramPacket(sendingPacket, sendingPacket.length, this.destAddr);
-                    this.send(msg);
+                    this.send(answerPacket);
+                    sentTime = System.nanoTime();
+                    numSent++;
                 }
 
                 msg = this.recv();
-                receivingPacket = createPacketReceived(msg.getData());
+                receivingHeader = msg.getHeader();
+
+                // the server took the ticket and skipped the challenge
+                if (!isReceived && this.ticket != null
+                        && receivingHeader.syn() && receivingHeader.ack()
+                        && this.getSeqNum() + 1 == receivingHeader.ackNum()) {
+                    printStatus("Resumed the session with the server!");
+                    if (numSent == 1) rtt.sample(System.nanoTime() - sentTime);
+                    Packet synAck = createPacketReceived(msg);
+                    this.setSeqNum(receivingHeader.ackNum());
+                    this.setAckNum(receivingHeader.seqNum());
+                    this.destPort = receivingHeader.srcPort();
+                    this.mss = Math.min(this.mss, getMssOption(synAck));
+                    this.useCrc32c = this.crc32c && hasCrc32cOption(synAck);
+                    this.peerWindowSize = receivingHeader.windowSize();
+                    this.ticket = synAck.getOption(Packet.OPTION_TICKET);
+                    this.setState(SocketState.ESTABLISHED);
+                    isAcked = true;
+                }
 
-                if (!isReceived && receivingPacket.getChl()) {
+                else if (!isReceived && receivingHeader.chl()) {
                     printStatus("Received challenge from the server");
-                    this.setSeqNum(receivingPacket.getAckNum());
-                    this.setAckNum(receivingPacket.getSeqNum()+1);
+                    if (numSent == 1) rtt.sample(System.nanoTime() - sentTime);
+                    this.setSeqNum(receivingHeader.ackNum());
+                    this.setAckNum(receivingHeader.seqNum()+1);
 
-                    this.challenge = ConvertLib.convertBytesToString(receivingPacket.getData(), 32);
+                    this.challenge = ConvertLib.convertBytesToString(createPacketReceived(msg).getData(), 32);
                     answer = answerChallenge(srcIp, 0, this.challenge);
                     if (answer == null) throw new IOException("Issue with encoding...");
 
-                    this.destPort = receivingPacket.getSrcPort();
+                    this.destPort = receivingHeader.srcPort();
+                    this.mss = Math.min(this.mss, getMssOption(createPacketReceived(msg)));
+                    this.useCrc32c = this.crc32c && hasCrc32cOption(createPacketReceived(msg));
                     this.setState(SocketState.CHALLENGED);
                     isReceived = true;
                     numRetries = 0;
+                    numSent = 0;
                 }
 
                 else if (isReceived
-                        && receivingPacket.getAck() && receivingPacket.getSyn()
-                        && this.getAckNum() == receivingPacket.getSeqNum()) {
+                        && receivingHeader.ack() && receivingHeader.syn()
+                        && this.getAckNum() == receivingHeader.seqNum()) {
                     printStatus("Connected to the server!");
+                    if (numSent == 1) rtt.sample(System.nanoTime() - sentTime);
+                    this.destPort = receivingHeader.srcPort();
+                    this.peerWindowSize = receivingHeader.windowSize();
+                    this.ticket = createPacketReceived(msg).getOption(Packet.OPTION_TICKET);
                     this.setSeqNum(this.getSeqNum() + 1);
                     this.setState(SocketState.ESTABLISHED);
                     isAcked = true;
@@ -216,6 +585,7 @@ public class DTPSocket {
                 }
             } catch(SocketTimeoutException e) {
                 numRetries++;
+                rtt.backoff();
                 if (numRetries <= MAX_RETRY) {
                     printDebug("Socket has timed out! Retrying..." + "(" + numRetries + "/" + MAX_RETRY + ")");
                 } else {
@@ -224,6 +594,7 @@ public class DTPSocket {
                 }
             }
         } while (!isAcked);
+        this.releaseReceived();
         this.printSeqNums();
 
         return true;
@@ -238,70 +609,211 @@ public class DTPSocket {
         this.setState(SocketState.LISTENING);
 
         this.requestQueue = new LinkedBlockingQueue<>();
-        this.connectedMap = new ConcurrentHashMap<>();
-
-        // Loop that listens for incoming clients
-        // and also does some edge case handling
-        Thread listening = new Thread() {
-            public void run() {
-                while (!socket.isClosed()) {
-                    try {
-                        DatagramPacket msg = new DatagramPacket(new byte[Packet.MAX_PACKET_SIZE], Packet.MAX_PACKET_SIZE);
-                        socket.receive(msg);
-                        if (!isChecksumGood(msg)) continue;
-
-                        Packet packet = createPacketReceived(msg.getData());
-                        SocketAddress addr = new InetSocketAddress(msg.getAddress(), packet.getSrcPort());
-                        DTPSocket socky = connectedMap.get(addr);
-
-                        // adds requesting clients into the queue
-                        if (state.equals(SocketState.LISTENING)
-                                && packet.getSyn() && !packet.getAck()
-                                && (socky == null || socky.getState().equals(SocketState.CLOSED))) {
-                            int newSrcPort = 0;
-                            do {
-                                newSrcPort = randy.nextInt(32000) + 1;
-                            } while (connectedMap.get(new InetSocketAddress(msg.getAddress(), newSrcPort)) != null);
-                            DTPSocket sockSock = new DTPSocket(socket, newSrcPort,
-                                    msg.getAddress(), packet.getSrcPort(), netEmuPort);
-                            sockSock.setAckNum(packet.getSeqNum()+1);
-
-                            requestQueue.add(sockSock);
-                            printStatus("Adding client " + addr.toString() + " to the queue!");
-                        }
+        this.connections = new ConnectionTable();
+        this.bufferPool = createBufferPool();
+        this.cookies = new SynCookies(srcPort);
+        this.tickets = new SessionTickets();
+
+        // The reactor hands incoming clients and the packets of
+        // accept()ed sockets to demultiplex()
+        Reactor.get().register(channel, this::receiveRequests);
+    }
 
-                        if (socky != null) {
-                            SocketAddress sendAddr = new InetSocketAddress(msg.getAddress(), netEmuPort);
-                            // delivers message to the appropriate socket
-                            if (!socky.getState().equals(SocketState.CLOSED)) {
-                                socky.deliver(msg);
-                            }
+    /*
+     * Called by the reactor when the listening channel is readable.
+     * Demultiplexes the datagrams that are ready to the accept()ed sockets.
+     */
+    private void receiveRequests() throws IOException {
+        Datagram msg;
+        for (int i = 0; i < MAX_RECEIVE_BATCH && (msg = receive(null)) != null; i++) {
+            try {
+                demultiplex(msg);
+            } catch (IOException e) {
+                msg.release();
+                if (!channel.isOpen()) return;
+                e.printStackTrace();
+                printDebug("EXCEPTION: " + e.getMessage() + " ARGH!!!");
+            }
+        }
+    }
 
-                            // if the client needs a FIN packet when the other endpt is closed
-                            if (packet.getFin() && socky.getState().equals(SocketState.CLOSED)) {
-                                byte[] sendingPacket = createFinPacket(msg.getAddress());
-                                msg = new DatagramPacket(sendingPacket, sendingPacket.length, sendAddr);
-                                socket.send(msg);
+    /*
+     * Answers the handshake of requesting clients, delivers the packets of
+     * accepted clients to their sockets and also does some edge case handling.
+     */
+    private void demultiplex(Datagram msg) throws IOException {
+        PacketHeader header = msg.getHeader();
+        DTPSocket socky = connections.get(msg.getAddress(), header.srcPort());
+        boolean isClosed = socky == null || socky.getState().equals(SocketState.CLOSED);
+
+        // requesting clients have no socket until they are established
+        if (state.equals(SocketState.LISTENING) && isClosed
+                && ((header.syn() && !header.ack()) || (header.chl() && header.ack()))) {
+            InetSocketAddress addr = new InetSocketAddress(msg.getAddress(), header.srcPort());
+            if (header.syn()) {
+                answerSyn(msg, addr);
+            } else {
+                answerChallengeAck(msg, addr);
+            }
+            msg.release();
+            return;
+        }
 
-                                sendingPacket = createFinAckPacket(msg.getAddress());
-                                msg = new DatagramPacket(sendingPacket, sendingPacket.length, sendAddr);
-                                socket.send(msg);
-                            }
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        printDebug("EXCEPTION: " + e.getMessage() + " ARGH!!!");
-                    }
-                }
+        boolean isDelivered = false;
+        if (!isClosed) {
+            // delivers message to the appropriate socket
+            isDelivered = socky.deliver(msg);
+        } else if (header.fin() && !header.ack()) {
+            // if the client needs a FIN packet when the other endpt is closed,
+            // its socket is gone from the table by then
+            SocketAddress sendAddr = new InetSocketAddress(msg.getAddress(), netEmuPort);
+            send(createFinPacket(msg.getAddress()), sendAddr);
+            send(createFinAckPacket(msg.getAddress()), sendAddr);
+        }
+        if (!isDelivered) {
+            msg.release();
+        }
+    }
+
+    /*
+     * A returning client with a good ticket is established right away. Any other
+     * client is sent a challenge derived from its SYN, and the server forgets
+     * about it until the answer comes back.
+     */
+    private void answerSyn(Datagram msg, InetSocketAddress addr) throws IOException {
+        PacketHeader header = msg.getHeader();
+        Packet syn = createPacketReceived(msg);
+        int synMss = getMssOption(syn);
+        boolean synCrc32c = crc32c && hasCrc32cOption(syn);
+
+        byte[] ticket = syn.getOption(Packet.OPTION_TICKET);
+        if (ticket != null) {
+            // checking the ticket uses it up, so it is only checked if there is room
+            if (isBacklogFull(addr)) return;
+            SessionTickets.Verdict verdict = tickets.check(msg.getAddress(), ticket, header.seqNum());
+            if (verdict.equals(SessionTickets.Verdict.RETRANSMITTED)) {
+                return;
+            }
+            int port = verdict.equals(SessionTickets.Verdict.VALID) ? connections.freePort(randy, srcPort) : -1;
+            if (port > 0) {
+                DTPSocket sockSock = createAcceptedSocket(addr, port, synMss, synCrc32c);
+                sockSock.setAckNum(header.seqNum()+1);
+                establish(sockSock, createSynAckPacket(sockSock, createHandshakeOptions(
+                        sockSock.mss, sockSock.useCrc32c, tickets.issue(msg.getAddress()))));
+                printStatus("Resumed the session of the client");
+                return;
+            }
+        }
+
+        SynCookies.Cookie cookie = cookies.create(msg.getAddress(), header.srcPort(), header.seqNum());
+        Packet packet = packetHelper(ConvertLib.convertStringToBytes(cookie.challenge),
+                createHandshakeOptions(Math.min(mss, synMss), synCrc32c, null));
+        packet.setSrcPort((short) cookie.srcPort);
+        packet.setDestPort(header.srcPort());
+        packet.setSeqNum(cookie.seqNum);
+        packet.setAckNum(header.seqNum()+1);
+        packet.setWindowSize(maxWindowSize);
+        packet.setChl(true);
+        packet.setChecksum(calculateChecksum(packet, msg.getAddress(), synCrc32c));
+        send(packet, new InetSocketAddress(msg.getAddress(), netEmuPort));
+        printStatus("Sent challenge to the client " + addr.toString());
+    }
+
+    /*
+     * The CHL-ACK of a client echoes the sequence numbers of the challenge, which
+     * is derived again to check the answer. A client with a good answer gets its
+     * socket.
+     */
+    private void answerChallengeAck(Datagram msg, InetSocketAddress addr) throws IOException {
+        PacketHeader header = msg.getHeader();
+        Packet answerPacket = createPacketReceived(msg);
+        SynCookies.Cookie cookie = cookies.check(msg.getAddress(), header.srcPort(),
+                header.seqNum()-1, header.ackNum()-1);
+        String answer = ConvertLib.convertBytesToString(answerPacket.getData(), SynCookies.CHALLENGE_SIZE);
+        if (cookie == null || !isAnswerValid(answer, msg.getAddress(), 0, cookie.challenge)) {
+            failedChallenges++;
+            printStatus("Client answer does not match server answer!");
+            return;
+        }
+        if (isBacklogFull(addr)) return;
+
+        // the port of the cookie is a hash, another client may have it already,
+        // the client learns the port it gets from the SYN-ACK
+        int port = cookie.srcPort;
+        if (port == srcPort || connections.isPortUsed(port)) {
+            port = connections.freePort(randy, srcPort);
+            if (port < 0) {
+                printStatus("No free port! Dropping client " + addr.toString());
+                return;
             }
-        };
-        listening.start();
+        }
+
+        printStatus("Received a good answer from the client!");
+        DTPSocket sockSock = createAcceptedSocket(addr, port,
+                getMssOption(answerPacket), crc32c && header.crc());
+        sockSock.setSeqNum(cookie.seqNum+1);
+        sockSock.setAckNum(header.seqNum()+1);
+        sockSock.peerWindowSize = header.windowSize();
+        establish(sockSock, createSynAckPacket(sockSock,
+                Packet.createOption(Packet.OPTION_TICKET, tickets.issue(msg.getAddress()))));
+    }
+
+    /*
+     * Clients arriving while the backlog is full are dropped, they resend their
+     * SYN or CHL-ACK and may find room later.
+     */
+    private boolean isBacklogFull(InetSocketAddress addr) {
+        if (requestQueue.size() < backlog) {
+            return false;
+        }
+        droppedRequests++;
+        printStatus("Backlog is full! Dropping client " + addr.toString());
+        return true;
+    }
+
+    /*
+     * The socket of a client, configured like serverSocket.
+     */
+    private DTPSocket createAcceptedSocket(InetSocketAddress addr, int srcPort,
+            int peerMss, boolean useCrc32c) throws IOException {
+        DTPSocket sockSock = new DTPSocket(channel, srcIp, srcPort,
+                addr.getAddress(), addr.getPort(), netEmuPort);
+        sockSock.window(maxWindowSize);
+        sockSock.autoWindow = autoWindow;
+        sockSock.receiveBudget = receiveBudget;
+        sockSock.mss = Math.min(mss, peerMss);
+        sockSock.crc32c = crc32c;
+        sockSock.fec = fec;
+        sockSock.useCrc32c = useCrc32c;
+        sockSock.tickets = tickets;
+        sockSock.lengthInData = lengthInData;
+        sockSock.congestionControl = congestionControl.create();
+        sockSock.bufferPool = bufferPool;
+        sockSock.totalRate = totalRate;
+        sockSock.listener = this;
+        return sockSock;
+    }
+
+    /*
+     * Sends the SYN-ACK and queues the socket for accept(). The socket receives
+     * from now on, and deliver() resends the SYN-ACK whenever the client resends
+     * the packet it answers.
+     */
+    private void establish(DTPSocket sockSock, Packet synAck) throws IOException {
+        InetSocketAddress addr = new InetSocketAddress(sockSock.destIp, sockSock.destPort);
+        sockSock.setState(SocketState.ESTABLISHED);
+        connections.put(sockSock.destIp, sockSock.destPort, sockSock);
+        sockSock.send(synAck);
+        sockSock.synAckPacket = synAck;
+        requestQueue.add(sockSock);
+        printStatus("Adding client " + addr.toString() + " to the queue!");
     }
 
     /**
      * Allows the socket to accept clients requesting connections. Will block until a
-     * client requests a connection. A connection will be established and will return
-     * a DTPSocket that can talk to the client.
+     * client requests a connection. Handshakes are answered as clients arrive,
+     * so accept() returns the established connections in the order they were
+     * established, with a DTPSocket that can talk to the client.
      * @return a socket that has a connection with the client.
      * @throws IOException
      * @throws InterruptedException
@@ -319,99 +831,32 @@ public class DTPSocket {
             }
         }
         InetSocketAddress addr = new InetSocketAddress(socky.destIp, socky.destPort);
-        connectedMap.put(addr, socky);
         printStatus("Accepting client " + addr.toString());
+        socky.printSeqNums();
 
-        socky.challenge = generateRandomString();
-        DatagramPacket msg = null;
+        return socky;
+    }
 
-        Packet packet = packetHelper(ConvertLib.convertStringToBytes(socky.challenge));
+    /*
+     * The SYN-ACK that establishes the connection of an accept()ed socket.
+     */
+    private Packet createSynAckPacket(DTPSocket socky, byte[] options) {
+        Packet packet = packetHelper(new byte[0], options);
         packet.setSrcPort(socky.srcPort);
         packet.setDestPort(socky.destPort);
         packet.setSeqNum(socky.getSeqNum());
         packet.setAckNum(socky.getAckNum());
         packet.setWindowSize(socky.maxWindowSize);
-        packet.setChl(true);
-        packet.setChecksum(calculateChecksum(packet, socky.destIp));
-        byte[] sendingPacket = packet.getPacket();
-        DatagramPacket chlMsg = new DatagramPacket(sendingPacket, sendingPacket.length, socky.destAddr);
-
-        boolean isAnswerSent = false;
-        int numRetries = 0;
-        do {
-            try {
-                socky.send(chlMsg);
-                printStatus("Sent challenge to the client");
-                socky.setState(SocketState.CHALLENGING);
-    
-                msg = socky.recv();
-                if (needToSendSynAck(socky, msg).equals(SynAckState.GOOD_ANSWER)) {
-                    isAnswerSent = true;
-                    socky.setState(SocketState.ESTABLISHED);
-                    printStatus("Connection established with client");
-                }
-            } catch (SocketTimeoutException e) {
-                numRetries++;
-                if (numRetries <= MAX_RETRY) {
-                    printDebug("Socket has timed out! Retrying..." + "(" + numRetries + "/" + MAX_RETRY + ")");
-                } else {
-                    socky.setState(SocketState.CLOSED);
-                    throw new SocketTimeoutException("Socket timed out. Connection not established.");
-                }
-            }
-        } while (!isAnswerSent);
-        socky.printSeqNums();
-
-        return socky;
-    }
-
-    /*
-     * The logic for determining whether the server should accept the client
-     * Also used if the client never saw the SYN-ACK packet
-     */
-    private enum SynAckState {GOOD_ANSWER, BAD_ANSWER, NOT_APPLICABLE}
-    private boolean sentSynAck = false;
-    private SynAckState needToSendSynAck(DTPSocket socky, DatagramPacket msg) throws IOException {
-        Packet receivingPacket = createPacketReceived(msg.getData());
-        if (receivingPacket.getChl() && receivingPacket.getAck()
-                && ((socky.getAckNum() == receivingPacket.getSeqNum() && !socky.sentSynAck)
-                        || (socky.getAckNum() > receivingPacket.getSeqNum() && socky.sentSynAck))) {
-            String answer = ConvertLib.convertBytesToString(receivingPacket.getData(), 32);
-            if (isAnswerValid(answer, socky.destIp, 0, socky.challenge)) {
-                if (!socky.sentSynAck) {
-                    printStatus("Received a good answer from the client!");
-                    socky.setSeqNum(socky.getSeqNum()+1);
-                    socky.setAckNum(socky.getAckNum()+1);
-                    socky.sentSynAck = true;
-                } else {
-                    printStatus("Resending SYN ACK!");
-                }
-
-                Packet packet = packetHelper();
-                packet.setSrcPort(socky.srcPort);
-                packet.setDestPort(socky.destPort);
-                packet.setSeqNum(socky.getSeqNum());
-                packet.setAckNum(socky.getAckNum());
-                packet.setWindowSize(socky.maxWindowSize);
-                packet.setSyn(true);
-                packet.setAck(true);
-                packet.setChecksum(calculateChecksum(packet, socky.destIp));
-                byte[] sendingPacket = packet.getPacket();
-
-                msg = new DatagramPacket(sendingPacket, sendingPacket.length, socky.destAddr);
-                socky.send(msg);
-                printStatus("sent ACK to the client\n-----\n");
-                return SynAckState.GOOD_ANSWER;
-            } else {
-                printStatus("Client answer does not match server answer!");
-                return SynAckState.BAD_ANSWER;
-            }
-        }
-        return SynAckState.NOT_APPLICABLE;
+        packet.setSyn(true);
+        packet.setAck(true);
+        packet.setChecksum(socky.calculateChecksum(packet));
+        return packet;
     }
 
     /**
      * Sends information in the buffer to the other endpoint.
+     * Data is sent using Selective Repeat: only the chunks that the receiver
+     * has not cumulatively or selectively acknowledged are retransmitted.
      *
      * @param buffer
      * @return the number of bytes copied from the buffer.
@@ -419,286 +864,919 @@ public class DTPSocket {
      * @throws InterruptedException
      */
     public int send(byte[] buffer) throws IOException, InterruptedException {
-        printStatus("----- START SENDING INFO -----");
+        return this.send(ByteBuffer.wrap(buffer));
+    }
 
-        if (buffer.length <= 0) throw new IOException("Sending buffer is 0!");
+    /**
+     * Sends the remaining bytes of the buffer to the other endpoint as one message,
+     * see send(byte[]). Chunks are copied straight from the buffer into the
+     * outgoing datagram, so direct buffers avoid any intermediate copy.
+     * The position of the buffer is advanced to its limit.
+     *
+     * @param buffer
+     * @return the number of bytes copied from the buffer.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public int send(ByteBuffer buffer) throws IOException, InterruptedException {
+        return this.send(new ByteBuffer[] {buffer});
+    }
 
-        Packet receivingPacket = null;
-        byte[] sendingPacket = null;
-        DatagramPacket msg = null;
+    /**
+     * Gathering version of send(ByteBuffer). The remaining bytes of all the
+     * buffers are sent as one message, in order, and the position of each
+     * buffer is advanced to its limit.
+     *
+     * @param buffers
+     * @return the number of bytes copied from the buffers.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public int send(ByteBuffer[] buffers) throws IOException, InterruptedException {
+        long delivered = this.send(new Pipeline() {
+            private boolean isTaken;
+
+            public ByteBuffer[] next() {
+                if (isTaken) return null;
+                isTaken = true;
+                return buffers;
+            }
 
-        int size = buffer.length;
-        int windowStart = 0;
-        int windowSent = 0;
-        int numPackets = size / Packet.MAX_PACKET_DATA_SIZE;
-        if (size % Packet.MAX_PACKET_DATA_SIZE != 0) numPackets++;
-        int bytesCopied = 0;
+            public void delivered(int size) {
+            }
+        });
+        return (int) Math.max(delivered, 0);
+    }
 
-        int numRetries = 0;
-        boolean lengthAcked = false;
-        boolean isFinished = false;
-        int fastRetransmitCount = 0;
-        int byteRepeated = 0;
-        int advertisedWindowSize = 0;
+    /**
+     * The messages a pipelined send() sends one after another.
+     * Only called by the thread inside send().
+     */
+    interface Pipeline {
+        /**
+         * @return the buffers of the next message, or null if there is none yet.
+         */
+        ByteBuffer[] next();
+
+        /**
+         * Tells that the oldest message handed out by next() was received whole,
+         * so its buffers are no longer used.
+         */
+        void delivered(int size);
+    }
 
-        int originalSeq = this.getSeqNum();
-        int originalAck = this.getAckNum();
+    /*
+     * Sends the messages of the pipeline one after another, and returns once
+     * the pipeline has no more and all of them were received. While the last
+     * chunks of a message wait for their ACKs, the chunks of the next message
+     * already go out, so the window doesn't drain between messages. The receiver
+     * keeps them until it has the whole message before them, see stash().
+     * Messages only overlap when their length rides in the data packets.
+     * Returns the number of bytes delivered, or -1 if the other endpoint closed.
+     */
+    long send(Pipeline pipeline) throws IOException, InterruptedException {
+        printStatus("----- START SENDING INFO -----");
 
-        long startTime = System.currentTimeMillis();
+        Outgoing message = createOutgoing(pipeline.next(), this.getSeqNum(), this.getAckNum());
+        if (message == null) throw new IOException("Nothing to send!");
+        long delivered = 0;
 
-        Packet sizePacket = packetHelper(ConvertLib.convertIntToBytes(size));
-        sizePacket.setChecksum(calculateChecksum(sizePacket));
-        byte[] sizeBytes = sizePacket.getPacket();
-        DatagramPacket sizePack = new DatagramPacket(sizeBytes, sizeBytes.length, this.destAddr);
+        PacketHeader receivingHeader = null;
+        Datagram msg = null;
+        int numRetries = 0;
+        boolean isPacingWait = false;
 
         do {
             try {
-                if (!lengthAcked) {
-                    printDebug("SENDING SIZE PACKET OF SIZE ["+size+"]");
-                    this.send(sizePack);
+                long pacingDelay = 0;
+                if (!message.lengthAcked && !lengthInData) {
+                    printDebug("SENDING SIZE PACKET OF SIZE ["+message.size+"]");
+                    this.send(message.sizePack);
+                    message.sizeSentTime = System.nanoTime();
+                    message.sizeSent++;
                 }
 
                 else {
-                    int sendingStart = 0;
-                    int sendingEnd = 0;
-                    // if timed out or require a fast transmit, send the oldest
-                    // non-ACKed packet.
-                    if ((System.currentTimeMillis() - startTime > TIMEOUT * 2)
-                            || fastRetransmitCount >= 3) {
-                        sendingStart = windowStart / Packet.MAX_PACKET_DATA_SIZE;
-                        fastRetransmitCount = 0;
-                        sendingEnd = (windowStart + 1) > numPackets
-                                ? numPackets
-                                : windowStart + 1;
-                        startTime = System.currentTimeMillis();
+                    // on 3 duplicate ACKs, fill in the holes below the highest SACKed chunk
+                    if (message.fastRetransmit) {
+                        for (int i = message.windowStart; i <= message.highestSacked; i++) {
+                            if (!message.acked[i] && !isParityPending(i, message.paritySentTime)) {
+                                sendChunk(message.buffers, i, message.size, message.originalSeq,
+                                        message.originalAck, !message.lengthAcked);
+                                message.sentTime[i] = System.nanoTime();
+                                message.retransmitted[i] = true;
+                            }
+                        }
+                        message.fastRetransmit = false;
+                    }
+
+                    // resend only the chunks whose timers have expired, a parity
+                    // restarts the timers of the chunks it covers
+                    long now = System.nanoTime();
+                    long timeout = rtt.getTimeoutNanos();
+                    boolean isExpired = false;
+                    boolean isNewLoss = false;
+                    for (Outgoing m = message; m != null; m = m.next) {
+                        for (int i = m.windowStart; i < m.nextToSend; i++) {
+                            long lastSent = m.paritySentTime == null ? m.sentTime[i]
+                                    : Math.max(m.sentTime[i], m.paritySentTime[i]);
+                            if (!m.acked[i] && now - lastSent > timeout) {
+                                if (m.sentTime[i] > lastReduction) isNewLoss = true;
+                                if (!m.lost[i]) {
+                                    m.lost[i] = true;
+                                    m.numLost++;
+                                }
+                                sendChunk(m.buffers, i, m.size, m.originalSeq, m.originalAck, !m.lengthAcked);
+                                m.sentTime[i] = now;
+                                m.retransmitted[i] = true;
+                                isExpired = true;
+                            }
+                        }
+                    }
+                    if (isExpired) {
+                        rtt.backoff();
                     }
-                    // send packets that haven't been sent yet
-                    else {
-                        sendingStart = windowSent / Packet.MAX_PACKET_DATA_SIZE;
-                        sendingEnd = (windowStart + advertisedWindowSize) > numPackets
-                                ? numPackets
-                                : windowStart + advertisedWindowSize;
+                    if (isNewLoss) {
+                        congestionControl.onTimeout();
+                        startRecovery(message);
                     }
 
-                    for (int i = sendingStart; i < sendingEnd; i++) {
-                        int bytesStart = i * Packet.MAX_PACKET_DATA_SIZE;
-                        int bytesEnd = (i+1) * Packet.MAX_PACKET_DATA_SIZE;
-                        if (bytesEnd > size) {
-                            bytesEnd = size;
+                    // send chunks that haven't been sent yet, as fast as the pacer lets,
+                    // and the next message once every chunk of this one went out
+                    updatePacingRate(Math.min(message.advertisedWindowSize, congestionControl.getWindow()));
+                    int inFlight = 0;
+                    for (Outgoing m = message; m != null; m = m.next) {
+                        inFlight += m.nextToSend - m.numAcked;
+                    }
+                    for (Outgoing m = message; m != null && pacingDelay == 0; m = m.next) {
+                        while (m.nextToSend < m.numPackets
+                                && m.nextToSend < m.windowStart + m.advertisedWindowSize
+                                && inFlight < congestionControl.getWindow()) {
+                            pacingDelay = pacingDelayNanos();
+                            if (pacingDelay > 0) break;
+                            sendNewChunk(m);
+                            inFlight++;
                         }
-                        windowSent += Packet.MAX_PACKET_DATA_SIZE;
-                        if (windowSent > size) {
-                            windowSent = size;
+                        if (m == message && m.next == null && lengthInData && m.lengthAcked
+                                && m.nextToSend == m.numPackets) {
+                            m.next = createOutgoing(pipeline.next(), m.originalSeq + m.size + 1,
+                                    m.originalAck + m.numPackets + 1);
                         }
-                        Packet packet = new Packet(Arrays.copyOfRange(buffer, bytesStart, bytesEnd), true);
-                        packet.setSrcPort(this.srcPort);
-                        packet.setDestPort(this.destPort);
-                        packet.setSeqNum(originalSeq + bytesEnd);
-                        packet.setAckNum(originalAck + i + 1);
-                        packet.setWindowSize(this.maxWindowSize);
-                        packet.setChecksum(calculateChecksum(packet));
-                        sendingPacket = packet.getPacket();
-                        msg = new DatagramPacket(sendingPacket, sendingPacket.length, this.destAddr);
-                        this.send(msg);
-                        startTime = System.currentTimeMillis();
                     }
                 }
 
-                msg = this.recv();
-                receivingPacket = createPacketReceived(msg.getData());
+                // waking up for the next paced chunk unless an ACK comes first
+                long timeout = rtt.getTimeoutNanos();
+                isPacingWait = pacingDelay > 0 && pacingDelay < timeout;
+                msg = isPacingWait ? this.recv(pacingDelay, true) : this.recv(timeout);
+                receivingHeader = msg.getHeader();
 
-                if (receivingPacket.getFin()) {
+                if (receivingHeader.fin()) {
                     waitingToClose(msg);
-                    return 0;
+                    return -1;
                 }
 
-                if (!needToSendSynAck(this, msg).equals(SynAckState.NOT_APPLICABLE)) continue;
+                // copies of the handshake, see deliver()
+                if (receivingHeader.syn() || receivingHeader.chl()) continue;
 
                 // if the receiver hasn't gotten the size packet
-                if (!lengthAcked && receivingPacket.getAck()
-                        && originalAck == receivingPacket.getSeqNum()) {
-                    printDebug("SENDING SIZE PACKET OF SIZE ["+size+"]");
-                    this.send(sizePack);
+                if (!message.lengthAcked && !lengthInData && receivingHeader.ack()
+                        && message.originalAck == receivingHeader.seqNum()) {
+                    printDebug("SENDING SIZE PACKET OF SIZE ["+message.size+"]");
+                    this.send(message.sizePack);
+                    message.sizeSentTime = System.nanoTime();
+                    message.sizeSent++;
                 }
 
-                // getting ACK of length packet
-                if (!lengthAcked && receivingPacket.getAck()
-                        && originalAck + 1 == receivingPacket.getSeqNum()) {
-                    printDebug("PREPARING TO SEND DATA ["+size+"]");
-                    lengthAcked = true;
-                    numRetries = 0;
+                // the receiver moved on to the next message, so it has all of this one
+                if (message.next != null && receivingHeader.seqNum() > message.next.originalAck) {
+                    delivered += finish(message, pipeline);
+                    message = message.next;
+                    restartTimers(message);
                 }
 
-                // determining what got ACKed
-                if (receivingPacket.getSeqNum() > originalAck) {
-                    startTime = System.currentTimeMillis();
-                    advertisedWindowSize = receivingPacket.getWindowSize();
-                    int expectedByte = receivingPacket.getAckNum() - originalSeq;
-                    if (expectedByte == byteRepeated) { 
-                        fastRetransmitCount++;
+                if (ackReceived(message, msg)) {
+                    numRetries = 0;
+                }
+                if (message.isDelivered) {
+                    delivered += finish(message, pipeline);
+                    if (message.next != null) {
+                        message = message.next;
+                        restartTimers(message);
                     } else {
-                        byteRepeated = expectedByte;
-                        numRetries = 0;
-                    }
-                    if (expectedByte > size) {
-                        printDebug("DUN");
-                        isFinished = true;
-                    } else if (lengthAcked && expectedByte < size) {
-                        printDebug("UH OH");
-                        if (windowStart < expectedByte - Packet.MAX_PACKET_DATA_SIZE) {
-                            windowStart = expectedByte - Packet.MAX_PACKET_DATA_SIZE;
-                        }
-                    } else if (lengthAcked && expectedByte == size) {
-                        printDebug("SMALL");
-                        if (windowStart < size - (size / Packet.MAX_PACKET_DATA_SIZE)) {
-                            windowStart = size - (size / Packet.MAX_PACKET_DATA_SIZE);
-                        }
+                        message = createOutgoing(pipeline.next(), this.getSeqNum(), this.getAckNum());
                     }
                 }
             } catch(SocketTimeoutException e) {
+                // time for the next paced chunk, not a timeout
+                if (isPacingWait) continue;
                 numRetries++;
+                // the size packet is resent on every timeout, data chunks back
+                // off when their own timers expire
+                if (!message.lengthAcked && !lengthInData) rtt.backoff();
                 if (numRetries <= MAX_RETRY) {
                     printDebug("Socket has timed out! Retrying..." + "(" + numRetries + "/" + MAX_RETRY + ")");
                 } else {
                     throw new SocketTimeoutException("Socket timed out.");
                 }
             }
-        } while(!isFinished);
+        } while (message != null);
+
+        this.releaseReceived();
+        printStatus("----- FINISH SENDING INFO -----");
+        return delivered;
+    }
+
+    /*
+     * A message being sent, with the bookkeeping of selective repeat for each
+     * of its chunks. While its last chunks wait for their ACKs, the next
+     * message of a pipelined send() is already being sent.
+     */
+    private final class Outgoing {
+        final ByteBuffer[] buffers;
+        final int size;
+        final int numPackets;
+        final int originalSeq;
+        final int originalAck;
+
+        final boolean[] acked;
+        final boolean[] retransmitted;  // or held by the receiver, not timed either way
+        final long[] sentTime;
+        int windowStart;            // oldest chunk not yet ACKed
+        int nextToSend;             // next chunk that has never been sent
+        int highestSacked = -1;     // highest chunk the receiver has selectively ACKed
+        int numAcked;               // chunks cumulatively or selectively ACKed
+        // chunks sent before the last reduction of the congestion window
+        int recoveryPoint;
+
+        boolean lengthAcked;
+        boolean isDelivered;
+        boolean fastRetransmit;
+        int fastRetransmitCount;
+        int lastExpectedChunk = -1;
+        // without a size packet, the window the receiver last advertised is
+        // used until its first ACK of this message arrives
+        int advertisedWindowSize;
+        Packet sizePack;
+        int sizeSent;
+        long sizeSentTime;
+
+        // forward error correction, stride parities for every group of chunks,
+        // chosen from the loss rate once per message
+        final int chunksPerParity;
+        final int stride;
+        final int groupSize;
+        int groupFirst;             // the first chunk of the group being sent
+        // when the parities covering each chunk were sent, 0 if not yet
+        final long[] paritySentTime;
+        // chunks seen missing below a SACKed chunk or retransmitted, counted once each
+        final boolean[] lost;
+        int numLost;
+        int lossScan;               // chunks below it were checked for losses
+
+        Outgoing next;              // the message sent after this one
+
+        Outgoing(ByteBuffer[] buffers, int size, int originalSeq, int originalAck) {
+            this.buffers = buffers;
+            this.size = size;
+            this.numPackets = (size + mss - 1) / mss;
+            this.originalSeq = originalSeq;
+            this.originalAck = originalAck;
+            this.acked = new boolean[numPackets];
+            this.retransmitted = new boolean[numPackets];
+            this.sentTime = new long[numPackets];
+            this.lost = new boolean[numPackets];
+            this.advertisedWindowSize = lengthInData ? Math.max(peerWindowSize, 1) : 0;
+
+            this.chunksPerParity = fec ? XorParity.chunksPerParity(getLossRate()) : 0;
+            this.stride = chunksPerParity > 0 ? XorParity.paritiesPerGroup(chunksPerParity) : 0;
+            this.groupSize = stride * chunksPerParity;
+            if (groupSize > 0 && parity == null) parity = new XorParity();
+            this.paritySentTime = groupSize > 0 ? new long[numPackets] : null;
+
+            if (!lengthInData) {
+                sizePack = packetHelper(ConvertLib.convertIntToBytes(size));
+                sizePack.setChecksum(calculateChecksum(sizePack));
+            }
+        }
+    }
+
+    /*
+     * The next message to send, or null if there is none.
+     */
+    private Outgoing createOutgoing(ByteBuffer[] buffers, int originalSeq, int originalAck) throws IOException {
+        if (buffers == null) return null;
+        long totalSize = 0;
+        for (ByteBuffer buffer : buffers) {
+            totalSize += buffer.remaining();
+        }
+        if (totalSize <= 0) throw new IOException("Sending buffer is 0!");
+        if (totalSize > Integer.MAX_VALUE) throw new IOException("Sending buffer is too large!");
+        return new Outgoing(buffers, (int) totalSize, originalSeq, originalAck);
+    }
+
+    /*
+     * Sends the next chunk of the message that was never sent, and the parities
+     * of its group after the last chunk of the group.
+     */
+    private void sendNewChunk(Outgoing m) throws IOException {
+        int i = m.nextToSend;
+        sendChunk(m.buffers, i, m.size, m.originalSeq, m.originalAck, !m.lengthAcked);
+        m.sentTime[i] = System.nanoTime();
+        if (m.groupSize > 0) {
+            // the parities of a group follow its last chunk, and
+            // a group sent slowly ends early, so its parities
+            // arrive well before the timers of its chunks expire
+            int numChunks = i - m.groupFirst + 1;
+            if (numChunks == m.groupSize || i == m.numPackets - 1
+                    || m.sentTime[i] - m.sentTime[m.groupFirst]
+                            >= rtt.getSrtt() / MAX_GROUP_SPAN_DIVISOR) {
+                int groupStride = XorParity.stride(numChunks, m.chunksPerParity, m.stride);
+                for (int j = 0; j < groupStride; j++) {
+                    sendParity(m.buffers, j, m.groupFirst, i, groupStride, m.size,
+                            m.originalSeq, m.originalAck, !m.lengthAcked);
+                }
+                Arrays.fill(m.paritySentTime, m.groupFirst, i + 1, System.nanoTime());
+                m.groupFirst = i + 1;
+            }
+        }
+        m.nextToSend++;
+    }
+
+    /*
+     * Takes an ACK for the oldest message being sent. Returns true if the ACK
+     * told the sender something new.
+     */
+    private boolean ackReceived(Outgoing m, Datagram msg) {
+        PacketHeader receivingHeader = msg.getHeader();
+        boolean isProgress = false;
+
+        // getting ACK of length packet
+        if (!m.lengthAcked && receivingHeader.ack()
+                && m.originalAck + 1 == receivingHeader.seqNum()) {
+            printDebug("PREPARING TO SEND DATA ["+m.size+"]");
+            if (m.sizeSent == 1) rtt.sample(System.nanoTime() - m.sizeSentTime);
+            m.lengthAcked = true;
+            isProgress = true;
+        }
+
+        // determining what got ACKed
+        if (receivingHeader.seqNum() <= m.originalAck) return isProgress;
+        if (!m.lengthAcked) {
+            // the receiver got the length from one of the data packets
+            printDebug("RECEIVER KNOWS THE LENGTH ["+m.size+"]");
+            m.lengthAcked = true;
+            isProgress = true;
+        }
+        m.advertisedWindowSize = receivingHeader.windowSize();
+        peerWindowSize = receivingHeader.windowSize();
+        int expectedByte = receivingHeader.ackNum() - m.originalSeq;
+        if (expectedByte > m.size) {
+            printDebug("DUN");
+            m.isDelivered = true;
+            return true;
+        }
+
+        // cumulative ACK, everything before the expected chunk is received
+        int expectedChunk = (expectedByte - 1) / mss;
+        int newlyAcked = 0;
+        int newestAcked = -1;
+        for (int i = m.windowStart; i < expectedChunk; i++) {
+            if (!m.acked[i]) {
+                m.acked[i] = true;
+                newestAcked = i;
+                newlyAcked++;
+            }
+        }
 
-        this.setSeqNum(this.getSeqNum() + size + 1);
-        this.setAckNum(this.getAckNum() + numPackets + 1);
+        // selective ACKs, chunks received after a hole
+        ByteBuffer ackBytes = msg.getBuffer();
+        int sackIndex = readPacket.wrap(ackBytes).findOption(Packet.OPTION_SACK);
+        int numSackBlocks = sackIndex < 0 ? 0 : (ackBytes.get(sackIndex - 1) & 0xFF) / 8;
+        for (int b = 0; b < numSackBlocks; b++) {
+            int left = chunkOfSeq(ackBytes.getInt(sackIndex + b * 8), m.originalSeq);
+            int right = chunkOfSeq(ackBytes.getInt(sackIndex + b * 8 + 4), m.originalSeq);
+            for (int i = Math.max(left, m.windowStart); i <= right && i < m.nextToSend; i++) {
+                if (!m.acked[i]) {
+                    m.acked[i] = true;
+                    newestAcked = Math.max(newestAcked, i);
+                    newlyAcked++;
+                }
+                m.highestSacked = Math.max(m.highestSacked, i);
+            }
+        }
+
+        // chunks still missing below a SACKed one were lost, or rebuilt from parity
+        for (; m.lossScan < m.highestSacked; m.lossScan++) {
+            if (!m.acked[m.lossScan] && !m.lost[m.lossScan]) {
+                m.lost[m.lossScan] = true;
+                m.numLost++;
+            }
+        }
+
+        while (m.windowStart < m.numPackets && m.acked[m.windowStart]) {
+            m.windowStart++;
+        }
+
+        // Karn's algorithm, only time chunks that were sent once
+        if (newestAcked >= 0 && !m.retransmitted[newestAcked]) {
+            rtt.sample(System.nanoTime() - m.sentTime[newestAcked]);
+        }
+        if (newlyAcked > 0) {
+            m.numAcked += newlyAcked;
+            congestionControl.onAck(newlyAcked, rtt.getSrtt());
+        }
 
+        // duplicate ACKs still carry new SACK blocks, so only the
+        // cumulative ACK decides whether the ACK is a duplicate
+        if (!m.lengthAcked || m.nextToSend == m.windowStart || expectedChunk != m.lastExpectedChunk) {
+            m.fastRetransmitCount = 0;
+        } else {
+            m.fastRetransmitCount++;
+            // the parity of the hole's group may still rebuild it, so the
+            // count waits for duplicate ACKs that come after the parity
+            if (m.fastRetransmitCount == 3
+                    && isParityPending(m.windowStart, m.paritySentTime)) {
+                m.fastRetransmitCount--;
+            }
+            if (m.fastRetransmitCount == 3) {
+                printDebug("FAST RETRANSMIT FROM CHUNK " + m.windowStart);
+                m.fastRetransmit = true;
+                m.highestSacked = Math.max(m.highestSacked, m.windowStart);
+                if (m.windowStart >= m.recoveryPoint) {
+                    congestionControl.onFastRetransmit();
+                    startRecovery(m);
+                }
+            }
+        }
+        m.lastExpectedChunk = expectedChunk;
+        return isProgress || newlyAcked > 0;
+    }
+
+    /*
+     * The congestion window was just reduced. It isn't reduced again for the
+     * chunks already in flight, of this message or the next.
+     */
+    private void startRecovery(Outgoing message) {
+        lastReduction = System.nanoTime();
+        for (Outgoing m = message; m != null; m = m.next) {
+            m.recoveryPoint = m.nextToSend;
+        }
+    }
+
+    /*
+     * The receiver keeps the chunks of the next message until it has the whole
+     * message before it, so they weren't ACKed yet. Their timers start over
+     * once the message before is delivered, and they aren't timed.
+     */
+    private void restartTimers(Outgoing m) {
+        long now = System.nanoTime();
+        for (int i = m.windowStart; i < m.nextToSend; i++) {
+            m.sentTime[i] = now;
+            m.retransmitted[i] = true;
+            if (m.paritySentTime != null && m.paritySentTime[i] != 0) {
+                m.paritySentTime[i] = now;
+            }
+        }
+    }
+
+    /*
+     * Moves the socket past a message that was received whole.
+     */
+    private int finish(Outgoing m, Pipeline pipeline) {
+        for (ByteBuffer buffer : m.buffers) {
+            buffer.position(buffer.limit());
+        }
+        this.setSeqNum(m.originalSeq + m.size + 1);
+        this.setAckNum(m.originalAck + m.numPackets + 1);
+        recordLosses(m.numPackets, m.numLost);
         this.printSeqNums();
-        printStatus("----- FINISH SENDING INFO -----");
-        return bytesCopied;
+        pipeline.delivered(m.size);
+        return m.size;
+    }
+
+    /*
+     * Sends the i-th chunk of the buffers. The sequence number of a chunk is
+     * the offset of the byte after its last byte.
+     * The chunk is gathered from the buffers straight into the send buffer,
+     * which is reused for every chunk. With withLength, the length of the
+     * whole message is carried in the length option.
+     */
+    private void sendChunk(ByteBuffer[] buffers, int i, int size, int originalSeq, int originalAck,
+            boolean withLength) throws IOException {
+        int bytesStart = i * mss;
+        int bytesEnd = Math.min((i+1) * mss, size);
+        if (sendBuffer == null || sendBuffer.capacity() < PARITY_HEADER_SIZE + mss) {
+            sendBuffer = ByteBuffer.allocateDirect(PARITY_HEADER_SIZE + mss);
+            sendPacket = new Packet(sendBuffer);
+        }
+        sendPacket.clearHeader();
+
+        int index = Packet.MIN_HEADER_SIZE;
+        if (withLength) {
+            sendBuffer.put(index, Packet.OPTION_LENGTH);
+            sendBuffer.put(index + 1, (byte) 4);
+            sendBuffer.putInt(index + 2, size);
+            index = LENGTH_HEADER_SIZE;
+            sendPacket.setHeaderLength((byte) index);
+        }
+
+        // skipping the buffers before the chunk, then copying across buffers
+        int offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            int start = Math.max(bytesStart - offset, 0);
+            int end = Math.min(bytesEnd - offset, buffer.remaining());
+            if (start < end) {
+                sendBuffer.put(index, buffer, buffer.position() + start, end - start);
+                index += end - start;
+            }
+            offset += buffer.remaining();
+            if (offset >= bytesEnd) break;
+        }
+
+        Packet packet = packetHelper(sendPacket);
+        packet.setDataLength(bytesEnd - bytesStart);
+        packet.setSeqNum(originalSeq + bytesEnd);
+        packet.setAckNum(originalAck + i + 1);
+        packet.setChecksum(calculateChecksum(packet));
+        this.send(packet);
+        // retransmissions aren't held back by the pacer, but count against it
+        int length = packet.getBuffer().remaining();
+        pacer.consume(length);
+        totalRate.consume(length);
+    }
+
+    /*
+     * Sends parity j of the group of chunks from first to last, see XorParity.
+     * It is numbered like the last chunk of the group, and carries the length
+     * of the message like the chunks do.
+     */
+    private void sendParity(ByteBuffer[] buffers, int j, int first, int last, int stride, int size,
+            int originalSeq, int originalAck, boolean withLength) throws IOException {
+        sendPacket.clearHeader();
+        int index = Packet.MIN_HEADER_SIZE;
+        if (withLength) {
+            sendBuffer.put(index, Packet.OPTION_LENGTH);
+            sendBuffer.put(index + 1, (byte) 4);
+            sendBuffer.putInt(index + 2, size);
+            index += 6;
+        }
+        sendBuffer.put(index, Packet.OPTION_FEC);
+        sendBuffer.put(index + 1, (byte) XorParity.OPTION_LENGTH);
+        sendBuffer.putInt(index + 2, first);
+        sendBuffer.put(index + 6, (byte) (last - first + 1));
+        sendBuffer.put(index + 7, (byte) stride);
+        sendBuffer.put(index + 8, (byte) j);
+        index += 9;
+        sendPacket.setHeaderLength((byte) index);
+
+        ByteBuffer bytes = parity.encode(buffers, mss, size, first, last - first + 1, stride, j);
+        int length = parity.getLength();
+        sendBuffer.put(index, bytes, 0, length);
+        Packet packet = packetHelper(sendPacket);
+        packet.setPar(true);
+        packet.setDataLength(length);
+        packet.setSeqNum(originalSeq + Math.min((last + 1) * mss, size));
+        packet.setAckNum(originalAck + last + 1);
+        packet.setChecksum(calculateChecksum(packet));
+        this.send(packet);
+        pacer.consume(packet.getBuffer().remaining());
+        totalRate.consume(packet.getBuffer().remaining());
+    }
+
+    /*
+     * Whether the parity of the group of a chunk may still rebuild the chunk:
+     * it wasn't sent yet, or was sent less than a round trip ago, so the ACKs
+     * don't tell yet whether it did.
+     */
+    private boolean isParityPending(int chunk, long[] paritySentTime) {
+        if (paritySentTime == null) return false;
+        long srtt = rtt.getSrtt();
+        return paritySentTime[chunk] == 0 || System.nanoTime() - paritySentTime[chunk] < srtt + srtt / 4;
+    }
+
+    /*
+     * Adds the chunks of a message sent to the loss rate. Older messages weigh
+     * less and less, halved every LOSS_HISTORY chunks.
+     */
+    private void recordLosses(int numSent, int numLost) {
+        chunksSent += numSent;
+        chunksLost += numLost;
+        while (chunksSent > LOSS_HISTORY) {
+            chunksSent /= 2;
+            chunksLost /= 2;
+        }
+    }
+
+    /*
+     * The fraction of the chunks sent lately that were lost, whether they were
+     * retransmitted or rebuilt from parity.
+     */
+    private double getLossRate() {
+        return chunksSent == 0 ? 0 : chunksLost / chunksSent;
+    }
+
+    /*
+     * Paces the window over the smoothed round trip, a bit faster than the
+     * window so the pace doesn't hold back the ACK clock, and twice as fast in
+     * slow start, where the window doubles every round trip. Capped by maxRate
+     * of the socket and of its serverSocket. No pacing until there is an RTT
+     * sample, unless there is a cap.
+     */
+    void updatePacingRate(int window) {
+        long srtt = rtt.getSrtt();
+        long rate = 0;
+        if (srtt > 0) {
+            double gain = congestionControl.isSlowStart() ? SLOW_START_PACING_GAIN : PACING_GAIN;
+            rate = (long) (gain * Math.max(window, 1) * mss * NANOS_PER_SECOND / srtt);
+        }
+        long cap = maxRate;
+        if (listener != null && listener.maxRate > 0 && (cap == 0 || listener.maxRate < cap)) {
+            cap = listener.maxRate;
+        }
+        if (cap > 0 && (rate == 0 || cap < rate)) {
+            rate = cap;
+        }
+        // parking is coarse, so up to a quantum of bytes goes out per wakeup
+        pacer.setRate(rate, Math.max(rate * PACING_QUANTUM / NANOS_PER_SECOND, PACING_BURST * mss));
+    }
+
+    /*
+     * How long until the pacer and the total rate cap let the next chunk go.
+     */
+    long pacingDelayNanos() {
+        return Math.max(pacer.delayNanos(), totalRate.delayNanos());
+    }
+
+    private final static long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private final static double PACING_GAIN = 1.25;
+    private final static double SLOW_START_PACING_GAIN = 2;
+    private final static long PACING_QUANTUM = TimeUnit.MILLISECONDS.toNanos(1);
+    private final static int PACING_BURST = 2;     // chunks sent back to back at the least
+
+    // header length of a data packet carrying the length option
+    private final static int LENGTH_HEADER_SIZE = Packet.MIN_HEADER_SIZE + 6;
+    // a group ends once its first chunk was sent this fraction of a round trip ago
+    private final static int MAX_GROUP_SPAN_DIVISOR = 4;
+    // header length of a parity packet carrying the length and FEC options
+    private final static int PARITY_HEADER_SIZE = LENGTH_HEADER_SIZE + 9;
+    private final static int LOSS_HISTORY = 1024;
+
+    /*
+     * Maps the sequence number of a data packet back to its chunk index.
+     */
+    private int chunkOfSeq(int seq, int originalSeq) {
+        return (seq - originalSeq - 1) / mss;
     }
 
 
     /**
      * Receives information from the other endpoint and stores it in the buffer.
+     * Chunks that arrive out of order are placed in the buffer right away and
+     * reported back to the sender as SACK blocks.
      * @param buffer
      * @return the number of bytes copied into the buffer. 
      * @throws IOException
      * @throws InterruptedException
      */
     public int recv(byte[] buffer) throws IOException, InterruptedException {
+        return this.recv(ByteBuffer.wrap(buffer));
+    }
+
+    /**
+     * Receives a message from the other endpoint and stores it in the remaining
+     * space of the buffer, see recv(byte[]). Payloads are copied straight from the
+     * received datagrams into the buffer. Bytes of the message that do not fit
+     * in the buffer are dropped. The position of the buffer is advanced by the
+     * number of bytes copied.
+     * @param buffer
+     * @return the number of bytes copied into the buffer.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public int recv(ByteBuffer buffer) throws IOException, InterruptedException {
         printStatus("----- START RECEIVING INFO -----");
 
-        if (buffer.length <= 0) throw new IOException("Receive buffer is 0!");
+        if (buffer.remaining() <= 0) throw new IOException("Receive buffer is 0!");
+        numReplayed = stashed.size();
 
-        Packet receivingPacket = null;
-        byte[] sendingPacket = null;
-        DatagramPacket msg = null;
-        DatagramPacket sizeAckPack = null;
+        PacketHeader receivingHeader = null;
+        Datagram msg = null;
+        Packet sizeAckPack = null;
         int sizeAckAck = this.getAckNum();
 
         int expectedSeq = this.getSeqNum();
         int expectedAck = this.getAckNum();
 
         int size = 0;
+        int numPackets = 0;
         int numRetries = 0;
 
         boolean lengthAcked = false;
         boolean isFinished = false;
 
-        int bytesCopied = 0;
+        // chunks received so far, windowStart is the first chunk not yet received
+        boolean[] received = null;
         int windowStart = 0;
-        int chunkSize = Packet.MAX_PACKET_DATA_SIZE;
+        int highestReceived = -1;
+        int chunkSize = mss;
+        XorParity.Decoder fecDecoder = null;    // created by the first parity packet
+        // a tuned window shrinks, but chunks up to the farthest edge offered are kept
+        int windowEdge = 0;
+        windowTuner.startMessage();
+
+        // delayed ACKs, in-order chunks received since the last ACK and when
+        // they must be ACKed at the latest
+        int unackedChunks = 0;
+        long ackDeadline = 0;
+        long lastAckTime = System.nanoTime() - MAX_ACK_DELAY;
 
         do {
             try {
-                msg = this.recv();
-                receivingPacket = createPacketReceived(msg.getData());
+                long timeout = rtt.getTimeoutNanos();
+                if (unackedChunks > 0) {
+                    timeout = Math.min(timeout, Math.max(0, ackDeadline - System.nanoTime()));
+                }
+                msg = this.recv(timeout);
+                receivingHeader = msg.getHeader();
 
-                if (receivingPacket.getFin()) {
+                if (receivingHeader.fin()) {
                     waitingToClose(msg);
                     return 0;
                 }
 
-                if (!needToSendSynAck(this, msg).equals(SynAckState.NOT_APPLICABLE)) continue;
+                // copies of the handshake, see deliver()
+                if (receivingHeader.syn() || receivingHeader.chl()) continue;
 
-                // sending an ACK if the other endpt lost the last ACK for sending
-                if (sizeAckAck > receivingPacket.getSeqNum()) {
+                // sending an ACK if the other endpt lost the last ACK for sending,
+                // once per interval however many old packets it resends
+                if (sizeAckAck > receivingHeader.seqNum()
+                        && System.nanoTime() - lastAckTime >= delayedAckNanos()) {
+                    lastAckTime = System.nanoTime();
                     Packet packet = packetHelper();
                     packet.setSeqNum(expectedSeq);
                     packet.setAckNum(expectedAck);
                     packet.setWindowSize((short)maxWindowSize);
                     packet.setAck(true);
                     packet.setChecksum(calculateChecksum(packet));
-                    sendingPacket = packet.getPacket();
-                    sizeAckPack = new DatagramPacket(sendingPacket, sendingPacket.length, this.destAddr);
-                    this.send(sizeAckPack);
+                    this.send(packet);
                 }
 
                 // sending the ACK for the size packet
-                if (sizeAckAck == receivingPacket.getSeqNum()) {
+                if (sizeAckAck == receivingHeader.seqNum()) {
                     if (!lengthAcked) {
-                        byte[] sizeBytes = Arrays.copyOfRange(receivingPacket.getData(), 0, 4);
-                        size = ConvertLib.convertBytesToInt(sizeBytes[0], sizeBytes[1], sizeBytes[2], sizeBytes[3]);
+                        size = msg.getBuffer().getInt(receivingHeader.headerLength());
+                        numPackets = size / mss;
+                        if (size % mss != 0) numPackets++;
+                        received = new boolean[numPackets];
 
-                        if (windowStart + chunkSize > size) {
-                            chunkSize = size - windowStart;
+                        if (chunkSize > size) {
+                            chunkSize = size;
                         }
                         expectedSeq += 1;
                         expectedAck += chunkSize;
 
-                        Packet packet = packetHelper();
+                        sizeAckPack = packetHelper();
                         int windowSize = Math.min(this.maxWindowSize, this.maxWindowSize-packets.size());
                         windowSize = Math.max(windowSize, 1);
-                        packet.setSeqNum(expectedSeq);
-                        packet.setAckNum(expectedAck);
-                        packet.setWindowSize((short)windowSize);
-                        packet.setAck(true);
-                        packet.setChecksum(calculateChecksum(packet));
-                        sendingPacket = packet.getPacket();
-                        sizeAckPack = new DatagramPacket(sendingPacket, sendingPacket.length, this.destAddr);
+                        sizeAckPack.setSeqNum(expectedSeq);
+                        sizeAckPack.setAckNum(expectedAck);
+                        sizeAckPack.setWindowSize((short)windowSize);
+                        sizeAckPack.setAck(true);
+                        sizeAckPack.setChecksum(calculateChecksum(sizeAckPack));
                     }
                     this.send(sizeAckPack);
 
                     printDebug("PREPARING TO RECEIVE DATA ["+size+"]");
                     lengthAcked = true;
                     numRetries = 0;
+                    rtt.clearBackoff();
                 }
 
-                // determining whether the data sent is expected
-                else if (lengthAcked) {
-                    byte[] data = receivingPacket.getData();
-                    if (expectedAck == receivingPacket.getSeqNum()) {
-                        for (int i=windowStart; i<(windowStart + chunkSize) && i < buffer.length; i++) {
-                            buffer[i] = data[i-windowStart];
+                else {
+                    // setting up the message from the length option of a data packet
+                    if (!lengthAcked && receivingHeader.seqNum() > sizeAckAck) {
+                        int lengthIndex = readPacket.wrap(msg.getBuffer()).findOption(Packet.OPTION_LENGTH);
+                        if (lengthIndex >= 0) {
+                            size = msg.getBuffer().getInt(lengthIndex);
+                            numPackets = size / mss;
+                            if (size % mss != 0) numPackets++;
+                            received = new boolean[numPackets];
+
+                            // the length takes the place of the size packet in the numbering
+                            expectedSeq += 1;
+                            expectedAck += Math.min(chunkSize, size);
+
+                            printDebug("PREPARING TO RECEIVE DATA ["+size+"]");
+                            lengthAcked = true;
                         }
+                    }
 
-                        expectedSeq += 1;
-                        bytesCopied += chunkSize;
-                        if (windowStart + chunkSize >= size) {
-                            isFinished = true;
-                            expectedAck += 1;
+                    // a pipelined sender sends the next message while chunks of this one are missing
+                    if (lengthAcked && receivingHeader.seqNum() > sizeAckAck + size + 1) {
+                        stash(msg);
+                        continue;
+                    }
+
+                    // placing the data if it is within the receiving window
+                    if (lengthAcked) {
+                        int chunk = -1;     // the chunk placed into the buffer
+                        if (receivingHeader.par()) {
+                            // rebuilding a lost chunk from a parity packet
+                            int fecIndex = readPacket.wrap(msg.getBuffer()).findOption(Packet.OPTION_FEC);
+                            if (receivingHeader.seqNum() > sizeAckAck && fecIndex >= 0) {
+                                if (fecDecoder == null) {
+                                    fecDecoder = new XorParity.Decoder(buffer, mss, size, numPackets);
+                                }
+                                chunk = fecDecoder.parityReceived(msg.getBuffer(), fecIndex,
+                                        receivingHeader.headerLength(), receivingHeader.dataLength(), received);
+                            }
                         } else {
-                            windowStart += chunkSize;
-                            if (windowStart + chunkSize > size) {
-                                chunkSize = size - windowStart;
+                            chunk = chunkOfSeq(receivingHeader.seqNum(), sizeAckAck);
+                            windowEdge = Math.max(windowEdge, windowStart + this.maxWindowSize);
+                            if (receivingHeader.seqNum() > sizeAckAck && chunk < numPackets
+                                    && chunk >= windowStart && chunk < windowEdge
+                                    && !received[chunk]) {
+                                int bytesStart = chunk * mss;
+                                int bytesEnd = Math.min(Math.min(bytesStart + mss, size), buffer.remaining());
+                                if (bytesStart < bytesEnd) {
+                                    buffer.put(buffer.position() + bytesStart, msg.getBuffer(),
+                                            receivingHeader.headerLength(), bytesEnd - bytesStart);
+                                }
+                            } else {
+                                chunk = -1;
+                            }
+                        }
+
+                        boolean ackNow;
+                        if (chunk >= 0) {
+                            int oldWindowStart = windowStart;
+                            int numReceived = 0;
+                            while (chunk >= 0) {
+                                received[chunk] = true;
+                                highestReceived = Math.max(highestReceived, chunk);
+                                unackedChunks++;
+                                numReceived++;
+                                // a parity waiting for this chunk may rebuild another one now
+                                chunk = fecDecoder == null ? -1 : fecDecoder.chunkReceived(chunk, received);
+                            }
+
+                            // tuning the window once per round trip
+                            if (autoWindow) {
+                                int windowSize = windowTuner.chunksReceived(numReceived, highestReceived,
+                                        windowEdge, this.maxWindowSize, rtt.getSrtt(), System.nanoTime());
+                                if (windowSize != this.maxWindowSize) {
+                                    setWindow(windowSize);
+                                }
+                            }
+
+                            // sliding the window over everything received in order
+                            while (windowStart < numPackets && received[windowStart]) {
+                                windowStart++;
+                                expectedSeq += 1;
                             }
-                            expectedAck += chunkSize;
+                            if (windowStart == numPackets) {
+                                isFinished = true;
+                                expectedAck = sizeAckAck + size + 1;
+                            } else {
+                                expectedAck = sizeAckAck
+                                        + Math.min((windowStart + 1) * mss, size);
+                            }
+                            numRetries = 0;
+                            rtt.clearBackoff();
+
+                            // every second chunk is ACKed, unless it arrived out of
+                            // order or filled a hole, so the sender learns about
+                            // losses right away
+                            ackNow = isFinished
+                                    || windowStart != oldWindowStart + 1
+                                    || highestReceived >= windowStart
+                                    || unackedChunks >= Math.min(ACK_EVERY, this.maxWindowSize);
+                            if (!ackNow && unackedChunks == 1) {
+                                ackDeadline = System.nanoTime() + delayedAckNanos();
+                            }
+                        } else {
+                            // duplicates, at most one ACK per interval
+                            ackNow = System.nanoTime() - lastAckTime >= delayedAckNanos();
+                        }
+
+                        if (ackNow) {
+                            sendDataAck(received, windowStart, sizeAckAck, size, expectedSeq, expectedAck);
+                            unackedChunks = 0;
+                            lastAckTime = System.nanoTime();
                         }
-                        numRetries = 0;
                     }
-    
-                    Packet packet = new Packet(data, true);
-                    packet.setSrcPort(srcPort);
-                    packet.setDestPort(destPort);
-                    packet.setSeqNum(expectedSeq);
-                    packet.setAckNum(expectedAck);
-                    int windowSize = Math.min(this.maxWindowSize, this.maxWindowSize-packets.size());
-                    windowSize = Math.max(windowSize, 1);
-                    packet.setWindowSize((short)windowSize);
-                    packet.setAck(true);
-                    packet.setChecksum(calculateChecksum(packet));
-                    sendingPacket = packet.getPacket();
-                    msg = new DatagramPacket(sendingPacket, sendingPacket.length, this.destAddr);
-                    this.send(msg);
                 }
             } catch (SocketTimeoutException e) {
+                if (unackedChunks > 0) {
+                    // the delayed ACK timer expired
+                    sendDataAck(received, windowStart, sizeAckAck, size, expectedSeq, expectedAck);
+                    unackedChunks = 0;
+                    lastAckTime = System.nanoTime();
+                    continue;
+                }
                 numRetries++;
+                rtt.backoff();
                 if (numRetries <= MAX_RETRY) {
                     printDebug("Socket has timed out! Retrying..." + "(" + numRetries + "/" + MAX_RETRY + ")");
                 } else {
@@ -709,23 +1787,114 @@ public class DTPSocket {
         this.setSeqNum(expectedSeq);
         this.setAckNum(expectedAck);
 
+        this.releaseReceived();
+        numReplayed = 0;
+        int length = Math.min(size, buffer.remaining());
+        buffer.position(buffer.position() + length);
+
         this.printSeqNums();
         printStatus("----- END RECEIVING INFO -----");
-        return bytesCopied;
+        return length;
+    }
+
+
+    /*
+     * Sends a header-only ACK of the data received so far, with SACK blocks for
+     * the chunks received after a hole.
+     */
+    private void sendDataAck(boolean[] received, int windowStart, int originalSeq, int size,
+            int expectedSeq, int expectedAck) throws IOException {
+        if (ackBuffer == null) {
+            ackBuffer = ByteBuffer.allocateDirect(Packet.MAX_HEADER_SIZE);
+            ackPacket = new Packet(ackBuffer);
+        }
+        ackPacket.clearHeader();
+        ackPacket.setHeaderLength((byte) putSackOption(ackBuffer,
+                received, windowStart, originalSeq, size));
+        Packet packet = packetHelper(ackPacket);
+        packet.setSeqNum(expectedSeq);
+        packet.setAckNum(expectedAck);
+        int windowSize = Math.min(this.maxWindowSize, this.maxWindowSize-packets.size());
+        windowSize = Math.max(windowSize, 1);
+        packet.setWindowSize((short)windowSize);
+        packet.setAck(true);
+        packet.setChecksum(calculateChecksum(packet));
+        this.send(packet);
+    }
+
+    /*
+     * How long an in-order chunk may wait for the next one before it is ACKed
+     * on its own. It stays well below the retransmission timeout of the sender,
+     * estimated by our own, so a delayed ACK never looks like a loss.
+     */
+    long delayedAckNanos() {
+        long slack = (rtt.getTimeoutNanos() - rtt.getSrtt()) / 2;
+        return Math.max(0, Math.min(MAX_ACK_DELAY, slack));
+    }
+
+    // in-order chunks received before an ACK is sent, and how long the ACK may be delayed
+    private final static int ACK_EVERY = 2;
+    private final static long MAX_ACK_DELAY = TimeUnit.MILLISECONDS.toNanos(40);
+
+
+    /*******************************************************
+     * Selective acknowledgement (SACK) helper methods
+     * A SACK block is a pair of sequence numbers (first, last)
+     * of a run of data packets received after a hole.
+     *******************************************************/
+    private final static int MAX_SACK_BLOCKS = 4;
+
+    /*
+     * Writes the SACK option in place into the options field of a packet.
+     * Returns the header length of the packet with the option.
+     */
+    private int putSackOption(ByteBuffer packet, boolean[] received, int windowStart, int originalSeq, int size) {
+        int blocksStart = Packet.MIN_HEADER_SIZE + 2;
+        int numBlocks = 0;
+        int i = windowStart;
+        while (i < received.length && numBlocks < MAX_SACK_BLOCKS) {
+            if (!received[i]) {
+                i++;
+                continue;
+            }
+            int first = i;
+            while (i < received.length && received[i]) {
+                i++;
+            }
+            int firstSeq = originalSeq + Math.min((first + 1) * mss, size);
+            int lastSeq = originalSeq + Math.min(i * mss, size);
+            packet.putInt(blocksStart + numBlocks * 8, firstSeq);
+            packet.putInt(blocksStart + numBlocks * 8 + 4, lastSeq);
+            numBlocks++;
+        }
+        if (numBlocks == 0) {
+            return Packet.MIN_HEADER_SIZE;
+        }
+        packet.put(Packet.MIN_HEADER_SIZE, Packet.OPTION_SACK);
+        packet.put(Packet.MIN_HEADER_SIZE + 1, (byte) (numBlocks * 8));
+        return blocksStart + numBlocks * 8;
     }
 
 
     /**
-     * Closes the socket's connection.
+     * Closes the socket's connection. A socket that never connected, or failed
+     * to, only gives back its port.
      * @throws IOException
      * @throws InterruptedException
      */
     public void close() throws IOException, InterruptedException {
         if (this.getState().equals(SocketState.CLOSED)) {
+            if (!isInHegemony && connections == null && channel.isOpen()) {
+                closeChannel();
+                return;
+            }
             throw new SocketException("Connection is already closed!");
         }
         if (this.getState().equals(SocketState.LISTENING)) {
             this.setState(SocketState.CLOSED);
+            if (connections.size() == 0) {
+                closeChannel();
+            }
             return;
         }
         waitingToClose(null);
@@ -737,11 +1906,13 @@ public class DTPSocket {
      * If the serverSocket is closing, the interfacing socket will not close unless
      * its accept()ed sockets are also closed. If not all are closed, the serverSocket
      * will simply stop listening for connection requests.
+     *
+     * Returns as soon as the socket reaches TIMED_WAIT. The reactor answers the FINs
+     * the other endpoint resends meanwhile and closes the socket when the timer expires.
      */
-    private void waitingToClose(DatagramPacket msg) throws IOException, InterruptedException {
-        byte[] sendingPacket = null;
+    private void waitingToClose(Datagram msg) throws IOException, InterruptedException {
+        Packet sendingPacket = null;
         int retryCount = 0;
-        int timedWaitCount = 0;
         do {
             try {
                 if (msg == null && this.getState().equals(SocketState.ESTABLISHED)) {
@@ -750,7 +1921,7 @@ public class DTPSocket {
                 }
 
                 if (sendingPacket != null) {
-                    this.send(new DatagramPacket(sendingPacket, sendingPacket.length, this.destAddr));
+                    this.send(sendingPacket);
                 }
 
                 if (msg == null && !this.getState().equals(SocketState.CLOSE_WAIT)) {
@@ -761,72 +1932,98 @@ public class DTPSocket {
                     continue;
                 }
 
-                Packet receivingPacket = createPacketReceived(msg.getData());
-                if (receivingPacket.getFin()) {
+                PacketHeader receivingHeader = msg.getHeader();
+                if (receivingHeader.fin()) {
                     if (this.getState().equals(SocketState.ESTABLISHED)) {
-                        if (!receivingPacket.getAck()) {
+                        if (!receivingHeader.ack()) {
                             sendingPacket = createFinAckPacket(this.destIp);
                             this.setState(SocketState.CLOSE_WAIT);
                         }
                     } else if (this.getState().equals(SocketState.FIN_WAIT_1)) {
-                        if (!receivingPacket.getAck()) {
+                        if (!receivingHeader.ack()) {
                             sendingPacket = createFinPacket(this.destIp);
                             this.setState(SocketState.CLOSING);
                         } else {
                             this.setState(SocketState.FIN_WAIT_2);
                         }
                     } else if (this.getState().equals(SocketState.FIN_WAIT_2)) {
-                        if (!receivingPacket.getAck()) {
-                            sendingPacket = createFinAckPacket(this.destIp);
+                        if (!receivingHeader.ack()) {
+                            this.send(createFinAckPacket(this.destIp));
                             this.setState(SocketState.TIMED_WAIT);
                         }
                     } else if (this.getState().equals(SocketState.CLOSING)) {
-                        if (receivingPacket.getAck()) {
+                        if (receivingHeader.ack()) {
                             this.setState(SocketState.TIMED_WAIT);
                         } else {
                             sendingPacket = createFinAckPacket(this.destIp);
                         }
                     } else if (this.getState().equals(SocketState.LAST_ACK)) {
-                        if (receivingPacket.getAck()) {
+                        if (receivingHeader.ack()) {
                             this.setState(SocketState.CLOSED);
                         } else {
                             sendingPacket = createFinPacket(this.destIp);
                         }
                     }
                 }
-                if (this.getState().equals(SocketState.TIMED_WAIT)) {
-                    if (timedWaitCount >= 3) {
-                        this.setState(SocketState.CLOSED);
-                    } else if (receivingPacket.getFin()) {
-                        sendingPacket = createFinAckPacket(this.destIp);
-                    }
-                    timedWaitCount++;
-                }
                 msg = null;
             } catch (SocketTimeoutException e) {
-                if (this.getState().equals(SocketState.TIMED_WAIT)) timedWaitCount++;
                 retryCount++;
+                rtt.backoff();
                 printDebug("Socket has timed out! Retrying..." + "(" + retryCount + "/" + MAX_RETRY + ")");
             }
-        } while (!this.getState().equals(SocketState.CLOSED) && timedWaitCount < 3 && retryCount < 10);
+        } while (!this.getState().equals(SocketState.CLOSED)
+                && !this.getState().equals(SocketState.TIMED_WAIT) && retryCount < 10);
+        this.releaseReceived();
+        while (!stashed.isEmpty()) {
+            stashed.poll().release();
+        }
+
+        if (this.getState().equals(SocketState.TIMED_WAIT)) {
+            Reactor.get().schedule(timedWaitTimer, TIMED_WAIT_RTOS * rtt.getTimeoutNanos());
+            printStatus("Client socket waiting to close.");
+            return;
+        }
+        releaseConnection();
+    }
+
+    /*
+     * Called by the reactor when the TIMED_WAIT timer expires.
+     */
+    private void timedWaitExpired() {
+        this.setState(SocketState.CLOSED);
+        try {
+            releaseConnection();
+        } catch (IOException e) {
+            printDebug("EXCEPTION: " + e.getMessage());
+        }
+    }
 
-        // server socket logic
+    /*
+     * Closes the interfacing datagram channel once nothing uses it anymore.
+     */
+    private void releaseConnection() throws IOException {
+        // accept()ed sockets share the channel of serverSocket, see connectionClosed()
         if (!isInHegemony) {
-            socket.close();
-        } else if (connectedMap != null) {
-            boolean isEmpty = true;
-            for (InetSocketAddress addr : connectedMap.keySet()) {
-                if (!connectedMap.get(addr).isClosed()) {
-                    isEmpty = false;
-                }
-            }
-            if (isEmpty) {
-                socket.close();
-            }
+            closeChannel();
         }
         printStatus("Client socket closed.");
     }
 
+    /*
+     * Called when an accept()ed socket is closed. A closed serverSocket closes
+     * its channel once its last accept()ed socket is closed.
+     */
+    private void connectionClosed(DTPSocket socky) {
+        if (connections.remove(socky.destIp, socky.destPort, socky)
+                && this.getState().equals(SocketState.CLOSED) && connections.size() == 0) {
+            try {
+                closeChannel();
+            } catch (IOException e) {
+                printDebug("EXCEPTION: " + e.getMessage());
+            }
+        }
+    }
+
 
     /**
      * Determines whether a socket is closed or not by the socket state.
@@ -837,19 +2034,53 @@ public class DTPSocket {
      * @return true if the socket is closed, false otherwise.
      */
     public boolean isClosed() {
-        boolean isClosed = this.getState().equals(SocketState.CLOSED);
-        if (!isClosed) {
-            return isClosed;
-        } else if (this.connectedMap == null) {
-            return isClosed;
-        } else {
-            for (InetSocketAddress addr : connectedMap.keySet()) {
-                if (!connectedMap.get(addr).isClosed()) {
-                    return false;
-                }
-            }
-            return true;
+        if (!this.getState().equals(SocketState.CLOSED)) {
+            return false;
         }
+        // only live accept()ed sockets are in the table
+        return connections == null || connections.size() == 0;
+    }
+
+    /*
+     * Whether the socket is connected to the client, used by the table of serverSocket.
+     */
+    boolean isConnectedTo(InetAddress address, int port) {
+        return destPort == (short) port && destIp.equals(address);
+    }
+
+    /*
+     * Hands the stream packets the socket receives to the multiplexer, or drops
+     * them again if it is null. Set by DTPMultiplexer.
+     */
+    void setMultiplexer(DTPMultiplexer multiplexer) {
+        this.multiplexer = multiplexer;
+    }
+
+    /*
+     * Sends a stream packet the multiplexer numbered and filled in, and counts
+     * it against the pacer and the total rate cap.
+     */
+    void sendStreamPacket(Packet packet) throws IOException {
+        packet.setSrcPort(this.srcPort);
+        packet.setDestPort(this.destPort);
+        packet.setStr(true);
+        packet.setChecksum(calculateChecksum(packet));
+        this.send(packet);
+        int length = packet.getBuffer().remaining();
+        pacer.consume(length);
+        totalRate.consume(length);
+    }
+
+    int getMss() {
+        return mss;
+    }
+
+    RttEstimator getRtt() {
+        return rtt;
+    }
+
+    CongestionControl getCongestionControl() {
+        return congestionControl;
     }
 
 
@@ -857,10 +2088,66 @@ public class DTPSocket {
      * Helper methods to interface with packet receive buffers
      *******************************************************/
     /*
-     * Sends the packet through the interfacing datagram socket
+     * Closes the interfacing datagram channel and lets the reactor drop it.
+     */
+    private void closeChannel() throws IOException {
+        channel.close();
+        Reactor.get().wakeup();
+    }
+
+    /*
+     * Sends the packet through the interfacing datagram channel
+     */
+    private void send(Packet packet) throws IOException {
+        this.send(packet, this.destAddr);
+    }
+    private void send(Packet packet, SocketAddress addr) throws IOException {
+        channel.send(packet.getBuffer(), addr);
+    }
+
+    /*
+     * Called by the reactor when the channel of a connect()ed socket is readable.
+     * Delivers the datagrams that are ready into the receive buffer.
+     */
+    private void receiveDatagrams() throws IOException {
+        Datagram msg;
+        for (int i = 0; i < MAX_RECEIVE_BATCH && (msg = receive(destAddr)) != null; i++) {
+            if (getState().equals(SocketState.CLOSED) || !deliver(msg)) {
+                msg.release();
+            }
+        }
+    }
+
+    /*
+     * Receives the next datagram waiting at the interfacing datagram channel,
+     * or returns null if there is none.
+     * Datagrams are received into direct buffers from the buffer pool.
+     * Corrupted datagrams are dropped, good ones have their header decoded
+     * once here, so the rest of the socket never parses the header again.
+     * A connect()ed socket passes its peer, datagrams from anyone else are
+     * dropped, and the ones from the peer keep the address of the socket.
      */
-    private void send(DatagramPacket packet) throws IOException {
-        socket.send(packet);
+    private Datagram receive(InetSocketAddress peer) throws IOException {
+        Datagram msg = bufferPool.acquire();
+        ByteBuffer buffer = msg.getBuffer();
+        while (true) {
+            buffer.clear();
+            InetSocketAddress addr = (InetSocketAddress) channel.receive(buffer);
+            if (addr == null) {
+                msg.release();
+                return null;
+            }
+            if (peer != null) {
+                if (!peer.equals(addr)) continue;
+                addr = peer;
+            }
+            buffer.flip();
+            Packet packet = listenerPacket.wrap(buffer);
+            if (isChecksumGood(packet, addr.getAddress(), buffer.limit())) {
+                msg.received(addr, packet);
+                return msg;
+            }
+        }
     }
 
     /*
@@ -868,60 +2155,190 @@ public class DTPSocket {
      * If the packet is corrupted or sent to the wrong port, the packet is
      * dropped. If the time exceeds the timeout period, the method throws
      * a SocketTimeoutException.
+     * The returned packet can be used until the next call, which gives its
+     * buffer back to the buffer pool.
+     */
+    private Datagram recv(long timeoutNanos) throws SocketTimeoutException, IOException, InterruptedException {
+        return this.recv(timeoutNanos, false);
+    }
+
+    /*
+     * The retransmission and delayed ACK timeouts expire on the reactor's timer
+     * wheel. Waits shorter than a tick, and the waits of the pacer, which must
+     * not be rounded up to a tick, time themselves.
      */
-    private DatagramPacket recv(int timeout) throws SocketTimeoutException, IOException, InterruptedException {
-        DatagramPacket msg = null;
+    private Datagram recv(long timeoutNanos, boolean isPrecise)
+            throws SocketTimeoutException, IOException, InterruptedException {
+        Datagram msg = null;
         boolean stopLooping = false;
-        long startTime = System.currentTimeMillis();
-        long endTime = System.currentTimeMillis();
-        printDebug("BUFFER CONTAINS " + packets.size());
-        do {
-            synchronized (packets) {
-                msg = packets.poll(timeout / 5, TIME_UNIT);
-            }
-            endTime = System.currentTimeMillis();
-            if (msg == null && endTime - startTime >= timeout) {
-                throw new SocketTimeoutException();
-            }
-            // test cases for whether the packet is good
-            if (msg != null) {
-                Packet p = createPacketReceived(msg.getData());
-                if (this.destIp.equals(msg.getAddress()) && isChecksumGood(msg)
-                        && ((this.srcPort == p.getDestPort() && this.destPort == p.getSrcPort())
-                                || this.getState().equals(SocketState.CONNECTING))) {
-                    stopLooping = true;
+        this.releaseReceived();
+        if (numReplayed > 0) {
+            numReplayed--;
+            lastReceived = stashed.poll();
+            return lastReceived;
+        }
+        if (printDebug) printDebug("BUFFER CONTAINS " + packets.size());
+
+        Reactor reactor = Reactor.get();
+        isPrecise = isPrecise || timeoutNanos < reactor.getTickNanos();
+        long startTime = System.nanoTime();
+        long deadline = startTime + timeoutNanos;
+        if (!isPrecise) {
+            // every wait gets its own deadline, so a late expiry can't end the next one
+            if (deadline == receiveDeadline) deadline++;
+            receiveDeadline = deadline;
+            reactor.schedule(receiveTimer, deadline - startTime);
+        }
+        try {
+            do {
+                if (isPrecise) {
+                    msg = packets.poll(deadline - System.nanoTime());
+                    if (msg == null && System.nanoTime() - deadline >= 0) {
+                        throw new SocketTimeoutException();
+                    }
+                } else {
+                    msg = packets.take(deadline);
+                    if (msg == null) {
+                        throw new SocketTimeoutException();
+                    }
                 }
-            }
-        } while (!stopLooping);
+                // test cases for whether the packet is good
+                if (msg != null) {
+                    PacketHeader header = msg.getHeader();
+                    if (this.destIp.equals(msg.getAddress())
+                            && ((this.srcPort == header.destPort() && this.destPort == header.srcPort())
+                                    || this.getState().equals(SocketState.CONNECTING)
+                                    // the SYN-ACK may move the client to another server port
+                                    || (this.getState().equals(SocketState.CHALLENGED) && header.syn() && header.ack()))) {
+                        stopLooping = true;
+                    } else {
+                        msg.release();
+                    }
+                }
+            } while (!stopLooping);
+        } finally {
+            // a wait that ended early leaves no timer for the reactor to wake up for
+            if (!isPrecise) reactor.cancel(receiveTimer);
+        }
         printDebug("RECEIVING PACKET");
+        lastReceived = msg;
         return msg;
     }
 
     /*
-     * Overloaded method that gets the DTPSocket's default timeout period.
+     * Called by the reactor when the timer of recv() expires. recv() cancels
+     * the timer when it returns, but the timer may have expired just before
+     * and run after the next recv() started waiting, so the deadline tells
+     * whether the wait it was scheduled for is still running.
+     */
+    private void receiveTimerExpired() {
+        long deadline = receiveDeadline;
+        if (System.nanoTime() - deadline >= 0) {
+            packets.expire(deadline);
+        }
+    }
+
+    /*
+     * Keeps the last received packet, of the message after the one recv() is
+     * receiving, for the next recv(), which takes it before the receive buffer.
+     * The sender sends at most a window ahead, more is dropped and resent.
+     */
+    private void stash(Datagram msg) {
+        if (stashed.size() - numReplayed < maxWindowSize) {
+            stashed.add(msg);
+            lastReceived = null;
+        }
+    }
+
+    /*
+     * Gives the buffer of the last received packet back to the buffer pool.
+     */
+    private void releaseReceived() {
+        if (lastReceived != null) {
+            lastReceived.release();
+            lastReceived = null;
+        }
+    }
+
+    /*
+     * Overloaded method that gets the DTPSocket's current retransmission timeout.
      */
-    private DatagramPacket recv() throws SocketTimeoutException, IOException, InterruptedException {
-        return this.recv(TIMEOUT);
+    private Datagram recv() throws SocketTimeoutException, IOException, InterruptedException {
+        return this.recv(rtt.getTimeoutNanos());
     }
 
     /*
      * If the socket's receive buffer is not full (determined by the windowSize),
-     * then the packet is added to the receive buffer.
+     * then the packet is added to the receive buffer. In TIMED_WAIT, nobody
+     * receives anymore, so FINs are answered right here and dropped.
+     * Stream packets go straight to the multiplexer, which orders the bytes of
+     * every stream on its own.
+     * Only called on the reactor thread, the single producer of the buffer.
+     * Returns false if the packet was dropped or handled here.
      */
-    private void deliver(DatagramPacket packet) {
-        synchronized (packets) {
-            if (packets.size() < this.maxWindowSize) {
-                packets.add(packet);
+    private boolean deliver(Datagram packet) {
+        if (synAckPacket != null) {
+            // the client resends its SYN (resumed session) or CHL-ACK until it
+            // gets the SYN-ACK, whether or not the socket was accept()ed yet
+            PacketHeader header = packet.getHeader();
+            if (((header.syn() && !header.ack()) || (header.chl() && header.ack()))
+                    && header.seqNum() + 1 == synAckPacket.getAckNum()) {
+                try {
+                    printStatus("Resending SYN ACK!");
+                    this.send(synAckPacket);
+                } catch (IOException e) {
+                    printDebug("EXCEPTION: " + e.getMessage());
+                }
+                return false;
+            }
+        }
+        if (this.getState().equals(SocketState.TIMED_WAIT)) {
+            // the other endpoint resends its FIN until it gets our FIN-ACK
+            PacketHeader header = packet.getHeader();
+            if (header.fin() && !header.ack()) {
+                try {
+                    this.send(createFinAckPacket(this.destIp));
+                } catch (IOException e) {
+                    printDebug("EXCEPTION: " + e.getMessage());
+                }
             }
+            return false;
+        }
+        DTPMultiplexer mux = this.multiplexer;
+        PacketHeader header = packet.getHeader();
+        if (header.str()) {
+            if (mux != null) mux.received(packet);
+            return false;
+        }
+        if (mux != null && header.fin() && !header.ack()) {
+            // the FIN still goes to recv(), which answers it
+            mux.peerClosed();
         }
+        if (!packets.offer(packet, this.maxWindowSize)) {
+            droppedPackets++;
+            if (listener != null) listener.droppedPackets++;
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * The pool holds buffers big enough for the MSS the socket offers, which
+     * the negotiated MSS never exceeds.
+     */
+    private BufferPool createBufferPool() {
+        int bufferSize = Packet.MAX_HEADER_SIZE + mss;
+        return new BufferPool(bufferSize, Math.max(MIN_POOL_BUFFERS, POOL_BYTES / bufferSize));
     }
 
 
     /*******************************************************
      * Packet creation helper methods
      *******************************************************/
-    private Packet packetHelper(byte[] data) {
-        Packet packet = new Packet(data, true);
+    private Packet packetHelper(byte[] data, byte[] options) {
+        return this.packetHelper(new Packet(data, options));
+    }
+    private Packet packetHelper(Packet packet) {
         packet.setSrcPort(srcPort);
         packet.setDestPort(destPort);
         packet.setSeqNum(seqNum);
@@ -929,24 +2346,62 @@ public class DTPSocket {
         packet.setWindowSize(maxWindowSize);
         return packet;
     }
+    private Packet packetHelper(byte[] data) {
+        return this.packetHelper(data, new byte[0]);
+    }
     private Packet packetHelper() {
         return this.packetHelper(new byte[0]);
     }
-    private byte[] createFinPacket(InetAddress addr) {
+    private Packet createFinPacket(InetAddress addr) {
         Packet packet = packetHelper();
         packet.setFin(true);
         packet.setChecksum(calculateChecksum(packet, addr));
-        return packet.getPacket();
+        return packet;
     }
-    private byte[] createFinAckPacket(InetAddress addr) {
+    private Packet createFinAckPacket(InetAddress addr) {
         Packet packet = packetHelper();
         packet.setFin(true);
         packet.setAck(true);
         packet.setChecksum(calculateChecksum(packet, addr));
-        return packet.getPacket();
+        return packet;
+    }
+    private Packet createPacketReceived(Datagram msg) {
+        return new Packet(msg.getBuffer());
+    }
+
+
+    /*
+     * The MSS option is sent with SYN, CHL and CHL-ACK packets. Endpoints that don't send
+     * it are assumed to use the default MSS. The CRC32C option is sent along
+     * when the endpoint offers (SYN) or agrees to (CHL) CRC32C checksums.
+     * A SYN presenting a resumption ticket, and the SYN-ACK of a resumed session,
+     * also carry the ticket option, since there is no CHL.
+     */
+    private static byte[] createHandshakeOptions(int mss, boolean crc32c, byte[] ticket) {
+        byte[] options = Packet.createOption(Packet.OPTION_MSS, ConvertLib.convertShortToBytes((short) mss));
+        if (crc32c) {
+            options = appendOption(options, Packet.createOption(Packet.OPTION_CRC32C, new byte[0]));
+        }
+        if (ticket != null) {
+            options = appendOption(options, Packet.createOption(Packet.OPTION_TICKET, ticket));
+        }
+        return options;
+    }
+    private static byte[] appendOption(byte[] options, byte[] option) {
+        byte[] result = Arrays.copyOf(options, options.length + option.length);
+        System.arraycopy(option, 0, result, options.length, option.length);
+        return result;
     }
-    private Packet createPacketReceived(byte[] data) {
-        return new Packet(data, false);
+    private static boolean hasCrc32cOption(Packet packet) {
+        return packet.findOption(Packet.OPTION_CRC32C) >= 0;
+    }
+    private static int getMssOption(Packet packet) {
+        byte[] option = packet.getOption(Packet.OPTION_MSS);
+        if (option == null || option.length != 2) {
+            return Packet.MAX_PACKET_DATA_SIZE;
+        }
+        int mss = ConvertLib.convertBytesToShort(option[0], option[1]) & 0xFFFF;
+        return Math.max(1, Math.min(mss, Packet.MAX_MSS));
     }
 
 
@@ -984,31 +2439,48 @@ public class DTPSocket {
         return calculateChecksum(packet, this.destIp);
     }
     private short calculateChecksum(Packet packet, InetAddress destIp) {
-        byte[] src = this.srcIp.getAddress();
-        byte[] dest = destIp.getAddress();
-        short checksum = (short)(ConvertLib.convertBytesToShort(src[0], src[1])
-                + ConvertLib.convertBytesToShort(src[2], src[3])
-                + ConvertLib.convertBytesToShort(dest[0], dest[1])
-                + ConvertLib.convertBytesToShort(dest[2], dest[3]));
+        return calculateChecksum(packet, destIp, this.useCrc32c);
+    }
+    private short calculateChecksum(Packet packet, InetAddress destIp, boolean useCrc32c) {
+        packet.setCrc(useCrc32c);
         packet.setChecksum((short)0);
-        byte[] data = packet.getPacket();
-        for (int i=0; i<data.length; i+=2) {
-            if (i == data.length - 1) {
-                checksum += data[i];
-            } else {
-                checksum += (short)(ConvertLib.convertBytesToShort(data[i], data[i+1]));
-            }
+        ByteBuffer buffer = packet.getBuffer();
+        int pseudoHeaderSum = sumPseudoHeader(destIp, packet.getDestPort());
+        if (useCrc32c) {
+            return Checksum.crc32c(buffer, buffer.limit(), pseudoHeaderSum);
+        }
+        return Checksum.internet(buffer, buffer.limit(), pseudoHeaderSum);
+    }
+
+    /*
+     * The CRC flag tells which checksum the packet carries, so the packet can be
+     * checked before it is known which connection it belongs to.
+     */
+    private boolean isChecksumGood(Packet p, InetAddress destIp, int length) {
+        if (length < Packet.MIN_HEADER_SIZE) return false;
+        if (p.getLength() != length) return false;
+        ByteBuffer buffer = p.getBuffer();
+        int pseudoHeaderSum = sumPseudoHeader(destIp, p.getSrcPort());
+        if (p.getCrc()) {
+            return Checksum.crc32c(buffer, length, pseudoHeaderSum) == p.getChecksum();
         }
-        return checksum;
+        return Checksum.isInternetGood(buffer, length, pseudoHeaderSum);
     }
-    private boolean isChecksumGood(DatagramPacket msg) {
-        Packet p = new Packet(msg.getData(), false);
-        short expectedChecksum = p.getChecksum();
-        InetAddress destIp = msg.getAddress();
-        p.setChecksum((short)0);
-        short actualChecksum = calculateChecksum(p, destIp);
-        p.setChecksum(expectedChecksum);
-        return expectedChecksum == actualChecksum;
+
+    /*
+     * The pseudo-header sum only depends on the IP addresses. It is calculated
+     * once per connection. serverSocket uses the sums of its accept()ed sockets,
+     * and only calculates it again for handshakes and unknown clients.
+     */
+    private int sumPseudoHeader(InetAddress destIp, short destPort) {
+        if (destIp.equals(this.destIp)) {
+            return pseudoHeaderSum;
+        }
+        DTPSocket socky = connections == null ? null : connections.get(destIp, destPort);
+        if (socky != null) {
+            return socky.pseudoHeaderSum;
+        }
+        return Checksum.sumPseudoHeader(this.srcIp, destIp);
     }
 
 
@@ -1022,14 +2494,101 @@ public class DTPSocket {
         return srcPort;
     }
 
+    /**
+     * @return the number of accept()ed sockets of serverSocket that aren't closed.
+     */
+    public int getConnectionCount() {
+        return connections == null ? 0 : connections.size();
+    }
+
+    /**
+     * @return the number of clients serverSocket dropped because its backlog was full.
+     */
+    public long getDroppedRequests() {
+        return droppedRequests;
+    }
+
+    /**
+     * @return the number of wrong, forged or expired answers to challenges serverSocket got.
+     */
+    public long getFailedChallenges() {
+        return failedChallenges;
+    }
+
+    /**
+     * @return the number of packets dropped because the receive buffer was full.
+     * serverSocket counts the packets of its accept()ed sockets.
+     */
+    public long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * @return the cap set by maxRate(), 0 for no limit.
+     */
+    public long getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * @return the cap set by maxTotalRate(), 0 for no limit.
+     */
+    public long getMaxTotalRate() {
+        return totalRate.getRate();
+    }
+
+    /**
+     * @return the receiving window in chunks, as tuned so far if autotuned.
+     */
+    public int getWindow() {
+        return maxWindowSize;
+    }
+
+    /**
+     * @return the bytes the receiving windows of the live connections take.
+     * serverSocket counts its accept()ed sockets.
+     */
+    public long getReceiveMemory() {
+        return receiveBudget.getUsed();
+    }
+
+    /**
+     * @return the cap set by maxReceiveMemory().
+     */
+    public long getMaxReceiveMemory() {
+        return receiveBudget.getLimit();
+    }
+
+    /**
+     * The pool of buffers that datagrams for this socket are received into.
+     * Sockets returned by accept() share the pool of their serverSocket.
+     * @return the buffer pool, or null if the socket never connected or listened.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
 
     /*******************************************************
      * State getters and setters
      * Very useful for debugging
      *******************************************************/
     private void setState(SocketState state) {
-        this.state = state;
+        SocketState previous;
+        synchronized (this) {
+            previous = this.state;
+            this.state = state;
+        }
         printDebug("STATE CHANGED TO : " + state.toString());
+        // the table of serverSocket only keeps live connections
+        if (listener != null && previous != SocketState.CLOSED && state == SocketState.CLOSED) {
+            listener.connectionClosed(this);
+        }
+        if (state == SocketState.ESTABLISHED) {
+            reserveWindow();
+        } else if (state == SocketState.CLOSED) {
+            releaseWindow();
+        }
     }
     private SocketState getState() {
         return state;
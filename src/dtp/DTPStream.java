@@ -0,0 +1,418 @@
+package dtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * A stream of a DTPMultiplexer, a pair of byte streams to and from the other
+ * endpoint that don't wait on the other streams of the connection.
+ *
+ * Each direction buffers up to DTPMultiplexer.STREAM_WINDOW bytes. The other
+ * endpoint may only send as many bytes as the application here has room for, so
+ * a stream the application doesn't read holds up nobody but itself. Bytes that
+ * arrive out of order wait in the stream for the ones before them. Bytes sent
+ * stay in the stream until the other endpoint ACKed them, so lost ones can be
+ * sent again. All the state of a stream is guarded by the lock of its multiplexer.
+ */
+public class DTPStream {
+
+    private final static int CHUNK_SIZE = 64 * 1024;
+
+    private final DTPMultiplexer mux;
+    private final int id;
+    private final InputStream input;
+    private final OutputStream output;
+
+    // receiving, offsets count the bytes since the stream was opened
+    private final Chunks received;
+    private final TreeMap<Long, Long> receivedRanges;  // start to end of the runs after a hole
+    private long receivedOffset;    // every byte before it was received
+    private long consumed;          // bytes read by the application
+    private long advertisedLimit;   // the other endpoint may send up to here
+    private long finOffset = -1;    // where the other endpoint's bytes end, once known
+    private boolean isWindowLost;
+    private boolean isInputClosed;
+
+    // sending
+    private final Chunks toSend;
+    private final TreeMap<Long, Long> ackedRanges;     // start to end of the runs after a hole
+    private final ArrayDeque<long[]> lost;             // offset, length and FIN of lost frames
+    private long written;           // bytes written by the application
+    private long sentOffset;        // bytes sent at least once
+    private long ackedOffset;       // every byte before it was ACKed
+    private long peerLimit;         // we may send up to here
+    private boolean isOutputClosed;
+    private boolean isFinSent;
+    private boolean isFinAcked;
+
+    DTPStream(DTPMultiplexer mux, int id) {
+        this.mux = mux;
+        this.id = id;
+        this.received = new Chunks();
+        this.receivedRanges = new TreeMap<>();
+        this.toSend = new Chunks();
+        this.ackedRanges = new TreeMap<>();
+        this.lost = new ArrayDeque<>();
+        this.advertisedLimit = DTPMultiplexer.STREAM_WINDOW;
+        this.peerLimit = DTPMultiplexer.STREAM_WINDOW;
+        this.input = new StreamInput();
+        this.output = new StreamOutput();
+    }
+
+    /**
+     * @return the id of the stream, odd if the client opened it, even otherwise.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the bytes the other endpoint sends on the stream. The stream ends
+     * when the other endpoint closes its output stream.
+     */
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    /**
+     * @return the bytes sent to the other endpoint. Closing the output stream
+     * flushes it and ends the input stream of the other endpoint.
+     */
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Closes both directions of the stream. Bytes the other endpoint still sends
+     * are dropped.
+     * @throws IOException if the output stream can't be flushed.
+     */
+    public void close() throws IOException {
+        input.close();
+        output.close();
+    }
+
+
+    /*******************************************************
+     * Called by the multiplexer, holding its lock
+     *******************************************************/
+    /*
+     * Bytes of a DATA frame, in any order. Bytes that were received already or
+     * that break the window are dropped.
+     */
+    void received(ByteBuffer buffer, int index, long offset, int length, boolean isFin) {
+        long end = offset + length;
+        if (offset < 0 || end > advertisedLimit || (finOffset >= 0 && end > finOffset)) return;
+        if (isFin) finOffset = end;
+        if (end <= receivedOffset) return;
+
+        long start = Math.max(offset, receivedOffset);
+        received.put(start, buffer, index + (int) (start - offset), (int) (end - start));
+        if (start > receivedOffset) {
+            receivedRanges.merge(start, end, Math::max);
+            return;
+        }
+        receivedOffset = end;
+        Map.Entry<Long, Long> range;
+        while ((range = receivedRanges.firstEntry()) != null && range.getKey() <= receivedOffset) {
+            receivedOffset = Math.max(receivedOffset, range.getValue());
+            receivedRanges.pollFirstEntry();
+        }
+        if (isInputClosed) {
+            discardReceived();
+        }
+    }
+
+    void windowUpdated(long limit) {
+        peerLimit = Math.max(peerLimit, limit);
+    }
+
+    /*
+     * The window is opened again once the application read half of it, or
+     * right away if the WINDOW frame that opened it was lost.
+     */
+    boolean isWindowUpdateDue() {
+        if (isFinReceived()) return false;
+        return isWindowLost
+                || consumed + DTPMultiplexer.STREAM_WINDOW - advertisedLimit >= DTPMultiplexer.STREAM_WINDOW / 2;
+    }
+
+    long updateWindow() {
+        isWindowLost = false;
+        advertisedLimit = Math.max(advertisedLimit, consumed + DTPMultiplexer.STREAM_WINDOW);
+        return advertisedLimit;
+    }
+
+    void windowLost() {
+        isWindowLost = true;
+    }
+
+    /*
+     * New bytes the stream can send, within the window of the other endpoint.
+     */
+    int sendable() {
+        return (int) Math.max(0, Math.min(written, peerLimit) - sentOffset);
+    }
+
+    boolean isFinDue() {
+        return isOutputClosed && !isFinSent && written == sentOffset;
+    }
+
+    long getSentOffset() {
+        return sentOffset;
+    }
+
+    /*
+     * Marks the next length new bytes as sent, returns true if they end the stream.
+     */
+    boolean dataSent(int length) {
+        sentOffset += length;
+        if (isOutputClosed && !isFinSent && sentOffset == written) {
+            isFinSent = true;
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Copies sent bytes that aren't ACKed yet into the packet at index.
+     */
+    void copySent(ByteBuffer dst, int index, long offset, int length) {
+        toSend.get(offset, dst, index, length);
+    }
+
+    void dataAcked(long offset, int length, boolean isFin) {
+        long end = offset + length;
+        isFinAcked |= isFin;
+        if (offset > ackedOffset) {
+            ackedRanges.merge(offset, end, Math::max);
+            return;
+        }
+        ackedOffset = Math.max(ackedOffset, end);
+        Map.Entry<Long, Long> range;
+        while ((range = ackedRanges.firstEntry()) != null && range.getKey() <= ackedOffset) {
+            ackedOffset = Math.max(ackedOffset, range.getValue());
+            ackedRanges.pollFirstEntry();
+        }
+        toSend.discard(ackedOffset);
+    }
+
+    void dataLost(long offset, int length, boolean isFin) {
+        lost.add(new long[] {offset, length, isFin ? 1 : 0});
+    }
+
+    /*
+     * Takes the next lost frame that wasn't ACKed since, if any.
+     */
+    long[] pollRetransmission() {
+        long[] frame;
+        while ((frame = lost.poll()) != null) {
+            if (!isAcked(frame[0], frame[0] + frame[1], frame[2] != 0)) return frame;
+        }
+        return null;
+    }
+
+    private boolean isAcked(long offset, long end, boolean isFin) {
+        if (isFin && !isFinAcked) return false;
+        if (end <= ackedOffset) return true;
+        Map.Entry<Long, Long> range = ackedRanges.floorEntry(offset);
+        return range != null && range.getValue() >= end;
+    }
+
+    /*
+     * The multiplexer forgets the stream once both endpoints got the other's FIN.
+     */
+    boolean isFinished() {
+        return isOutputFinished() && isFinReceived();
+    }
+
+    private boolean isOutputFinished() {
+        return isFinAcked && ackedOffset == written;
+    }
+
+    private boolean isFinReceived() {
+        return finOffset >= 0 && receivedOffset == finOffset;
+    }
+
+    private void discardReceived() {
+        consumed = receivedOffset;
+        received.discard(consumed);
+    }
+
+    /*
+     * Bytes of a direction of the stream by their offset, in chunks that are
+     * allocated as bytes arrive and dropped once they are behind the stream.
+     */
+    private static class Chunks {
+        private final ArrayList<byte[]> chunks = new ArrayList<>();
+        private long base;      // offset of the first chunk, a multiple of CHUNK_SIZE
+
+        void put(long offset, ByteBuffer src, int index, int length) {
+            while (length > 0) {
+                int chunk = (int) ((offset - base) / CHUNK_SIZE);
+                while (chunks.size() <= chunk) {
+                    chunks.add(new byte[CHUNK_SIZE]);
+                }
+                int start = (int) ((offset - base) % CHUNK_SIZE);
+                int n = Math.min(length, CHUNK_SIZE - start);
+                src.get(index, chunks.get(chunk), start, n);
+                offset += n;
+                index += n;
+                length -= n;
+            }
+        }
+
+        void put(long offset, byte[] src, int off, int length) {
+            put(offset, ByteBuffer.wrap(src), off, length);
+        }
+
+        void get(long offset, ByteBuffer dst, int index, int length) {
+            while (length > 0) {
+                int start = (int) ((offset - base) % CHUNK_SIZE);
+                int n = Math.min(length, CHUNK_SIZE - start);
+                dst.put(index, chunks.get((int) ((offset - base) / CHUNK_SIZE)), start, n);
+                offset += n;
+                index += n;
+                length -= n;
+            }
+        }
+
+        void get(long offset, byte[] dst, int off, int length) {
+            get(offset, ByteBuffer.wrap(dst), off, length);
+        }
+
+        /*
+         * Drops the chunks that only hold bytes before offset.
+         */
+        void discard(long offset) {
+            while (!chunks.isEmpty() && offset - base >= CHUNK_SIZE) {
+                chunks.remove(0);
+                base += CHUNK_SIZE;
+            }
+        }
+    }
+
+    private class StreamInput extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        /**
+         * Reads up to len bytes, blocking only if no bytes are available.
+         * @return the number of bytes read, or -1 at the end of the stream.
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) return 0;
+            synchronized (mux) {
+                while (consumed == receivedOffset) {
+                    if (isFinReceived() || isInputClosed) return -1;
+                    mux.checkOpen();
+                    mux.waitForChange();
+                }
+                int n = (int) Math.min(len, receivedOffset - consumed);
+                received.get(consumed, b, off, n);
+                consumed += n;
+                received.discard(consumed);
+                if (isWindowUpdateDue()) mux.streamChanged();
+                return n;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (mux) {
+                return (int) Math.min(Integer.MAX_VALUE, receivedOffset - consumed);
+            }
+        }
+
+        /**
+         * Drops the bytes received so far and the ones still to come, so the
+         * other endpoint can finish its output.
+         */
+        @Override
+        public void close() {
+            synchronized (mux) {
+                if (isInputClosed) return;
+                isInputClosed = true;
+                discardReceived();
+                mux.streamChanged();
+            }
+        }
+    }
+
+    private class StreamOutput extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        /**
+         * Copies the bytes into the stream's buffer and sends what the windows
+         * let go, blocking only while the buffer is full.
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            synchronized (mux) {
+                while (len > 0) {
+                    if (isOutputClosed) throw new IOException("Stream is closed!");
+                    mux.checkOpen();
+                    int free = DTPMultiplexer.STREAM_WINDOW - (int) (written - ackedOffset);
+                    if (free == 0) {
+                        mux.waitForChange();
+                        continue;
+                    }
+                    int n = Math.min(len, free);
+                    toSend.put(written, b, off, n);
+                    written += n;
+                    off += n;
+                    len -= n;
+                    mux.streamChanged();
+                }
+            }
+        }
+
+        /**
+         * Blocks until the other endpoint got everything written so far.
+         */
+        @Override
+        public void flush() throws IOException {
+            synchronized (mux) {
+                while (ackedOffset < written) {
+                    mux.checkOpen();
+                    mux.waitForChange();
+                }
+            }
+        }
+
+        /**
+         * Flushes the stream and ends the input stream of the other endpoint.
+         */
+        @Override
+        public void close() throws IOException {
+            synchronized (mux) {
+                if (!isOutputClosed) {
+                    isOutputClosed = true;
+                    mux.streamChanged();
+                }
+                while (!isOutputFinished()) {
+                    mux.checkOpen();
+                    mux.waitForChange();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package dtp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A datagram received from the DatagramChannel, waiting in a socket's
+ * receive buffer. The buffer holds the raw packet from index 0 up to its limit.
+ * The header is decoded once when the datagram is received.
+ * Datagrams come from a BufferPool, each with its own buffer and header, and go
+ * back to it with release(), to be received into again.
+ */
+class Datagram {
+
+    private final ByteBuffer buffer;
+    private final PacketHeader header;
+    private final BufferPool pool;
+    private InetSocketAddress address;
+
+    Datagram(ByteBuffer buffer, BufferPool pool) {
+        this.buffer = buffer;
+        this.header = new PacketHeader();
+        this.pool = pool;
+    }
+
+    /*
+     * Called once the packet in the buffer was received from address.
+     */
+    void received(InetSocketAddress address, Packet packet) {
+        this.address = address;
+        header.decode(packet);
+    }
+
+    /**
+     * Gives the datagram back to its pool. The datagram can't be used afterwards.
+     */
+    void release() {
+        pool.release(this);
+    }
+
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    PacketHeader getHeader() {
+        return header;
+    }
+
+    InetAddress getAddress() {
+        return address.getAddress();
+    }
+
+    /**
+     * @return the number of bytes received.
+     */
+    int getLength() {
+        return buffer.limit();
+    }
+}
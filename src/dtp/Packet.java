@@ -1,6 +1,7 @@
 package dtp;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import util.ConvertLib;
@@ -14,29 +15,94 @@ public class Packet {
 
     private final static String ENCODING = "UTF-8";
 
-    public final static byte MIN_HEADER_SIZE = 18;
-    public final static short MAX_PACKET_SIZE = 1000 + MIN_HEADER_SIZE;
-    public final static int MAX_PACKET_DATA_SIZE = MAX_PACKET_SIZE - MIN_HEADER_SIZE;
-
-    private byte[] bytes;
+    public final static byte MIN_HEADER_SIZE = 20;
+    public final static short MAX_HEADER_SIZE = 255;
+    public final static int MAX_PACKET_DATA_SIZE = 1000;
+    public final static short MAX_PACKET_SIZE = MAX_HEADER_SIZE + MAX_PACKET_DATA_SIZE;
+    // largest payload that still fits a header in a single UDP datagram
+    public final static int MAX_MSS = 65507 - MAX_HEADER_SIZE;
+
+    // option kinds carried in the options field, encoded as kind|length|value
+    public final static byte OPTION_SACK = 1;
+    public final static byte OPTION_MSS = 2;
+    public final static byte OPTION_LENGTH = 3;
+    public final static byte OPTION_CRC32C = 4;
+    public final static byte OPTION_TICKET = 5;
+    public final static byte OPTION_FEC = 6;
+    public final static byte OPTION_STREAM = 7;
+    public final static byte OPTION_WINDOW = 8;
+
+    private ByteBuffer bytes;
 
     /**
      * Packet representation with methods that make setting bytes
      * on a byte array infinitely easier to do.
      * 
+     * Packets are only as long as their header and payload. A raw packet may be
+     * backed by a longer receive buffer, the header tells where the packet ends.
+     * 
      * @param data the contents of the packet
      * @param isData set to true if data is payload, false if data is the raw packet
      */
     public Packet(byte[] data, boolean isData) {
         if (isData) {
-            this.bytes = new byte[MAX_PACKET_SIZE];
+            this.bytes = ByteBuffer.allocate(MIN_HEADER_SIZE + data.length);
             setHeaderLength(MIN_HEADER_SIZE);
             setData(data);
         } else {
-            bytes = data;
+            this.bytes = ByteBuffer.wrap(data);
         }
     }
 
+    /**
+     * Packet representation with a payload and header options.
+     * 
+     * @param data the payload of the packet
+     * @param options the encoded options, see createOption()
+     */
+    public Packet(byte[] data, byte[] options) {
+        this.bytes = ByteBuffer.allocate(MIN_HEADER_SIZE + options.length + data.length);
+        setHeaderLength((byte)(MIN_HEADER_SIZE + options.length));
+        setOptions(options);
+        setData(data);
+    }
+
+    /**
+     * Packet view over a raw packet stored in a buffer, such as a buffer a
+     * datagram was received into. The packet starts at index 0 of the buffer.
+     * Fields are read and written in place, so payloads can be placed in or
+     * copied out of the buffer without an intermediate byte[].
+     * 
+     * @param buffer the buffer holding the raw packet
+     */
+    public Packet(ByteBuffer buffer) {
+        this.bytes = buffer;
+    }
+
+    /**
+     * Points this packet at another buffer, so one Packet can be reused as a
+     * view over every datagram a thread handles without creating garbage.
+     * 
+     * @param buffer the buffer holding the raw packet
+     * @return this packet
+     */
+    public Packet wrap(ByteBuffer buffer) {
+        this.bytes = buffer;
+        return this;
+    }
+
+    /**
+     * Clears the header so a new packet can be written in place.
+     * The header length is set to the minimum header size.
+     */
+    public void clearHeader() {
+        bytes.clear();
+        bytes.putLong(0, 0L);
+        bytes.putLong(8, 0L);
+        bytes.putInt(16, 0);
+        setHeaderLength(MIN_HEADER_SIZE);
+    }
+
     /**
      * Packet representation with no payload.
      */
@@ -45,120 +111,213 @@ public class Packet {
     }
 
     public short getSrcPort() {
-        return ConvertLib.convertBytesToShort(bytes[0], bytes[1]);
+        return bytes.getShort(0);
     }
 
     public void setSrcPort(short srcPort) {
-        byte[] b = ConvertLib.convertShortToBytes(srcPort);
-        bytes[0] = b[0];
-        bytes[1] = b[1];
+        bytes.putShort(0, srcPort);
     }
 
     public short getDestPort() {
-        return ConvertLib.convertBytesToShort(bytes[2], bytes[3]);
+        return bytes.getShort(2);
     }
 
     public void setDestPort(short destPort) {
-        bytes[2] = (byte) (destPort >> 8);
-        bytes[3] = (byte) (destPort);
+        bytes.putShort(2, destPort);
     }
 
     public int getSeqNum() {
-        return ConvertLib.convertBytesToInt(bytes[4], bytes[5], bytes[6], bytes[7]);
+        return bytes.getInt(4);
     }
 
     public void setSeqNum(int seqNum) {
-        byte[] b = ConvertLib.convertIntToBytes(seqNum);
-        bytes[4] = b[0];
-        bytes[5] = b[1];
-        bytes[6] = b[2];
-        bytes[7] = b[3];
+        bytes.putInt(4, seqNum);
     }
 
     public int getAckNum() {
-        return ConvertLib.convertBytesToInt(bytes[8], bytes[9], bytes[10], bytes[11]);
+        return bytes.getInt(8);
     }
 
     public void setAckNum(int ackNum) {
-        byte[] b = ConvertLib.convertIntToBytes(ackNum);
-        bytes[8] = b[0];
-        bytes[9] = b[1];
-        bytes[10] = b[2];
-        bytes[11] = b[3];
+        bytes.putInt(8, ackNum);
     }
 
     public short getChecksum() {
-        return ConvertLib.convertBytesToShort(bytes[12], bytes[13]);
+        return bytes.getShort(12);
     }
 
     public void setChecksum(short checksum) {
-        bytes[12] = (byte) (checksum >> 8);
-        bytes[13] = (byte) (checksum);
+        bytes.putShort(12, checksum);
     }
 
     public short getWindowSize() {
-        return ConvertLib.convertBytesToShort(bytes[14], bytes[15]);
+        return bytes.getShort(14);
     }
 
     public void setWindowSize(short windowSize) {
-        bytes[14] = (byte) (windowSize >> 8);
-        bytes[15] = (byte) (windowSize);
+        bytes.putShort(14, windowSize);
     }
 
     public boolean getSyn() {
-        return ((bytes[16] >> 7) & 0x01) == 1;
+        return ((bytes.get(16) >> 7) & 0x01) == 1;
     }
 
     public void setSyn(boolean syn) {
-        bytes[16] = (byte) ((bytes[16] & 0x7f) | ((syn ? 1 : 0) << 7));
+        bytes.put(16, (byte) ((bytes.get(16) & 0x7f) | ((syn ? 1 : 0) << 7)));
     }
 
     public boolean getChl() {
-        return (bytes[16] >> 6 & 0x01) == 1;
+        return (bytes.get(16) >> 6 & 0x01) == 1;
     }
 
     public void setChl(boolean chl) {
-        bytes[16] = (byte) (bytes[16] & 0xbf | (chl ? 1 : 0) << 6);
+        bytes.put(16, (byte) (bytes.get(16) & 0xbf | (chl ? 1 : 0) << 6));
     }
 
     public boolean getAck() {
-        return (bytes[16] >> 5 & 0x01) == 1;
+        return (bytes.get(16) >> 5 & 0x01) == 1;
     }
 
     public void setAck(boolean ack) {
-        bytes[16] = (byte) (bytes[16] & 0xdf | (ack ? 1 : 0) << 5);
+        bytes.put(16, (byte) (bytes.get(16) & 0xdf | (ack ? 1 : 0) << 5));
     }
 
     public boolean getFin() {
-        return (bytes[16] >> 4 & 0x01) == 1;
+        return (bytes.get(16) >> 4 & 0x01) == 1;
+    }
+
+    public byte getFlags() {
+        return bytes.get(16);
     }
 
     public void setFin(boolean fin) {
-        bytes[16] = (byte) (bytes[16] & 0xef | (fin ? 1 : 0) << 4);
+        bytes.put(16, (byte) (bytes.get(16) & 0xef | (fin ? 1 : 0) << 4));
+    }
+
+    public boolean getCrc() {
+        return (bytes.get(16) >> 3 & 0x01) == 1;
+    }
+
+    public void setCrc(boolean crc) {
+        bytes.put(16, (byte) (bytes.get(16) & 0xf7 | (crc ? 1 : 0) << 3));
+    }
+
+    public boolean getPar() {
+        return (bytes.get(16) >> 2 & 0x01) == 1;
+    }
+
+    public void setPar(boolean par) {
+        bytes.put(16, (byte) (bytes.get(16) & 0xfb | (par ? 1 : 0) << 2));
+    }
+
+    public boolean getStr() {
+        return (bytes.get(16) >> 1 & 0x01) == 1;
     }
 
-    public byte getHeaderLength() {
-        return bytes[17];
+    public void setStr(boolean str) {
+        bytes.put(16, (byte) (bytes.get(16) & 0xfd | (str ? 1 : 0) << 1));
+    }
+
+    public int getHeaderLength() {
+        return bytes.get(17) & 0xFF;
     }
 
     public void setHeaderLength(byte headerLength) {
-        bytes[17] = headerLength;
+        bytes.put(17, headerLength);
+    }
+
+    public int getDataLength() {
+        return bytes.getShort(18) & 0xFFFF;
+    }
+
+    public void setDataLength(int dataLength) {
+        bytes.putShort(18, (short) dataLength);
     }
 
     public byte[] getOptions() {
-        return Arrays.copyOfRange(bytes, 18, getHeaderLength());
+        byte[] options = new byte[getHeaderLength() - MIN_HEADER_SIZE];
+        bytes.get(MIN_HEADER_SIZE, options);
+        return options;
     }
 
     public void setOptions(byte[] options) {
-        System.arraycopy(options, 0, bytes, 18, getHeaderLength() - 18);
+        bytes.put(MIN_HEADER_SIZE, options, 0, getHeaderLength() - MIN_HEADER_SIZE);
+    }
+
+    /**
+     * Finds an option in the options field.
+     * @param kind the option kind, one of the OPTION_ constants
+     * @return the value of the option, or null if the packet does not carry it.
+     */
+    public byte[] getOption(byte kind) {
+        int index = findOption(kind);
+        if (index < 0) {
+            return null;
+        }
+        byte[] value = new byte[bytes.get(index-1) & 0xFF];
+        bytes.get(index, value);
+        return value;
+    }
+
+    /**
+     * Finds an option in the options field without copying it.
+     * The length of the value is the byte before the returned index.
+     * @param kind the option kind, one of the OPTION_ constants
+     * @return the index of the value of the option in the packet,
+     * or -1 if the packet does not carry it.
+     */
+    public int findOption(byte kind) {
+        int headerLength = getHeaderLength();
+        int i = MIN_HEADER_SIZE;
+        while (i + 1 < headerLength) {
+            int length = bytes.get(i+1) & 0xFF;
+            if (bytes.get(i) == kind) {
+                return i + 2 + length <= headerLength ? i + 2 : -1;
+            }
+            i += 2 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes an option to be placed in the options field.
+     * @param kind the option kind, one of the OPTION_ constants
+     * @param value the value of the option
+     * @return byte[] of the encoded option.
+     */
+    public static byte[] createOption(byte kind, byte[] value) {
+        byte[] option = new byte[value.length + 2];
+        option[0] = kind;
+        option[1] = (byte) value.length;
+        System.arraycopy(value, 0, option, 2, value.length);
+        return option;
     }
 
     public byte[] getData() {
-        return Arrays.copyOfRange(bytes, getHeaderLength(), bytes.length);
+        byte[] data = new byte[getDataLength()];
+        bytes.get(getHeaderLength(), data);
+        return data;
     }
 
     public void setData(byte[] data) {
-        System.arraycopy(data, 0, bytes, getHeaderLength(), data.length);
+        setDataLength(data.length);
+        bytes.put(getHeaderLength(), data);
+    }
+
+    /**
+     * Decodes the header fields into a new PacketHeader.
+     * @return the header of the packet.
+     */
+    public PacketHeader getHeader() {
+        return new PacketHeader(getSrcPort(), getDestPort(), getSeqNum(), getAckNum(),
+                getChecksum(), getWindowSize(), getFlags(), getHeaderLength(), getDataLength());
+    }
+
+    /**
+     * @return the length of the packet in bytes, header and payload.
+     */
+    public int getLength() {
+        return getHeaderLength() + getDataLength();
     }
 
     /**
@@ -166,6 +325,19 @@ public class Packet {
      * @return byte[] of the packet information (header and payload).
      */
     public byte[] getPacket() {
+        byte[] packet = new byte[getLength()];
+        bytes.get(0, packet);
+        return packet;
+    }
+
+    /**
+     * Get the buffer backing the packet, ready to be written to a channel.
+     * Its position is set to 0 and its limit to the end of the packet.
+     * @return ByteBuffer of the packet information (header and payload).
+     */
+    public ByteBuffer getBuffer() {
+        bytes.clear();
+        bytes.limit(getLength());
         return bytes;
     }
 
@@ -183,6 +355,7 @@ public class Packet {
         boolean chl = false;
         boolean ack = true;
         boolean fin = true;
+        boolean crc = true;
         String msg = "Hello world!";
 
         Packet packet = new Packet(msg.getBytes(ENCODING), true);
@@ -196,6 +369,7 @@ public class Packet {
         packet.setChl(chl);
         packet.setAck(ack);
         packet.setFin(fin);
+        packet.setCrc(crc);
 
         System.out.println("--- test ---");
         System.out.print("srcPort:\t");
@@ -218,10 +392,37 @@ public class Packet {
         System.out.println(ack == packet.getAck());
         System.out.print("fin:\t\t");
         System.out.println(fin == packet.getFin());
+        System.out.print("crc:\t\t");
+        System.out.println(crc == packet.getCrc() && ack == packet.getAck() && fin == packet.getFin());
         System.out.print("headerLength:\t");
         System.out.println(MIN_HEADER_SIZE == packet.getHeaderLength());
         System.out.print("msg:\t\t");
         System.out.println(msg.equals(new String(packet.getData(), ENCODING)));
+        System.out.print("length:\t\t");
+        System.out.println(MIN_HEADER_SIZE + msg.length() == packet.getPacket().length);
+
+        byte[] receiveBuffer = Arrays.copyOf(packet.getPacket(), MAX_PACKET_SIZE);
+        Packet receivedPacket = new Packet(receiveBuffer, false);
+        System.out.print("received msg:\t");
+        System.out.println(msg.equals(new String(receivedPacket.getData(), ENCODING)));
+
+        byte[] sack = ConvertLib.convertIntToBytes(seqNum);
+        Packet optionPacket = new Packet(msg.getBytes(ENCODING), createOption(OPTION_SACK, sack));
+        System.out.print("option:\t\t");
+        System.out.println(Arrays.equals(sack, optionPacket.getOption(OPTION_SACK)));
+        System.out.print("no option:\t");
+        System.out.println(packet.getOption(OPTION_SACK) == null);
+        System.out.print("option msg:\t");
+        System.out.println(msg.equals(new String(optionPacket.getData(), ENCODING)));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        direct.put(packet.getBuffer());
+        Packet bufferPacket = new Packet(direct);
+        System.out.print("buffer seqNum:\t");
+        System.out.println(seqNum == bufferPacket.getSeqNum());
+        System.out.print("buffer msg:\t");
+        System.out.println(msg.equals(new String(bufferPacket.getData(), ENCODING))
+                && bufferPacket.getBuffer().remaining() == packet.getLength());
     }
 
 }
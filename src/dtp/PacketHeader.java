@@ -0,0 +1,131 @@
+package dtp;
+
+/**
+ * Copy of the header fields of a packet.
+ * A received datagram is decoded once into the PacketHeader of its Datagram,
+ * so the socket never has to parse the same header again while handling it.
+ * The Datagram is reused for later datagrams, so its header is only good until
+ * the datagram is released. Headers from Packet.getHeader() never change.
+ * Options stay in the datagram, see Packet.findOption().
+ */
+public final class PacketHeader {
+
+    private short srcPort;
+    private short destPort;
+    private int seqNum;
+    private int ackNum;
+    private short checksum;
+    private short windowSize;
+    private byte flags;
+    private int headerLength;
+    private int dataLength;
+
+    public PacketHeader(short srcPort, short destPort, int seqNum, int ackNum,
+            short checksum, short windowSize, byte flags, int headerLength, int dataLength) {
+        this.srcPort = srcPort;
+        this.destPort = destPort;
+        this.seqNum = seqNum;
+        this.ackNum = ackNum;
+        this.checksum = checksum;
+        this.windowSize = windowSize;
+        this.flags = flags;
+        this.headerLength = headerLength;
+        this.dataLength = dataLength;
+    }
+
+    PacketHeader() {
+    }
+
+    /*
+     * Decodes the header of the packet into this header.
+     */
+    void decode(Packet packet) {
+        this.srcPort = packet.getSrcPort();
+        this.destPort = packet.getDestPort();
+        this.seqNum = packet.getSeqNum();
+        this.ackNum = packet.getAckNum();
+        this.checksum = packet.getChecksum();
+        this.windowSize = packet.getWindowSize();
+        this.flags = packet.getFlags();
+        this.headerLength = packet.getHeaderLength();
+        this.dataLength = packet.getDataLength();
+    }
+
+    public short srcPort() {
+        return srcPort;
+    }
+
+    public short destPort() {
+        return destPort;
+    }
+
+    public int seqNum() {
+        return seqNum;
+    }
+
+    public int ackNum() {
+        return ackNum;
+    }
+
+    public short checksum() {
+        return checksum;
+    }
+
+    public short windowSize() {
+        return windowSize;
+    }
+
+    public byte flags() {
+        return flags;
+    }
+
+    public int headerLength() {
+        return headerLength;
+    }
+
+    public int dataLength() {
+        return dataLength;
+    }
+
+    public boolean syn() {
+        return ((flags >> 7) & 0x01) == 1;
+    }
+
+    public boolean chl() {
+        return (flags >> 6 & 0x01) == 1;
+    }
+
+    public boolean ack() {
+        return (flags >> 5 & 0x01) == 1;
+    }
+
+    public boolean fin() {
+        return (flags >> 4 & 0x01) == 1;
+    }
+
+    public boolean crc() {
+        return (flags >> 3 & 0x01) == 1;
+    }
+
+    public boolean par() {
+        return (flags >> 2 & 0x01) == 1;
+    }
+
+    public boolean str() {
+        return (flags >> 1 & 0x01) == 1;
+    }
+
+    /**
+     * @return the length of the packet in bytes, header and payload.
+     */
+    public int length() {
+        return headerLength + dataLength;
+    }
+
+    @Override
+    public String toString() {
+        return "PacketHeader[srcPort=" + srcPort + ", destPort=" + destPort + ", seqNum=" + seqNum
+                + ", ackNum=" + ackNum + ", checksum=" + checksum + ", windowSize=" + windowSize
+                + ", flags=" + flags + ", headerLength=" + headerLength + ", dataLength=" + dataLength + "]";
+    }
+}
@@ -0,0 +1,173 @@
+package dtp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Event loop that receives the datagrams of every DTPSocket in the JVM.
+ *
+ * Sockets that own a DatagramChannel register it here in non-blocking mode.
+ * A single thread waits on a Selector and calls the socket's handler when its
+ * channel is readable. The handler receives what is ready, demultiplexes it to
+ * the connection it belongs to and returns, so application threads only wake up
+ * when a datagram is delivered to the connection they are blocked on and no
+ * socket needs a thread of its own to receive.
+ *
+ * The reactor also drives the timer wheel. It waits on the Selector until the
+ * next timer is due at the latest, and runs the timers that expired.
+ */
+final class Reactor implements Runnable {
+
+    /**
+     * Called on the reactor thread when a registered channel has datagrams
+     * to receive. Must not block.
+     */
+    interface Handler {
+        void onReadable() throws IOException;
+    }
+
+    private final static long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+    private final static int NUM_BUCKETS = 1024;
+    private final static long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static Reactor reactor;
+
+    private final Selector selector;
+    // registrations waiting to be made on the reactor thread
+    private final Queue<Registration> registrations;
+    private final TimerWheel timers;
+    // handed the ready keys by the selector, which then keeps no selected-key set
+    private final Consumer<SelectionKey> dispatcher;
+
+    private Reactor() throws IOException {
+        this.selector = Selector.open();
+        this.registrations = new ConcurrentLinkedQueue<>();
+        this.timers = new TimerWheel(NUM_BUCKETS, TICK);
+        this.dispatcher = this::dispatch;
+    }
+
+    /**
+     * @return the reactor of the JVM, started on first use.
+     * @throws IOException if the selector can't be opened
+     */
+    static synchronized Reactor get() throws IOException {
+        if (reactor == null) {
+            reactor = new Reactor();
+            Thread thread = new Thread(reactor, "DTP reactor");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return reactor;
+    }
+
+    /**
+     * Switches the channel to non-blocking mode and calls the handler whenever
+     * it is readable, until the channel is closed.
+     */
+    void register(DatagramChannel channel, Handler handler) throws IOException {
+        channel.configureBlocking(false);
+        registrations.add(new Registration(channel, handler));
+        selector.wakeup();
+    }
+
+    /**
+     * Wakes up the reactor thread, so a channel that was just closed is
+     * deregistered and its port released right away.
+     */
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task of the timer on the reactor thread after delayNanos.
+     * A timer that is already scheduled is moved to its new deadline.
+     */
+    void schedule(TimerWheel.Timer timer, long delayNanos) {
+        if (timers.schedule(timer, delayNanos)) {
+            // the reactor may be waiting until a later deadline, or without a timeout
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * @return the resolution of the timers in nanoseconds.
+     */
+    long getTickNanos() {
+        return timers.getTickNanos();
+    }
+
+    /**
+     * Cancels the timer if it is scheduled.
+     */
+    void cancel(TimerWheel.Timer timer) {
+        timers.cancel(timer);
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                long deadline = timers.nextDeadline();
+                if (deadline == Long.MAX_VALUE) {
+                    // waits until a channel is readable or wakeup() is called
+                    selector.select(dispatcher, 0);
+                } else {
+                    long delayNanos = deadline - System.nanoTime();
+                    if (delayNanos > 0) {
+                        selector.select(dispatcher, (delayNanos + MILLI - 1) / MILLI);
+                    } else {
+                        selector.selectNow(dispatcher);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            Registration registration;
+            while ((registration = registrations.poll()) != null) {
+                try {
+                    registration.channel.register(selector, SelectionKey.OP_READ, registration.handler);
+                } catch (IOException e) {
+                    // the channel was closed before it could be registered
+                }
+            }
+
+            timers.expire();
+        }
+    }
+
+    /*
+     * Calls the handler of a channel the selector found readable.
+     */
+    private void dispatch(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                ((Handler) key.attachment()).onReadable();
+            }
+        } catch (CancelledKeyException e) {
+            // the channel was closed while being handled
+        } catch (IOException e) {
+            if (key.channel().isOpen()) e.printStackTrace();
+        } catch (RuntimeException e) {
+            // one bad datagram must not stop every other socket from receiving
+            e.printStackTrace();
+        }
+    }
+
+    private static class Registration {
+        private final DatagramChannel channel;
+        private final Handler handler;
+
+        Registration(DatagramChannel channel, Handler handler) {
+            this.channel = channel;
+            this.handler = handler;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package dtp;
+
+/**
+ * Memory budget for the receiving windows of a group of sockets: a serverSocket
+ * and the sockets it accept()s, or a socket and its siblings.
+ *
+ * Every live socket reserves its window times the buffer a packet takes. A socket
+ * that sets its window by hand always gets it. An autotuned window grows only
+ * into what is left, but a socket may always keep its fair share of the budget,
+ * the budget split evenly over the live sockets, so a newcomer isn't locked out
+ * by the ones that came first. The ones above their share shrink to it the next
+ * time they tune. Can be used by many sockets at once.
+ */
+final class ReceiveBudget {
+
+    final static long DEFAULT_LIMIT = 64L * 1024 * 1024;
+
+    private long limit = DEFAULT_LIMIT;
+    private long used;
+    private int sockets;
+
+    /**
+     * @param limit the most bytes the windows may take together
+     */
+    synchronized void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    synchronized long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the bytes the windows of the live sockets take.
+     */
+    synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Reserves the window of a socket that became live.
+     * @return the window granted.
+     */
+    synchronized int join(int window, int chunkBytes, boolean isTuned) {
+        sockets++;
+        return resize(0, window, chunkBytes, isTuned);
+    }
+
+    /**
+     * Changes the window reserved by a live socket.
+     * @param oldWindow the window the socket reserved so far
+     * @param window the window the socket wants
+     * @param chunkBytes the bytes a chunk takes in the receiving buffer
+     * @param isTuned false if the window was set by hand and must be granted
+     * @return the window granted, at least WindowTuner.MIN_WINDOW for a tuned window.
+     */
+    synchronized int resize(int oldWindow, int window, int chunkBytes, boolean isTuned) {
+        used -= (long) oldWindow * chunkBytes;
+        if (isTuned) {
+            long free = (limit - used) / chunkBytes;
+            long fairShare = limit / Math.max(sockets, 1) / chunkBytes;
+            window = (int) Math.max(WindowTuner.MIN_WINDOW,
+                    Math.min(window, Math.max(free, fairShare)));
+        }
+        used += (long) window * chunkBytes;
+        return window;
+    }
+
+    /**
+     * Gives back the window of a socket that closed.
+     */
+    synchronized void leave(int window, int chunkBytes) {
+        sockets--;
+        used -= (long) window * chunkBytes;
+    }
+}
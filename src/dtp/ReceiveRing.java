@@ -0,0 +1,208 @@
+package dtp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer queue of received datagrams,
+ * the receive buffer of a socket.
+ *
+ * The reactor thread is the only producer and the thread inside send(), recv()
+ * or close() of the socket is the only consumer. Both offer() and poll() are
+ * wait-free: they never take a lock and never allocate. A consumer that finds
+ * the ring empty parks until the producer unparks it or its timeout expires.
+ * Timeouts are kept by a timer on the reactor's wheel, which calls expire(), so
+ * the consumer doesn't have to time its own wait. Only waits shorter than a tick
+ * of the wheel, like the ones of the pacer, time themselves with poll(timeout).
+ *
+ * The ring holds a power of two of slots, at least the receive window. When the
+ * window grows, a bigger ring is handed to the producer, and the consumer moves
+ * on to it once it has drained the old one, so no datagram is lost or reordered.
+ */
+final class ReceiveRing {
+
+    private volatile Ring writeRing;    // the ring the producer offers to
+    private volatile Ring nextRing;     // the biggest ring asked for, the producer moves to it
+    private Ring readRing;              // the ring the consumer polls, only used by the consumer
+    private volatile Thread waiter;     // the consumer while it is parked
+    private volatile long expiredDeadline;  // the deadline expire() was last called for
+
+    /**
+     * @param capacity the number of datagrams the ring must hold
+     */
+    ReceiveRing(int capacity) {
+        this.writeRing = new Ring(capacity);
+        this.readRing = writeRing;
+    }
+
+    /**
+     * Makes sure the ring can hold capacity datagrams. Can be called from any thread.
+     */
+    synchronized void ensureCapacity(int capacity) {
+        Ring next = nextRing != null ? nextRing : writeRing;
+        if (next.slots.length < capacity) {
+            nextRing = new Ring(capacity);
+        }
+    }
+
+    /**
+     * Adds the datagram unless the ring already holds limit datagrams or is full.
+     * Only called by the producer.
+     * @return false if the datagram was dropped.
+     */
+    boolean offer(Datagram datagram, int limit) {
+        Ring ring = writeRing;
+        Ring next = nextRing;
+        if (next != null && next != ring) {
+            // the consumer follows once it has drained the old ring
+            ring.next = next;
+            writeRing = ring = next;
+        }
+        if (!ring.offer(datagram, limit)) {
+            return false;
+        }
+        Thread consumer = waiter;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Takes the oldest datagram, waiting up to timeoutNanos for one to arrive.
+     * Only called by the consumer.
+     * @return the datagram, or null if the timeout expired.
+     * @throws InterruptedException if the consumer was interrupted while waiting
+     */
+    Datagram poll(long timeoutNanos) throws InterruptedException {
+        Datagram datagram = poll();
+        if (datagram != null) return datagram;
+
+        long deadline = System.nanoTime() + timeoutNanos;
+        try {
+            while (true) {
+                // checking again after publishing the waiter, so an offer() in
+                // between can't be missed
+                waiter = Thread.currentThread();
+                datagram = poll();
+                if (datagram != null) return datagram;
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return null;
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+    /**
+     * Takes the oldest datagram, waiting until one arrives or expire() is called
+     * with the same deadline. Only called by the consumer.
+     * @param deadline the System.nanoTime() the wait ends at, unique per wait
+     * @return the datagram, or null if the deadline expired.
+     * @throws InterruptedException if the consumer was interrupted while waiting
+     */
+    Datagram take(long deadline) throws InterruptedException {
+        Datagram datagram = poll();
+        if (datagram != null) return datagram;
+
+        try {
+            while (true) {
+                // checking again after publishing the waiter, so an offer() or
+                // expire() in between can't be missed
+                waiter = Thread.currentThread();
+                datagram = poll();
+                if (datagram != null) return datagram;
+                if (expiredDeadline == deadline) return null;
+
+                LockSupport.park(this);
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+    /**
+     * Ends the wait of take() for the deadline. A deadline that take() no longer
+     * waits for is ignored. Can be called from any thread.
+     */
+    void expire(long deadline) {
+        expiredDeadline = deadline;
+        Thread consumer = waiter;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * @return the number of datagrams waiting in the ring.
+     */
+    int size() {
+        Ring write = writeRing;
+        Ring read = readRing;
+        return read == write ? write.size() : read.size() + write.size();
+    }
+
+    /*
+     * Takes the oldest datagram without waiting. Moves on to the ring the
+     * producer switched to once the old one is drained.
+     */
+    private Datagram poll() {
+        Datagram datagram = readRing.poll();
+        while (datagram == null && readRing.next != null) {
+            // the producer no longer offers to the old ring, but may have
+            // offered to it right before switching
+            datagram = readRing.poll();
+            if (datagram == null) {
+                readRing = readRing.next;
+                datagram = readRing.poll();
+            }
+        }
+        return datagram;
+    }
+
+    /*
+     * Lamport's ring: the producer only writes tail, the consumer only writes head.
+     */
+    private static final class Ring {
+        private final Datagram[] slots;
+        private final int mask;
+        private volatile long head;     // next slot to poll
+        private volatile long tail;     // next slot to offer to
+        private volatile Ring next;     // the ring the producer switched to
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 1) - 1) << 1;
+            this.slots = new Datagram[Math.max(size, 1)];
+            this.mask = slots.length - 1;
+        }
+
+        boolean offer(Datagram datagram, int limit) {
+            long t = tail;
+            if (t - head >= Math.min(limit, slots.length)) {
+                return false;
+            }
+            slots[(int) t & mask] = datagram;
+            tail = t + 1;
+            return true;
+        }
+
+        Datagram poll() {
+            long h = head;
+            if (h == tail) {
+                return null;
+            }
+            int index = (int) h & mask;
+            Datagram datagram = slots[index];
+            slots[index] = null;
+            head = h + 1;
+            return datagram;
+        }
+
+        int size() {
+            return (int) (tail - head);
+        }
+    }
+}
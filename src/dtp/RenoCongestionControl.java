@@ -0,0 +1,69 @@
+package dtp;
+
+/**
+ * NewReno congestion control.
+ * Slow start doubles the window every round trip until it reaches the slow
+ * start threshold, then congestion avoidance grows it by one chunk per round
+ * trip. A fast retransmit halves the window, a timeout collapses it to 1.
+ */
+public class RenoCongestionControl implements CongestionControl {
+
+    public final static int INITIAL_WINDOW = 10;
+    public final static int MIN_THRESHOLD = 2;
+
+    private int cwnd;
+    private int ssthresh;
+    private int ackedInRound;   // chunks ACKed since cwnd last grew in congestion avoidance
+
+    public RenoCongestionControl() {
+        this.cwnd = INITIAL_WINDOW;
+        this.ssthresh = Integer.MAX_VALUE;
+    }
+
+    @Override
+    public synchronized int getWindow() {
+        return cwnd;
+    }
+
+    @Override
+    public synchronized boolean isSlowStart() {
+        return cwnd < ssthresh;
+    }
+
+    @Override
+    public synchronized void onAck(int numAcked, long srttNanos) {
+        if (cwnd < ssthresh) {
+            cwnd = Math.min(cwnd + numAcked, Math.max(ssthresh, cwnd));
+            return;
+        }
+        ackedInRound += numAcked;
+        if (ackedInRound >= cwnd) {
+            ackedInRound -= cwnd;
+            cwnd++;
+        }
+    }
+
+    @Override
+    public synchronized void onFastRetransmit() {
+        ssthresh = Math.max(cwnd / 2, MIN_THRESHOLD);
+        cwnd = ssthresh;
+        ackedInRound = 0;
+    }
+
+    @Override
+    public synchronized void onTimeout() {
+        ssthresh = Math.max(cwnd / 2, MIN_THRESHOLD);
+        cwnd = 1;
+        ackedInRound = 0;
+    }
+
+    @Override
+    public CongestionControl create() {
+        return new RenoCongestionControl();
+    }
+
+    @Override
+    public String toString() {
+        return "reno";
+    }
+}
@@ -0,0 +1,79 @@
+package dtp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round-trip time estimator for a DTP connection.
+ * Keeps the smoothed RTT (SRTT) and RTT variation (RTTVAR) and derives the
+ * retransmission timeout (RTO) from them, similar to TCP (RFC 6298).
+ *
+ * RTT samples should only be taken from packets that were never
+ * retransmitted (Karn's algorithm).
+ */
+class RttEstimator {
+
+    private final static long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(1000);
+    private final static long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(10);
+    private final static long MAX_RTO = TimeUnit.MILLISECONDS.toNanos(4000);
+    private final static long CLOCK_GRANULARITY = TimeUnit.MILLISECONDS.toNanos(1);
+    private final static int MAX_BACKOFFS = 16;
+    private final static int MIN_MARGIN_DIVISOR = 4;   // the RTO is at least SRTT + SRTT / 4
+
+    private long srtt;
+    private long rttvar;
+    private long rto;
+    private int backoffs;
+
+    RttEstimator() {
+        this.rto = INITIAL_RTO;
+    }
+
+    /**
+     * Updates the estimator with a new round-trip time measurement.
+     * Clears any backoff from previous timeouts.
+     * @param rttNanos time between sending a packet and getting its ACK.
+     */
+    synchronized void sample(long rttNanos) {
+        if (rttNanos < 0) return;
+        if (srtt == 0) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rttNanos)) / 4;
+            srtt = (7 * srtt + rttNanos) / 8;
+        }
+        // paced chunks give samples that barely vary, so the variation alone
+        // would leave no room for the jitter of the path
+        long margin = Math.max(Math.max(CLOCK_GRANULARITY, srtt / MIN_MARGIN_DIVISOR), 4 * rttvar);
+        rto = Math.min(MAX_RTO, Math.max(MIN_RTO, srtt + margin));
+        backoffs = 0;
+    }
+
+    /**
+     * Doubles the timeout after a retransmission timer expired.
+     */
+    synchronized void backoff() {
+        if (backoffs < MAX_BACKOFFS) backoffs++;
+    }
+
+    /**
+     * Goes back to the estimated timeout once the other endpoint responds again.
+     */
+    synchronized void clearBackoff() {
+        backoffs = 0;
+    }
+
+    /**
+     * @return the current retransmission timeout in nanoseconds, backoff included.
+     */
+    synchronized long getTimeoutNanos() {
+        return Math.min(MAX_RTO, rto << backoffs);
+    }
+
+    /**
+     * @return the smoothed round-trip time in nanoseconds, 0 if there are no samples yet.
+     */
+    synchronized long getSrtt() {
+        return srtt;
+    }
+}
@@ -0,0 +1,149 @@
+package dtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Resumption tickets issued and checked by a listening DTPSocket.
+ *
+ * After a full handshake the server hands the client a ticket in the SYN-ACK.
+ * A ticket is the time it expires, a random nonce and an HMAC-SHA256 of both and
+ * the client's IP address, under a key only this server knows. The server keeps
+ * nothing per issued ticket. A client that presents a good ticket in its SYN
+ * skips the challenge.
+ *
+ * Every ticket is accepted once. The nonces of used tickets are kept in a replay
+ * cache until the tickets expire. When the cache is full, tickets are refused and
+ * clients fall back to the challenge.
+ */
+final class SessionTickets {
+
+    /**
+     * What to do with a SYN carrying a ticket.
+     */
+    enum Verdict {
+        VALID,          // skip the challenge
+        RETRANSMITTED,  // the SYN was already accepted, it is a copy
+        INVALID         // forged, expired or replayed, do the challenge
+    }
+
+    final static int TICKET_SIZE = 32;
+    private final static int MAC_SIZE = 16;
+    private final static long LIFETIME = TimeUnit.MINUTES.toMillis(10);
+    private final static int MAX_USED_TICKETS = 4096;
+    private final static String ALGORITHM = "HmacSHA256";
+
+    private final Mac mac;
+    private final SecureRandom random;
+    // nonce of each used ticket, in the order they were used
+    private final Map<Long, UsedTicket> usedTickets;
+
+    /**
+     * @throws IOException if the key can't be created
+     */
+    SessionTickets() throws IOException {
+        this.random = new SecureRandom();
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        try {
+            this.mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Issue with the ticket key...", e);
+        }
+        this.usedTickets = new LinkedHashMap<>();
+    }
+
+    /**
+     * @return a new ticket for the client.
+     */
+    synchronized byte[] issue(InetAddress client) {
+        ByteBuffer ticket = ByteBuffer.allocate(TICKET_SIZE);
+        ticket.putLong(System.currentTimeMillis() + LIFETIME);
+        ticket.putLong(random.nextLong());
+        ticket.put(sign(client, ticket.array()));
+        return ticket.array();
+    }
+
+    /**
+     * Checks a ticket presented in the SYN of a client and marks it used.
+     * @param synSeq the sequence number of the SYN, to tell copies of the SYN
+     * from replays of the ticket
+     */
+    synchronized Verdict check(InetAddress client, byte[] ticket, int synSeq) {
+        if (ticket == null || ticket.length != TICKET_SIZE) {
+            return Verdict.INVALID;
+        }
+        byte[] expected = sign(client, ticket);
+        if (!MessageDigest.isEqual(expected,
+                Arrays.copyOfRange(ticket, TICKET_SIZE - MAC_SIZE, TICKET_SIZE))) {
+            return Verdict.INVALID;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(ticket);
+        long expiry = buffer.getLong(0);
+        long nonce = buffer.getLong(8);
+        long now = System.currentTimeMillis();
+        if (expiry < now) {
+            return Verdict.INVALID;
+        }
+
+        UsedTicket used = usedTickets.get(nonce);
+        if (used != null) {
+            return used.address.equals(client) && used.synSeq == synSeq
+                    ? Verdict.RETRANSMITTED : Verdict.INVALID;
+        }
+        if (usedTickets.size() >= MAX_USED_TICKETS) {
+            removeExpired(now);
+            if (usedTickets.size() >= MAX_USED_TICKETS) {
+                return Verdict.INVALID;
+            }
+        }
+        usedTickets.put(nonce, new UsedTicket(client, synSeq, expiry));
+        return Verdict.VALID;
+    }
+
+    /*
+     * The MAC of the expiry and the nonce of the ticket, bound to the client address.
+     */
+    private byte[] sign(InetAddress client, byte[] ticket) {
+        mac.update(client.getAddress());
+        mac.update(ticket, 0, TICKET_SIZE - MAC_SIZE);
+        return Arrays.copyOf(mac.doFinal(), MAC_SIZE);
+    }
+
+    /*
+     * Forgets the used tickets that have expired, they would be refused anyway.
+     */
+    private void removeExpired(long now) {
+        Iterator<UsedTicket> it = usedTickets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiry < now) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class UsedTicket {
+        private final InetAddress address;
+        private final int synSeq;
+        private final long expiry;
+
+        UsedTicket(InetAddress address, int synSeq, long expiry) {
+            this.address = address;
+            this.synSeq = synSeq;
+            this.expiry = expiry;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package dtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Challenges a listening DTPSocket sends without keeping any state per client.
+ *
+ * Everything the server picks for a client, the challenge string, the server's
+ * initial sequence number and the port of the accept()ed socket, is derived from
+ * an HMAC-SHA256 of the client's address, port and initial sequence number, the
+ * listening port and the current epoch, under a key only this server knows.
+ * The CHL-ACK of the client echoes both initial sequence numbers, so the server
+ * derives the same values again and checks the answer before it creates a socket.
+ *
+ * A challenge is good for the epoch it was sent in and the next one.
+ */
+final class SynCookies {
+
+    /**
+     * The values derived for one client.
+     */
+    static final class Cookie {
+        final int seqNum;           // initial sequence number of the server
+        final int srcPort;          // port of the accept()ed socket
+        final String challenge;
+
+        private Cookie(int seqNum, int srcPort, String challenge) {
+            this.seqNum = seqNum;
+            this.srcPort = srcPort;
+            this.challenge = challenge;
+        }
+    }
+
+    final static int CHALLENGE_SIZE = 32;
+    private final static long EPOCH = TimeUnit.SECONDS.toMillis(64);
+    private final static String ALGORITHM = "HmacSHA256";
+    private final static String CHALLENGE_CHARS =
+            "1234567890qwertyuiopasdfghjklzxcvbnmQWERTYUIOPASDFGHJKLZXCVBNM";
+
+    private final Mac mac;
+    private final int listenPort;
+    // reused by derive(), which only runs while holding the lock
+    private final ByteBuffer input = ByteBuffer.allocate(16);
+    private final byte[] hash;
+
+    /**
+     * @param listenPort the port of the listening socket
+     * @throws IOException if the key can't be created
+     */
+    SynCookies(int listenPort) throws IOException {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        try {
+            this.mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Issue with the cookie key...", e);
+        }
+        this.listenPort = listenPort;
+        this.hash = new byte[mac.getMacLength()];
+    }
+
+    /**
+     * @return the cookie to challenge a client with, for the SYN it sent.
+     */
+    synchronized Cookie create(InetAddress client, int clientPort, int clientSeqNum) {
+        return derive(client, clientPort, clientSeqNum, currentEpoch());
+    }
+
+    /**
+     * Finds the cookie the client was challenged with, from the initial sequence
+     * numbers echoed in its CHL-ACK.
+     * @return the cookie, or null if the server never sent it or it expired.
+     */
+    synchronized Cookie check(InetAddress client, int clientPort, int clientSeqNum, int seqNum) {
+        long epoch = currentEpoch();
+        for (long e = epoch; e >= epoch - 1; e--) {
+            Cookie cookie = derive(client, clientPort, clientSeqNum, e);
+            if (cookie.seqNum == seqNum) {
+                return cookie;
+            }
+        }
+        return null;
+    }
+
+    private static long currentEpoch() {
+        return System.currentTimeMillis() / EPOCH;
+    }
+
+    /*
+     * The MAC is cut up into the challenge, the sequence number and the port.
+     */
+    private Cookie derive(InetAddress client, int clientPort, int clientSeqNum, long epoch) {
+        input.clear();
+        input.putShort((short) clientPort).putShort((short) listenPort)
+                .putInt(clientSeqNum).putLong(epoch);
+        mac.update(client.getAddress());
+        mac.update(input.array(), 0, input.position());
+        try {
+            mac.doFinal(hash, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+
+        char[] challenge = new char[CHALLENGE_SIZE];
+        for (int i = 0; i < CHALLENGE_SIZE; i++) {
+            challenge[i] = CHALLENGE_CHARS.charAt((hash[i] & 0xFF) % CHALLENGE_CHARS.length());
+        }
+        ByteBuffer words = ByteBuffer.wrap(hash);
+        // leaves room to count up from the sequence number without overflowing
+        int seqNum = (words.getInt(0) & 0x3FFFFFFF) + 1;
+        int srcPort = (words.getShort(4) & 0x7FFF) % 31999 + 1;
+        return new Cookie(seqNum, srcPort, new String(challenge));
+    }
+}
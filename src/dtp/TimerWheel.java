@@ -0,0 +1,193 @@
+package dtp;
+
+/**
+ * Hashed timing wheel that schedules the timers of every DTPSocket.
+ *
+ * Time is cut into ticks and each tick hashes to one of a power of two of
+ * buckets, a doubly linked list of the timers due in that tick. Timers due
+ * more than one turn of the wheel away share the bucket with nearer ones and
+ * are skipped until their turn comes. Scheduling and cancelling a timer are
+ * O(1), and a timer is a node of its bucket, so scheduling it again and again
+ * never allocates.
+ *
+ * The wheel is driven by the reactor thread, which runs the expired timers
+ * and sleeps until the next deadline in between. The wheel keeps the earliest
+ * deadline it knows of. Cancelling or moving a timer leaves it as it is, so
+ * the reactor may wake up for nothing once, and the earliest deadline is
+ * looked up again after every tick that had one.
+ * Timers can be scheduled and cancelled from any thread.
+ */
+final class TimerWheel {
+
+    /**
+     * A timer that runs its task on the reactor thread when it expires.
+     * Create one per use, such as per connection, and schedule it as often as needed.
+     */
+    static final class Timer {
+        private final Runnable task;
+        private long deadlineTick;
+        private int bucket = -1;        // -1 when not scheduled
+        private Timer prev;
+        private Timer next;
+        private Timer nextExpired;      // only used by the reactor thread
+
+        Timer(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private final Timer[] buckets;
+    private final int mask;
+    private final long tickNanos;
+    private long currentTick;           // every tick up to this one has expired
+    private long nextTick = Long.MAX_VALUE;     // no timer is due before this tick
+    private int size;
+
+    /**
+     * @param numBuckets rounded up to a power of two
+     * @param tickNanos the resolution of the wheel
+     */
+    TimerWheel(int numBuckets, long tickNanos) {
+        int length = Integer.highestOneBit(Math.max(numBuckets, 2) - 1) << 1;
+        this.buckets = new Timer[length];
+        this.mask = length - 1;
+        this.tickNanos = tickNanos;
+        this.currentTick = System.nanoTime() / tickNanos;
+    }
+
+    /**
+     * Schedules the timer to expire after delayNanos, rounded up to the next
+     * tick. A timer that is already scheduled is moved to its new deadline.
+     * @return true if the timer is due before every deadline the wheel knew
+     * of, so the reactor may be waiting for too long.
+     */
+    synchronized boolean schedule(Timer timer, long delayNanos) {
+        unlink(timer);
+        long deadline = System.nanoTime() + Math.max(0, delayNanos);
+        timer.deadlineTick = Math.max((deadline + tickNanos - 1) / tickNanos, currentTick + 1);
+        timer.bucket = (int) timer.deadlineTick & mask;
+        timer.next = buckets[timer.bucket];
+        if (timer.next != null) timer.next.prev = timer;
+        buckets[timer.bucket] = timer;
+        size++;
+        if (timer.deadlineTick < nextTick) {
+            nextTick = timer.deadlineTick;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Cancels the timer if it is scheduled.
+     */
+    synchronized void cancel(Timer timer) {
+        unlink(timer);
+    }
+
+    /**
+     * @return true if the timer is scheduled and hasn't expired yet.
+     */
+    synchronized boolean isScheduled(Timer timer) {
+        return timer.bucket >= 0;
+    }
+
+    /**
+     * @return true if no timer is scheduled.
+     */
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the System.nanoTime() by which the next timer is due, or
+     * Long.MAX_VALUE if no timer is scheduled. May be earlier than the timer
+     * if it was cancelled or moved.
+     */
+    synchronized long nextDeadline() {
+        if (size == 0) return Long.MAX_VALUE;
+        return nextTick * tickNanos;
+    }
+
+    /**
+     * @return the resolution of the wheel in nanoseconds.
+     */
+    long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Runs the tasks of every timer that is due by now, on the calling thread.
+     * Only called by the reactor thread.
+     */
+    void expire() {
+        Timer expired = null;
+        synchronized (this) {
+            long targetTick = System.nanoTime() / tickNanos;
+            // after a long wait every bucket is visited once
+            long numTicks = Math.min(targetTick - currentTick, buckets.length);
+            for (long tick = currentTick + 1; tick <= currentTick + numTicks; tick++) {
+                Timer timer = buckets[(int) tick & mask];
+                while (timer != null) {
+                    Timer next = timer.next;
+                    if (timer.deadlineTick <= targetTick) {
+                        unlink(timer);
+                        timer.nextExpired = expired;
+                        expired = timer;
+                    }
+                    timer = next;
+                }
+            }
+            currentTick = Math.max(currentTick, targetTick);
+            if (nextTick <= currentTick) findNextTick();
+        }
+
+        // the tasks run without the lock, so they can schedule timers again
+        while (expired != null) {
+            Timer timer = expired;
+            expired = timer.nextExpired;
+            timer.nextExpired = null;
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                // one failing timer must not stop the others
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * Looks up the earliest deadline, going through the ticks of one turn of
+     * the wheel in order. Timers more than a turn away are only found if no
+     * nearer one is.
+     */
+    private void findNextTick() {
+        long earliest = Long.MAX_VALUE;
+        for (long tick = currentTick + 1; tick <= currentTick + buckets.length && size > 0; tick++) {
+            for (Timer timer = buckets[(int) tick & mask]; timer != null; timer = timer.next) {
+                if (timer.deadlineTick == tick) {
+                    nextTick = tick;
+                    return;
+                }
+                earliest = Math.min(earliest, timer.deadlineTick);
+            }
+        }
+        nextTick = earliest;
+    }
+
+    /*
+     * Removes the timer from its bucket, if it is in one.
+     */
+    private void unlink(Timer timer) {
+        if (timer.bucket < 0) return;
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            buckets[timer.bucket] = timer.next;
+        }
+        if (timer.next != null) timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+        timer.bucket = -1;
+        size--;
+    }
+}
@@ -0,0 +1,74 @@
+package dtp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that spreads the packets of a sender over time.
+ *
+ * Tokens are bytes, added at the rate of the bucket up to its burst. A packet
+ * may be sent as long as the bucket isn't in debt, and takes its bytes out even
+ * if that puts the bucket in debt, so a packet bigger than the burst still goes
+ * out, and the next one waits for the debt to be paid back. A rate of 0 means
+ * no limit. Can be used by many senders at once.
+ */
+final class TokenBucket {
+
+    private final static long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private long rate;          // bytes per second, 0 for no limit
+    private long burst;         // the most bytes saved up while idle
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket() {
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Changes the rate of the bucket. The tokens saved up so far are kept,
+     * up to the new burst.
+     * @param rate bytes per second, 0 for no limit
+     * @param burst the most bytes sent back to back after an idle period
+     */
+    synchronized void setRate(long rate, long burst) {
+        refill(System.nanoTime());
+        this.rate = Math.max(0, rate);
+        this.burst = Math.max(0, burst);
+        tokens = Math.min(tokens, this.burst);
+        if (this.rate == 0) tokens = 0;
+    }
+
+    /**
+     * @return the rate of the bucket in bytes per second, 0 for no limit.
+     */
+    synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * @return how long to wait before the next packet may be sent, 0 if it may
+     * be sent now.
+     */
+    synchronized long delayNanos() {
+        if (rate == 0) return 0;
+        refill(System.nanoTime());
+        if (tokens >= 0) return 0;
+        return (long) Math.ceil(-tokens * NANOS_PER_SECOND / rate);
+    }
+
+    /**
+     * Takes the bytes of a packet that was sent out of the bucket.
+     */
+    synchronized void consume(int bytes) {
+        if (rate == 0) return;
+        refill(System.nanoTime());
+        tokens -= bytes;
+    }
+
+    private void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(burst, tokens + (double) (now - lastRefill) * rate / NANOS_PER_SECOND);
+        }
+        lastRefill = now;
+    }
+}
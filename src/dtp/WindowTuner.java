@@ -0,0 +1,83 @@
+package dtp;
+
+/**
+ * Autotunes the receiving window of a socket to about twice the bandwidth-delay
+ * product of its connection.
+ *
+ * Once per round trip, the tuner counts the chunks that arrived during it. While
+ * the window holds the sender back, that is about the window, so the window
+ * doubles every round trip like slow start. Once the link holds the sender back,
+ * that is the bandwidth-delay product, and the window settles at twice it, which
+ * leaves room for the sender's congestion window to grow and for the chunks
+ * buffered after a loss. The window shrinks by at most an eighth per round trip,
+ * so a slow round trip, such as one spent recovering a loss, doesn't undo it.
+ *
+ * The round trip is the socket's own estimate when it has one. A socket that
+ * only receives never times a packet, so the tuner measures the round trip on
+ * the receiving side: the time from advertising a window until a chunk beyond its
+ * right edge arrives. Only measured within a message, since the time between two
+ * messages is up to the applications. Only used by the thread inside recv().
+ */
+final class WindowTuner {
+
+    final static int INITIAL_WINDOW = 64;
+    final static int MIN_WINDOW = 4;
+    final static int MAX_WINDOW = 31999;
+    private final static int GROWTH = 2;            // the window over the chunks per round trip
+    private final static int SHRINK_DIVISOR = 8;    // the most the window shrinks per round trip
+
+    private long receiverRtt;       // measured on the receiving side, 0 until measured
+    private int rttMark = -1;       // the chunk whose arrival ends the measurement, -1 for none
+    private long rttMarkTime;
+    private long intervalStart;     // 0 until the first chunk of the message
+    private int intervalChunks;
+
+    /**
+     * Starts measuring a new message, whose chunks are numbered from 0.
+     */
+    void startMessage() {
+        rttMark = -1;
+        intervalStart = 0;
+        intervalChunks = 0;
+    }
+
+    /**
+     * Counts chunks that arrived and tunes the window once per round trip.
+     * @param chunks the number of chunks that just arrived
+     * @param highestReceived the highest chunk of the message received so far
+     * @param windowEdge the right edge of the window last advertised
+     * @param window the current window
+     * @param srtt the smoothed round trip of the socket, 0 if it has none
+     * @return the window to use from now on, the current one if unchanged.
+     */
+    int chunksReceived(int chunks, int highestReceived, int windowEdge, int window, long srtt, long now) {
+        // the receiving side round trip, from advertising an edge to data beyond it
+        if (rttMark < 0) {
+            rttMark = windowEdge;
+            rttMarkTime = now;
+        } else if (highestReceived >= rttMark) {
+            long sample = now - rttMarkTime;
+            receiverRtt = receiverRtt == 0 || sample < receiverRtt ? sample
+                    : receiverRtt - receiverRtt / 8 + sample / 8;
+            rttMark = -1;
+        }
+
+        if (intervalStart == 0) {
+            intervalStart = now;
+            return window;
+        }
+        intervalChunks += chunks;
+        long rtt = srtt > 0 ? srtt : receiverRtt;
+        long elapsed = now - intervalStart;
+        if (rtt == 0 || elapsed < rtt) return window;
+
+        long chunksPerRtt = (long) Math.ceil((double) intervalChunks * rtt / elapsed);
+        intervalStart = now;
+        intervalChunks = 0;
+        long target = GROWTH * chunksPerRtt;
+        if (target < window) {
+            target = Math.max(target, window - window / SHRINK_DIVISOR);
+        }
+        return (int) Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, target));
+    }
+}
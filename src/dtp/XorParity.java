@@ -0,0 +1,275 @@
+package dtp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Forward error correction of the chunks of a message with XOR parity.
+ *
+ * The chunks are cut into groups of up to n, and every group gets k parity
+ * packets. Parity j of a group is the XOR of the chunks j, j + k, j + 2k, ... of
+ * the group, each padded with zeros to the MSS. The receiver rebuilds the one
+ * chunk missing from the chunks of a parity by XORing the parity with the others,
+ * so a loss costs no retransmission, and since the chunks of a parity are k
+ * apart, up to k chunks lost in a row are rebuilt too. The sender ends a group
+ * early when its chunks go out slowly, so every parity carries where its group
+ * starts and how many chunks it has.
+ *
+ * The sender computes the parities of a group from the chunks of the message
+ * once the group was sent. The receiver uses a Decoder, which keeps the parities
+ * that arrived while more than one of their chunks was missing, until enough of
+ * those chunks arrive.
+ */
+final class XorParity {
+
+    // the value of the FEC option: the first chunk, the chunks and parities of the group, j
+    final static int OPTION_LENGTH = 7;
+    // a parity covers chunks for a quarter of the chunks expected between two losses
+    private final static double CHUNKS_PER_LOSS_FRACTION = 0.25;
+    private final static int MIN_CHUNKS_PER_PARITY = 2;
+    private final static int MAX_CHUNKS_PER_PARITY = 32;
+    // groups span at least this many chunks, so bursts of losses are spread over parities
+    private final static int MIN_GROUP_SIZE = 16;
+    // the largest group the sender makes, MIN_GROUP_SIZE chunks or one parity of the most chunks
+    final static int MAX_GROUP_SIZE = Math.max(MIN_GROUP_SIZE, MAX_CHUNKS_PER_PARITY);
+
+    private ByteBuffer parity = ByteBuffer.allocate(0);
+    private int length;
+
+    /**
+     * The number of chunks a parity covers for a loss rate. At this many, about
+     * 3% of the parities see two of their chunks lost and can't rebuild them.
+     * @param lossRate the fraction of chunks lost
+     * @return the number of chunks per parity, or 0 if the loss rate is too low
+     * for parity to pay off.
+     */
+    static int chunksPerParity(double lossRate) {
+        if (lossRate <= 0) return 0;
+        double chunks = CHUNKS_PER_LOSS_FRACTION / lossRate;
+        if (chunks > 4 * MAX_CHUNKS_PER_PARITY) return 0;
+        return (int) Math.max(MIN_CHUNKS_PER_PARITY, Math.min(MAX_CHUNKS_PER_PARITY, chunks));
+    }
+
+    /**
+     * @return the number of parities k of a group where each covers chunksPerParity chunks.
+     */
+    static int paritiesPerGroup(int chunksPerParity) {
+        return Math.max(1, MIN_GROUP_SIZE / chunksPerParity);
+    }
+
+    /**
+     * The number of parities of a group that ended early. Each parity covers
+     * about as many chunks as in a whole group, but no more than k parities.
+     * @param numChunks the chunks of the group
+     * @param chunksPerParity the chunks per parity of a whole group
+     * @param stride the parities k of a whole group
+     */
+    static int stride(int numChunks, int chunksPerParity, int stride) {
+        return Math.min(stride, (numChunks + chunksPerParity - 1) / chunksPerParity);
+    }
+
+    /**
+     * Computes parity j of a group from the chunks of the message, which are
+     * cut from the remaining bytes of the buffers in order, mss bytes each.
+     * @param first the first chunk of the group
+     * @param numChunks the chunks of the group
+     * @param stride the parities of the group
+     * @return the parity, from index 0 to getLength().
+     */
+    ByteBuffer encode(ByteBuffer[] buffers, int mss, int size, int first, int numChunks, int stride, int j) {
+        if (parity.capacity() < mss) parity = ByteBuffer.allocate(mss);
+        length = 0;
+        for (int c = first + j; c < first + numChunks; c += stride) {
+            int bytesStart = c * mss;
+            int bytesEnd = Math.min(bytesStart + mss, size);
+            // the bytes past the longest chunk so far are still zero
+            for (int i = length; i < bytesEnd - bytesStart; i++) {
+                parity.put(i, (byte) 0);
+            }
+            length = Math.max(length, bytesEnd - bytesStart);
+
+            // skipping the buffers before the chunk, then XORing across buffers
+            int offset = 0;
+            for (ByteBuffer buffer : buffers) {
+                int start = Math.max(bytesStart - offset, 0);
+                int end = Math.min(bytesEnd - offset, buffer.remaining());
+                if (start < end) {
+                    xor(parity, offset + start - bytesStart, buffer, buffer.position() + start, end - start);
+                }
+                offset += buffer.remaining();
+                if (offset >= bytesEnd) break;
+            }
+        }
+        return parity;
+    }
+
+    /**
+     * @return the length of the last parity computed, the length of its longest chunk.
+     */
+    int getLength() {
+        return length;
+    }
+
+    /*
+     * XORs length bytes of src from srcIndex into dst from dstIndex, a long at a time.
+     */
+    private static void xor(ByteBuffer dst, int dstIndex, ByteBuffer src, int srcIndex, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            dst.putLong(dstIndex + i, dst.getLong(dstIndex + i) ^ src.getLong(srcIndex + i));
+        }
+        for (; i < length; i++) {
+            dst.put(dstIndex + i, (byte) (dst.get(dstIndex + i) ^ src.get(srcIndex + i)));
+        }
+    }
+
+    /**
+     * Rebuilds the lost chunks of one message from its parities. The chunks of
+     * the message are stored in a buffer, chunk i at index i * mss from the
+     * position of the buffer, up to the limit of the buffer.
+     */
+    static final class Decoder {
+
+        private final ByteBuffer buffer;
+        private final int base;
+        private final int stored;       // the bytes of the message that fit in the buffer
+        private final int mss;
+        private final int size;
+        private final int numPackets;
+        // parities waiting for more of their chunks, by their first chunk
+        private final Map<Integer, Waiting> waiting;
+        // chunks rebuilt but not yet handed to the caller
+        private final ArrayDeque<Integer> rebuilt;
+
+        Decoder(ByteBuffer buffer, int mss, int size, int numPackets) {
+            this.buffer = buffer;
+            this.base = buffer.position();
+            this.stored = Math.min(size, buffer.remaining());
+            this.mss = mss;
+            this.size = size;
+            this.numPackets = numPackets;
+            this.waiting = new HashMap<>();
+            this.rebuilt = new ArrayDeque<>();
+        }
+
+        /**
+         * Takes a parity. It rebuilds its chunk right away if only one is missing,
+         * and waits for more of its chunks otherwise. Parities with a malformed
+         * FEC option, or a group the sender never makes, are dropped.
+         * @param packet the buffer of the parity packet
+         * @param index where the value of the FEC option of the packet starts
+         * @return the chunk rebuilt, or -1 if none was.
+         */
+        int parityReceived(ByteBuffer packet, int index, int payloadIndex, int payloadLength,
+                boolean[] received) {
+            if ((packet.get(index - 1) & 0xFF) != OPTION_LENGTH) return -1;
+            int first = packet.getInt(index);
+            int groupSize = packet.get(index + 4) & 0xFF;
+            int stride = packet.get(index + 5) & 0xFF;
+            int j = packet.get(index + 6) & 0xFF;
+            if (first < 0 || groupSize == 0 || groupSize > MAX_GROUP_SIZE
+                    || stride == 0 || stride > groupSize || j >= stride) {
+                return -1;
+            }
+            if (first > numPackets - groupSize || payloadLength > mss) return -1;
+            int start = first + j;
+            int end = first + groupSize;
+            if (waiting.containsKey(start)) return -1;
+
+            int missing = findMissing(start, end, stride, received);
+            if (missing == -1) return -1;
+            ByteBuffer parity = ByteBuffer.allocate(mss);
+            parity.put(0, packet, payloadIndex, payloadLength);
+            if (missing == -2) {
+                // more than one missing, the parity waits for the others
+                waiting.put(start, new Waiting(end, stride, parity));
+                return -1;
+            }
+            return rebuild(missing, start, end, stride, parity) ? missing : -1;
+        }
+
+        /**
+         * Tells a chunk arrived. Every parity waiting for it rebuilds the last
+         * chunk it misses, if there is only one left. The caller passes each
+         * chunk returned back in, so the parities waiting for a rebuilt chunk get
+         * their turn too, until none can rebuild more.
+         * @return a chunk rebuilt, or -1 if none is left to hand out.
+         */
+        int chunkReceived(int chunk, boolean[] received) {
+            Iterator<Map.Entry<Integer, Waiting>> it = waiting.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Waiting> entry = it.next();
+                int start = entry.getKey();
+                Waiting parity = entry.getValue();
+                if (chunk < start || chunk >= parity.end || (chunk - start) % parity.stride != 0) {
+                    continue;
+                }
+                int missing = findMissing(start, parity.end, parity.stride, received);
+                if (missing == -2) continue;
+                it.remove();
+                if (missing >= 0 && rebuild(missing, start, parity.end, parity.stride, parity.parity)) {
+                    // marked right away, so the next parities see it as there
+                    received[missing] = true;
+                    rebuilt.add(missing);
+                }
+            }
+            Integer next = rebuilt.poll();
+            return next == null ? -1 : next;
+        }
+
+        /*
+         * Returns the one chunk missing from the chunks of a parity, -1 if none
+         * is, or -2 if more than one is.
+         */
+        private int findMissing(int start, int end, int stride, boolean[] received) {
+            int missing = -1;
+            for (int c = start; c < end; c += stride) {
+                if (!received[c]) {
+                    if (missing >= 0) return -2;
+                    missing = c;
+                }
+            }
+            return missing;
+        }
+
+        /*
+         * XORs the other chunks of the parity into it, which leaves the missing
+         * chunk, and stores it. Chunks past the end of the buffer are dropped
+         * anyway, so they only need their parity.
+         */
+        private boolean rebuild(int missing, int start, int end, int stride, ByteBuffer parity) {
+            int missingStart = missing * mss;
+            if (missingStart >= stored) return true;
+            for (int c = start; c < end; c += stride) {
+                if (c == missing) continue;
+                int length = Math.min(mss, size - c * mss);
+                if (c * mss + length > stored) {
+                    // the chunk wasn't kept whole, so the missing one can't be rebuilt
+                    return false;
+                }
+                xor(parity, 0, buffer, base + c * mss, length);
+            }
+            int length = Math.min(mss, stored - missingStart);
+            buffer.put(base + missingStart, parity, 0, length);
+            return true;
+        }
+
+        /*
+         * A parity waiting for its chunks, which run up to end, stride apart.
+         */
+        private static final class Waiting {
+            final int end;
+            final int stride;
+            final ByteBuffer parity;
+
+            Waiting(int end, int stride, ByteBuffer parity) {
+                this.end = end;
+                this.stride = stride;
+                this.parity = parity;
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package magic;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.util.ArrayList;
+import java.util.List;
+
+import util.ConvertLib;
+import dtp.DTPMultiplexer;
+import dtp.DTPSocket;
+
+/**
+ * The connections of a MagicFTP client to its server.
+ *
+ * The first connection is the one the connect command made. Segmented transfers
+ * ask for more, which are opened on the next free even ports after the client's
+ * port with the settings of the first one, and kept until the client disconnects.
+ */
+final class ConnectionPool {
+
+    private final int connectPort;
+    private final List<DTPSocket> sockets;
+    private final List<DTPMultiplexer> muxes;
+    private int lastPort;
+
+    /**
+     * @param socket the connected socket of the client
+     * @param mux the multiplexer of the socket
+     * @param connectPort the port the socket connect()ed to
+     */
+    ConnectionPool(DTPSocket socket, DTPMultiplexer mux, int connectPort) {
+        this.connectPort = connectPort;
+        this.sockets = new ArrayList<>();
+        this.muxes = new ArrayList<>();
+        this.lastPort = socket.getSrcPort();
+        sockets.add(socket);
+        muxes.add(mux);
+    }
+
+    /**
+     * @return the i-th connection, opening the connections up to it if needed.
+     */
+    synchronized DTPMultiplexer get(int i) throws IOException, InterruptedException {
+        while (muxes.size() <= i) {
+            open();
+        }
+        return muxes.get(i);
+    }
+
+    /**
+     * @return the number of connections open.
+     */
+    synchronized int size() {
+        return muxes.size();
+    }
+
+    /**
+     * Stops the multiplexers and closes every connection.
+     */
+    synchronized void close() throws IOException, InterruptedException {
+        for (int i = 0; i < sockets.size(); i++) {
+            muxes.get(i).close();
+            if (!sockets.get(i).isClosed()) {
+                sockets.get(i).close();
+            }
+        }
+    }
+
+    private void open() throws IOException, InterruptedException {
+        DTPSocket socket = null;
+        while (socket == null) {
+            lastPort += 2;
+            if (!ConvertLib.isValidShort(lastPort)) {
+                throw new IOException("No free port for another connection!");
+            }
+            try {
+                socket = sockets.get(0).createSibling(lastPort);
+            } catch (BindException e) {
+                // taken by another client, trying the next one
+            }
+        }
+        try {
+            socket.connect(connectPort);
+        } catch (IOException | InterruptedException e) {
+            // giving the port back before the next try
+            socket.close();
+            throw e;
+        }
+        sockets.add(socket);
+        muxes.add(new DTPMultiplexer(socket, true));
+    }
+}
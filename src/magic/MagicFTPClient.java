@@ -4,18 +4,34 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.Arrays;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import util.ConvertLib;
 import util.InvalidPortException;
+import dtp.CubicCongestionControl;
+import dtp.DTPMultiplexer;
 import dtp.DTPSocket;
+import dtp.DTPStream;
+import dtp.RenoCongestionControl;
 
 public class MagicFTPClient {
 
+    // the resumption ticket of the last connection, kept between runs of the client
+    private final static Path TICKET_FILE = Paths.get(".magicftp_ticket");
+    // the gets and posts that are running
+    private final static Set<Transfer> transfers = ConcurrentHashMap.newKeySet();
+    // the most connections a segmented get or post is spread over
+    private final static int MAX_CONNECTIONS = 16;
+
     /**
      * MagicFTP Client Application
      * 
@@ -37,6 +53,9 @@ public class MagicFTPClient {
         int netEmuPort = 0;
         InetAddress netEmuIp = null;
         DTPSocket clientSocket = null;
+        DTPMultiplexer mux = null;
+        ConnectionPool pool = null;
+        int maxConnections = 1;
         try {
             netEmuIp = InetAddress.getByName(args[1]);
             if (netEmuIp.equals(InetAddress.getLoopbackAddress())) {
@@ -85,12 +104,17 @@ public class MagicFTPClient {
             System.out.println("Type ? for access to commands.");
             System.out.print("Please type in a command. > ");
             response = scanny.nextLine();
+            String command = response.split(" ")[0];    // the first word names the command
 
             // CONNECT
             if (response.equals("connect") && clientSocket.isClosed()) {
                 try {
                     System.out.println("Connecting...");
+                    clientSocket.ticket(loadTicket());
                     clientSocket.connect(clientPort);
+                    saveTicket(clientSocket.getTicket());
+                    mux = new DTPMultiplexer(clientSocket, true);
+                    pool = new ConnectionPool(clientSocket, mux, clientPort);
                     System.out.println("Connected.");
                 } catch (IOException | InterruptedException e) {
                     System.out.println("EXCEPTION: " + e.getMessage());
@@ -100,9 +124,15 @@ public class MagicFTPClient {
             // DISCONNECT
             else if (response.equals("disconnect")) {
                 try {
+                    if (!transfers.isEmpty()) {
+                        System.out.println("Waiting for " + transfers.size() + " transfers to finish...");
+                    }
+                    for (Transfer transfer : transfers) {
+                        transfer.join();
+                    }
                     System.out.println("Disconnecting...");
-                    if (!clientSocket.isClosed()) {
-                        clientSocket.close();
+                    if (pool != null) {
+                        pool.close();
                     }
                 } catch (IOException | InterruptedException e) {
                     System.out.println("EXCEPTION: " + e.getMessage() + " Exiting...");
@@ -111,144 +141,150 @@ public class MagicFTPClient {
                 System.exit(0);
             }
 
+            // STATUS
+            else if (response.equals("status")) {
+                if (transfers.isEmpty()) {
+                    System.out.println("No transfers are running.");
+                }
+                for (Transfer transfer : transfers) {
+                    System.out.println(transfer.getStatus());
+                }
+            }
+
+            // CONNECTIONS
+            else if (command.equals("connections")) {
+                try {
+                    int connections = Integer.parseInt(response.split(" ")[1]);
+                    if (connections < 1 || connections > MAX_CONNECTIONS) {
+                        throw new NumberFormatException("Must be 1 to " + MAX_CONNECTIONS + ".");
+                    }
+                    maxConnections = connections;
+                    System.out.println("Spreading gets and posts over up to " + connections + " connections");
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    System.out.println("EXCEPTION: " + e.getMessage() + " Must input a valid number!");
+                }
+            }
+
             // WINDOW
-            else if (response.contains("window")) {
+            else if (command.equals("window")) {
                 try {
-                    int windowSize = Integer.parseInt(response.split(" ")[1]);
-                    clientSocket.window(windowSize);
-                    System.out.println("Setting window size for file transfer to " + windowSize);
-                } catch (NumberFormatException e) {
+                    if (response.split(" ")[1].equals("auto")) {
+                        clientSocket.autoWindow(true);
+                        System.out.println("Tuning the window size for file transfer");
+                    } else {
+                        int windowSize = Integer.parseInt(response.split(" ")[1]);
+                        clientSocket.window(windowSize);
+                        System.out.println("Setting window size for file transfer to " + windowSize);
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
                     System.out.println("EXCEPTION: " + e.getMessage() + " Must input a valid number!");
                 }
             }
 
+            // MSS
+            else if (command.equals("mss")) {
+                try {
+                    int mss = Integer.parseInt(response.split(" ")[1]);
+                    if (clientSocket.mss(mss)) {
+                        System.out.println("Setting maximum segment size to " + mss);
+                    } else {
+                        System.out.println("EXCEPTION: MSS must be 1 to 65252 and set before connecting!");
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    System.out.println("EXCEPTION: " + e.getMessage() + " Must input a valid number!");
+                }
+            }
+
+            // CONGESTION CONTROL
+            else if (command.equals("congestion")) {
+                String[] responseString = response.split(" ");
+                if (responseString.length == 2 && responseString[1].equals("cubic")) {
+                    clientSocket.congestionControl(new CubicCongestionControl());
+                    System.out.println("Setting congestion control to CUBIC");
+                } else if (responseString.length == 2 && responseString[1].equals("reno")) {
+                    clientSocket.congestionControl(new RenoCongestionControl());
+                    System.out.println("Setting congestion control to NewReno");
+                } else {
+                    printHelp();
+                }
+            }
+
+            // CHECKSUM
+            else if (command.equals("checksum")) {
+                String[] responseString = response.split(" ");
+                if (responseString.length == 2
+                        && (responseString[1].equals("crc32c") || responseString[1].equals("internet"))) {
+                    if (clientSocket.crc32c(responseString[1].equals("crc32c"))) {
+                        System.out.println("Setting checksum offered to " + responseString[1]);
+                    } else {
+                        System.out.println("EXCEPTION: Checksum must be set before connecting!");
+                    }
+                } else {
+                    printHelp();
+                }
+            }
+
+            // FORWARD ERROR CORRECTION
+            else if (command.equals("fec")) {
+                String[] responseString = response.split(" ");
+                if (responseString.length == 2
+                        && (responseString[1].equals("on") || responseString[1].equals("off"))) {
+                    clientSocket.fec(responseString[1].equals("on"));
+                    System.out.println("Setting parity packets for posts " + responseString[1]);
+                } else {
+                    printHelp();
+                }
+            }
+
             // GET / DOWNLOAD
-            else if (response.contains("get") && !clientSocket.isClosed()) {
+            else if (command.equals("get") && mux != null && !mux.isClosed()) {
                 // making sure the user input is valid
                 String[] responseString = response.split(" ");
                 if (responseString.length == 3) {
-                    String srcFilename = responseString[1];
-                    String destFilename = responseString[2];
-
+                    final String srcFilename = responseString[1];
+                    final String destFilename = responseString[2];
+                    final DTPMultiplexer transferMux = mux;
+                    final ConnectionPool transferPool = pool;
+                    final int transferConnections = maxConnections;
                     System.out.println("Getting file " + srcFilename + " from the server.");
-                    long startTime = System.currentTimeMillis();
-                    byte[] buffer;
-                    try {
-                        // request file from server
-                        buffer = ConvertLib.convertStringToBytes("GET " + srcFilename);
-                        clientSocket.send(buffer);
-    
-                        buffer = new byte[MagicFTPServer.BUFFER_SIZE];
-                        int length = clientSocket.recv(buffer);
-                        String msg = ConvertLib.convertBytesToString(buffer, length);
-                        System.out.println("MSG: " + msg);
-
-                        // acknowledgement from the server with file size
-                        if (msg.contains("FILE " + srcFilename + " OK")) {
-                            // get the file size from the msg
-                            String fileSizeTemp = msg.substring(msg.indexOf("FILE SIZE"), msg.length())
-                                    .replace("FILE SIZE ", "");
-                            System.out.println("NUM NOT PARSED: " + fileSizeTemp);
-                            long fileSize = Long.parseLong(fileSizeTemp);
-
-                            // acknowledge server that client is ready to send
-                            System.out.println("File exists at server. Giving thumbs-up to server.");
-                            buffer = ConvertLib.convertStringToBytes("FILE " + srcFilename + " READY");
-                            clientSocket.send(buffer);
-
-                            // getting data from the server
-                            DataOutputStream writer = new DataOutputStream(new FileOutputStream(destFilename));
-                            System.out.println("Uploading file " + srcFilename + " to the server");
-                            long count = 0;
-                            while (count < fileSize) {
-                                buffer = new byte[MagicFTPServer.BIG_BUFFER_SIZE];
-                                int numCompied = clientSocket.recv(buffer);
-                                count += numCompied;
-                                writer.write(buffer, 0, numCompied);
-                                System.out.printf("..... ( %d%% )\n", count * 100 / fileSize);
+                    startTransfer(new Transfer("get " + srcFilename) {
+                        void transfer() throws IOException, InterruptedException {
+                            if (transferConnections > 1) {
+                                transferSegmented(transferPool, transferConnections, this,
+                                        true, srcFilename, destFilename);
+                            } else {
+                                getFile(transferMux, srcFilename, destFilename, this);
                             }
-                            writer.close();
-
-                            // post the time it took to transfer data
-                            long endTime = System.currentTimeMillis();
-                            System.out.println("File " + srcFilename + " was successfully copied.");
-                            System.out.println("File " + srcFilename + " was " + fileSize + " bytes.");
-                            System.out.println("File transfer took " + (endTime - startTime) + "ms.");
-                        } else {
-                            System.out.println("File " + srcFilename + " does not exist on the server!");
                         }
-                    } catch (IOException | InterruptedException e) {
-                        System.out.println("EXCEPTION: " + e.getMessage());
-                    }
+                    });
                 } else {
                     printHelp();
                 }
             }
 
             // PUT / UPLOAD
-            else if (response.contains("post") && !clientSocket.isClosed()) {
+            else if (command.equals("post") && mux != null && !mux.isClosed()) {
                 String[] responseString = response.split(" ");
                 if (responseString.length == 3) {
-                    String srcFilename = responseString[1];
-                    String destFilename = responseString[2];
-                    File file = new File(srcFilename);
-                    if (!file.exists()) {
+                    final String srcFilename = responseString[1];
+                    final String destFilename = responseString[2];
+                    final DTPMultiplexer transferMux = mux;
+                    final ConnectionPool transferPool = pool;
+                    final int transferConnections = maxConnections;
+                    if (!new File(srcFilename).exists()) {
                         System.out.println("File " + srcFilename + " does not exist at the client!");
-                    }
-    
-                    byte[] buffer;
-                    long startTime = System.currentTimeMillis();
-                    try {
-                        // send uploading request to server
+                    } else {
                         System.out.println("Request uploading file " + srcFilename + " to the server.");
-                        buffer = ConvertLib.convertStringToBytes("POST " + srcFilename + " TO " + destFilename);
-                        clientSocket.send(buffer);
-
-                        // waiting for server to acknowledge and ask for file size information
-                        buffer = new byte[MagicFTPServer.BUFFER_SIZE];
-                        int length = clientSocket.recv(buffer);
-                        String msg = ConvertLib.convertBytesToString(buffer, length);
-
-                        if (msg.equals("FILE " + srcFilename + " OK REQUEST SIZE")) {
-                            System.out.println("Sending upload information to the server.");
-                            buffer = ConvertLib.convertStringToBytes("FILE SIZE " + file.length());
-                            clientSocket.send(buffer);
-
-                            // waiting for server to acknowledge data
-                            buffer = new byte[MagicFTPServer.BUFFER_SIZE];
-                            length = clientSocket.recv(buffer);
-                            msg = ConvertLib.convertBytesToString(buffer, length);
-
-                            // uploadind/sending information to the server
-                            if (msg.equals("FILE " + srcFilename + " READY")) {
-                                System.out.println("Uploading file " + srcFilename + " to the server");
-                                DataInputStream reader = new DataInputStream(new FileInputStream(file));
-                                long fileSize = file.length();
-                                long count = 0;
-                                while (count < fileSize) {
-                                    buffer = new byte[MagicFTPServer.BIG_BUFFER_SIZE];
-                                    int numCopied = reader.read(buffer);
-                                    buffer = Arrays.copyOfRange(buffer, 0, numCopied);
-                                    clientSocket.send(buffer);
-                                    count += numCopied;
-                                    System.out.printf("..... ( %d%% )\n", count * 100 / fileSize);
+                        startTransfer(new Transfer("post " + srcFilename) {
+                            void transfer() throws IOException, InterruptedException {
+                                if (transferConnections > 1) {
+                                    transferSegmented(transferPool, transferConnections, this,
+                                            false, srcFilename, destFilename);
+                                } else {
+                                    postFile(transferMux, srcFilename, destFilename, this);
                                 }
-                                reader.close();
-
-                                // post the time it took to transfer data
-                                long endTime = System.currentTimeMillis();
-                                System.out.println("Finished uploading the file "
-                                        + srcFilename + " to the server.");
-                                System.out.println("File " + srcFilename + " was " + fileSize + " bytes.");
-                                System.out.println("File transfer took " + (endTime - startTime) + "ms.");
-                            } else {
-                                System.out.println("Uh-oh! The server may have died. :'(");
                             }
-                        } else {
-                            System.out.println("Server cannot get file " + srcFilename);
-                        }
-                    } catch (IOException | InterruptedException e) {
-                        System.out.println("EXCEPTION: " + e.getMessage());
+                        });
                     }
                 } else {
                     printHelp();
@@ -270,12 +306,231 @@ public class MagicFTPClient {
         }
     }
 
+    /*
+     * Downloads a file on a stream of its own, see the MagicFTP messages in the README.
+     */
+    private static void getFile(DTPMultiplexer mux, String srcFilename, String destFilename,
+            Transfer transfer) throws IOException {
+        long startTime = System.currentTimeMillis();
+        DTPStream stream = mux.openStream();
+        try {
+            // request file from server
+            DataInputStream in = new DataInputStream(stream.getInputStream());
+            DataOutputStream out = new DataOutputStream(stream.getOutputStream());
+            out.writeUTF("GET " + srcFilename);
+            String msg = in.readUTF();
+
+            // acknowledgement from the server with file size
+            if (!msg.contains("FILE " + srcFilename + " OK")) {
+                System.out.println("File " + srcFilename + " does not exist on the server!");
+                return;
+            }
+            long fileSize = Long.parseLong(msg.substring(msg.indexOf("FILE SIZE"), msg.length())
+                    .replace("FILE SIZE ", ""));
+            transfer.setSize(fileSize);
+
+            // acknowledge server that client is ready to receive
+            out.writeUTF("FILE " + srcFilename + " READY");
+            out.close();
+
+            // getting data from the server
+            DataOutputStream writer = new DataOutputStream(new FileOutputStream(destFilename));
+            try {
+                byte[] buffer = new byte[MagicFTPServer.BIG_BUFFER_SIZE];
+                long count = 0;
+                while (count < fileSize) {
+                    int numCopied = in.read(buffer, 0, (int) Math.min(buffer.length, fileSize - count));
+                    if (numCopied < 0) {
+                        throw new IOException("Stream ended before the file was copied!");
+                    }
+                    writer.write(buffer, 0, numCopied);
+                    count += numCopied;
+                    transfer.progress(numCopied);
+                }
+            } finally {
+                writer.close();
+            }
+
+            // post the time it took to transfer data
+            long endTime = System.currentTimeMillis();
+            System.out.println("File " + srcFilename + " was successfully copied.");
+            System.out.println("File " + srcFilename + " was " + fileSize + " bytes.");
+            System.out.println("File transfer took " + (endTime - startTime) + "ms.");
+        } finally {
+            stream.close();
+        }
+    }
+
+    /*
+     * Uploads a file on a stream of its own, see the MagicFTP messages in the README.
+     */
+    private static void postFile(DTPMultiplexer mux, String srcFilename, String destFilename,
+            Transfer transfer) throws IOException {
+        long startTime = System.currentTimeMillis();
+        File file = new File(srcFilename);
+        DTPStream stream = mux.openStream();
+        try {
+            // send uploading request to server
+            DataInputStream in = new DataInputStream(stream.getInputStream());
+            DataOutputStream out = new DataOutputStream(stream.getOutputStream());
+            out.writeUTF("POST " + srcFilename + " TO " + destFilename);
+
+            // waiting for server to acknowledge and ask for file size information
+            String msg = in.readUTF();
+            if (!msg.equals("FILE " + srcFilename + " OK REQUEST SIZE")) {
+                System.out.println("Server cannot get file " + srcFilename);
+                return;
+            }
+            long fileSize = file.length();
+            transfer.setSize(fileSize);
+            out.writeUTF("FILE SIZE " + fileSize);
+
+            // waiting for server to acknowledge data
+            msg = in.readUTF();
+            if (!msg.equals("FILE " + srcFilename + " READY")) {
+                System.out.println("Uh-oh! The server may have died. :'(");
+                return;
+            }
+
+            // uploading information to the server
+            DataInputStream reader = new DataInputStream(new FileInputStream(file));
+            try {
+                byte[] buffer = new byte[MagicFTPServer.BIG_BUFFER_SIZE];
+                long count = 0;
+                while (count < fileSize) {
+                    int numCopied = reader.read(buffer);
+                    if (numCopied < 0) break;
+                    out.write(buffer, 0, numCopied);
+                    count += numCopied;
+                    transfer.progress(numCopied);
+                }
+            } finally {
+                reader.close();
+            }
+            out.close();
+
+            // post the time it took to transfer data
+            long endTime = System.currentTimeMillis();
+            System.out.println("Finished uploading the file " + srcFilename + " to the server.");
+            System.out.println("File " + srcFilename + " was " + fileSize + " bytes.");
+            System.out.println("File transfer took " + (endTime - startTime) + "ms.");
+        } finally {
+            stream.close();
+        }
+    }
+
+    /*
+     * Gets or posts a file in segments over up to maxConnections connections.
+     */
+    private static void transferSegmented(ConnectionPool pool, int maxConnections, Transfer transfer,
+            boolean isGet, String srcFilename, String destFilename) throws IOException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+        int numConnections;
+        try {
+            numConnections = new SegmentedTransfer(pool, maxConnections, transfer,
+                    isGet, srcFilename, destFilename).run();
+        } catch (FileNotFoundException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+
+        // post the time it took to transfer data
+        long endTime = System.currentTimeMillis();
+        if (isGet) {
+            System.out.println("File " + srcFilename + " was successfully copied.");
+        } else {
+            System.out.println("Finished uploading the file " + srcFilename + " to the server.");
+        }
+        System.out.println("File " + srcFilename + " was " + new File(isGet ? destFilename : srcFilename).length()
+                + " bytes, moved over " + numConnections + " connections.");
+        System.out.println("File transfer took " + (endTime - startTime) + "ms.");
+    }
+
+    private static void startTransfer(Transfer transfer) {
+        transfers.add(transfer);
+        transfer.start();
+    }
+
+    /*
+     * A get or post running on its own thread and stream, so the console takes
+     * more commands while it runs.
+     */
+    static abstract class Transfer extends Thread {
+        private final String description;
+        private long size = -1;
+        private long count;
+
+        Transfer(String description) {
+            this.description = description;
+        }
+
+        public void run() {
+            try {
+                transfer();
+            } catch (IOException | InterruptedException e) {
+                System.out.println("EXCEPTION: " + e.getMessage());
+            } finally {
+                transfers.remove(this);
+            }
+        }
+
+        abstract void transfer() throws IOException, InterruptedException;
+
+        synchronized void setSize(long size) {
+            this.size = size;
+        }
+
+        /*
+         * Counts bytes copied, the segments of a transfer are copied by several threads.
+         */
+        synchronized void progress(long numCopied) {
+            count += numCopied;
+        }
+
+        synchronized String getStatus() {
+            if (size < 0) {
+                return description + ": waiting for the server";
+            }
+            return description + ": " + count + " of " + size + " bytes ( "
+                    + (size == 0 ? 100 : count * 100 / size) + "% )";
+        }
+    }
+
+    /*
+     * A missing or unreadable ticket only means the next connection does the
+     * full handshake.
+     */
+    private static byte[] loadTicket() {
+        try {
+            return Files.exists(TICKET_FILE) ? Files.readAllBytes(TICKET_FILE) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    private static void saveTicket(byte[] ticket) {
+        try {
+            if (ticket == null) {
+                Files.deleteIfExists(TICKET_FILE);
+            } else {
+                Files.write(TICKET_FILE, ticket);
+            }
+        } catch (IOException e) {
+            System.out.println("EXCEPTION: Unable to save the session ticket. " + e.getMessage());
+        }
+    }
+
     private static void printHelp() {
         System.out.println("\nValid commands");
         System.out.println("  connect                         Connect the client to the server.");
-        System.out.println("  window windowSize               Configure the window size of the TCP client.");
+        System.out.println("  window windowSize|auto          Configure or autotune the window size of the TCP client.");
+        System.out.println("  congestion reno|cubic           Configure the congestion control of the TCP client.");
+        System.out.println("  mss segmentSize                 Configure the maximum segment size offered on connect.");
+        System.out.println("  checksum crc32c|internet        Configure the checksum offered on connect.");
+        System.out.println("  fec on|off                      Send parity packets so lost chunks of posts need no resend.");
         System.out.println("  get srcFilename destFilename    Download filename from the server to the client.");
         System.out.println("  post srcFilename destFilename   Upload filename from the client to the server.");
+        System.out.println("  status                          Show the progress of the gets and posts running.");
+        System.out.println("  connections maxConnections      Spread gets and posts over up to maxConnections connections.");
         System.out.println("  disconnect                      Shut down the client.");
     }
 }
@@ -7,19 +7,32 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import util.ConvertLib;
 import util.InvalidPortException;
+import dtp.CubicCongestionControl;
+import dtp.DTPMultiplexer;
 import dtp.DTPSocket;
+import dtp.DTPStream;
+import dtp.RenoCongestionControl;
 
 public class MagicFTPServer {
 
     public final static int BUFFER_SIZE = 255;
     public final static int BIG_BUFFER_SIZE = 10000;
+    public final static int MAX_CLIENTS = 64;
+    // requests serviced at once across all clients, more wait for a worker
+    public final static int MAX_REQUESTS = 256;
 
     /**
      * MagicFTP Server Application
@@ -54,128 +67,49 @@ public class MagicFTPServer {
             final DTPSocket serverSocket = new DTPSocket(serverPort, netEmuIp, netEmuPort);
             serverSocket.listen();
 
+            // Each accepted client is serviced by its own worker, so a slow
+            // client doesn't hold up the others. No more clients are accepted
+            // than there are workers to service them.
+            final ExecutorService workers = Executors.newFixedThreadPool(MAX_CLIENTS);
+            final Semaphore freeWorkers = new Semaphore(MAX_CLIENTS);
+            // the requests of all clients share their own workers, so clients
+            // opening many streams don't get a thread for each
+            final ExecutorService requestWorkers = Executors.newFixedThreadPool(MAX_REQUESTS);
             Thread runny = new Thread() {
                 public void run() {
-                    byte[] buffer = new byte[BUFFER_SIZE];
                     while (!serverSocket.isClosed()) {
                         try {
+                            freeWorkers.acquire();
                             System.out.println("Server started. Waiting for clients...");
-                            DTPSocket clientSocket = serverSocket.accept();
-
-                            // will be null only if the server socket is closed
+                            DTPSocket clientSocket = null;
+                            try {
+                                clientSocket = serverSocket.accept();
+                            } finally {
+                                // will be null only if the server socket is closed
+                                if (clientSocket == null) freeWorkers.release();
+                            }
                             if (clientSocket == null) {
                                 continue;
                             }
-            
-                            // Set-up to interact with client
-                            String clientName = clientSocket.getSrcIp().toString()
-                                    + ":" + clientSocket.getSrcPort();
-                            System.out.println("Client " + clientName + " accepted!");
-    
-                            int length = 0;
-                            String inMsg = "";
-                            String outMsg = "";
-
-                            // servicing the client
-                            while (!clientSocket.isClosed()) {
-                                try {
-                                    length = clientSocket.recv(buffer);
-                                    inMsg = ConvertLib.convertBytesToString(buffer, length);
-                                    // System.out.println("Command found: " + inMsg);
-    
-                                    // skip if the message is nonsense
-                                    if (inMsg == null || inMsg.isEmpty()) continue;
-    
-                                    // GET
-                                    if (inMsg.substring(0, "GET ".length()).equals("GET ")) {
-                                        String filename = inMsg.replace("GET ", "");
-                                        System.out.println(clientName + " requests GET " + filename);
-                                        File file = new File(filename);
-                                        if (!file.exists()) {
-                                            // file does not exist at the server side
-                                            System.out.println("File " + filename + " does not exist! Denied...");
-                                            outMsg = "FILE " + filename + " DOES NOT EXIST";
-                                            clientSocket.send(ConvertLib.convertStringToBytes(outMsg));
-                                        } else {
-                                            // telling the client that the file exists
-                                            System.out.println("File exists! Telling client...");
-                                            outMsg = "FILE " + filename + " OK\nFILE SIZE " + file.length();
-                                            clientSocket.send(ConvertLib.convertStringToBytes(outMsg));
-
-                                            // getting the acknowledgment from the client before sending data
-                                            buffer = new byte[BUFFER_SIZE];
-                                            length = clientSocket.recv(buffer);
-                                            inMsg = ConvertLib.convertBytesToString(buffer, length);
-                                            // System.out.println("MSG: " + inMsg);
-
-                                            // ready to upload the file to the client
-                                            if (inMsg.equals("FILE " + filename + " READY")) {
-                                                System.out.println("Ready to upload file to client " + clientName);
-                                                DataInputStream reader = new DataInputStream(new FileInputStream(file));
-                                                long count = 0;
-                                                long fileSize = file.length();
-                                                while (count < fileSize) {
-                                                    buffer = new byte[BIG_BUFFER_SIZE];
-                                                    int numCopied = reader.read(buffer);
-                                                    buffer = Arrays.copyOfRange(buffer, 0, numCopied);
-                                                    clientSocket.send(buffer);
-                                                    count += numCopied;
-                                                }
-                                                System.out.println("File " + filename + " uploaded to " + clientName);
-                                                reader.close();
-                                            }
-                    
-                                        }
-                                    }
-                
-                                    // POST
-                                    else if (inMsg.substring(0, "POST ".length()).equals("POST ")) {
-                                        String[] msgSplit = inMsg.split(" ");
-                                        String srcFilename = msgSplit[1];
-                                        String destFilename = msgSplit[3];
-
-                                        // ask client the file size to prepare for downloading
-                                        System.out.println("Requesting file information");
-                                        buffer = ConvertLib.convertStringToBytes("FILE " + srcFilename + " OK REQUEST SIZE");
-                                        clientSocket.send(buffer);
-
-                                        // getting the file size
-                                        buffer = new byte[BUFFER_SIZE];
-                                        length = clientSocket.recv(buffer);
-                                        inMsg = ConvertLib.convertBytesToString(buffer, length);
-                                        String fileSizeTemp = inMsg.substring(inMsg.indexOf("FILE SIZE"), inMsg.length())
-                                                .replace("FILE SIZE ", "");
-                                        long fileSize = Long.parseLong(fileSizeTemp);
-
-                                        // acknowledging client to send data
-                                        buffer = ConvertLib.convertStringToBytes("FILE " + srcFilename + " READY");
-                                        clientSocket.send(buffer);
-
-                                        // downloading file from the client
-                                        System.out.println("Uploading file " + srcFilename + " to the server.");
-                                        DataOutputStream writer = new DataOutputStream(new FileOutputStream(destFilename));
-                                        long count = 0;
-                                        while (count < fileSize) {
-                                            buffer = new byte[BIG_BUFFER_SIZE];
-                                            int numCompied = clientSocket.recv(buffer);
-                                            count += numCompied;
-                                            writer.write(buffer, 0, numCompied);
-                                        }
-                                        System.out.println("File " + srcFilename + " was successfully copied.");
-                                        writer.close();
+
+                            final DTPSocket client = clientSocket;
+                            workers.execute(new Runnable() {
+                                public void run() {
+                                    try {
+                                        serviceClient(client, requestWorkers);
+                                    } finally {
+                                        freeWorkers.release();
                                     }
-                                } catch (IOException e) {
-                                    System.out.println("EXCEPTION: " + e.getMessage());
-                                } catch (InterruptedException e) {
-                                    System.out.println("EXCEPTION: " + e.getMessage());
                                 }
-                            }
+                            });
                         } catch (InterruptedException e) {
                             System.out.println("EXCEPTION: " + e.getMessage());
                         } catch (IOException e) {
                             System.out.println("EXCEPTION: " + e.getMessage());
                         }
                     }
+                    workers.shutdown();
+                    requestWorkers.shutdown();
                     System.exit(0);
                 }
             };
@@ -205,6 +139,7 @@ public class MagicFTPServer {
                 System.out.println("Type ? for access to commands.");
                 System.out.print("Please type in a command. > ");
                 String response = scanny.nextLine();
+                String command = response.split(" ")[0];    // the first word names the command
     
                 // Terminating the server socket
                 if (response.equals("terminate")) {
@@ -224,15 +159,20 @@ public class MagicFTPServer {
 
                 // Adjusting the receiving window for the server socket.
                 // All sockets that are accepted will have the same window size.
-                else if (response.contains("window")) {
+                else if (command.equals("window")) {
                     final String responseFinal = response;
                     Thread req = new Thread() {
                         public void run() {
                             try {
+                                if (responseFinal.split(" ")[1].equals("auto")) {
+                                    serverSocket.autoWindow(true);
+                                    System.out.println("Tuning the window size for file transfer");
+                                    return;
+                                }
                                 int windowSize = Integer.parseInt(responseFinal.split(" ")[1]);
                                 serverSocket.window(windowSize);
                                 System.out.println("Setting window size for file transfer to " + windowSize);
-                            } catch (NumberFormatException e) {
+                            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
                                 System.out.println("EXCEPTION: " + e.getMessage() + " Must input a valid number!");
                             }
                         }
@@ -240,6 +180,179 @@ public class MagicFTPServer {
                     executor.execute(req);
                 }
     
+                // Adjusting the maximum segment size offered by the server socket.
+                // All sockets that are accepted will negotiate with this MSS.
+                else if (command.equals("mss")) {
+                    final String responseFinal = response;
+                    Thread req = new Thread() {
+                        public void run() {
+                            try {
+                                int mss = Integer.parseInt(responseFinal.split(" ")[1]);
+                                if (serverSocket.mss(mss)) {
+                                    System.out.println("Setting maximum segment size to " + mss);
+                                } else {
+                                    System.out.println("EXCEPTION: MSS must be 1 to 65252!");
+                                }
+                            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                                System.out.println("EXCEPTION: " + e.getMessage() + " Must input a valid number!");
+                            }
+                        }
+                    };
+                    executor.execute(req);
+                }
+
+                // Choosing the congestion control for the server socket.
+                // All sockets that are accepted will use the same algorithm.
+                else if (command.equals("congestion")) {
+                    final String responseFinal = response;
+                    Thread req = new Thread() {
+                        public void run() {
+                            String algorithm = responseFinal.replace("congestion", "").trim();
+                            if (algorithm.equals("cubic")) {
+                                serverSocket.congestionControl(new CubicCongestionControl());
+                                System.out.println("Setting congestion control to CUBIC");
+                            } else if (algorithm.equals("reno")) {
+                                serverSocket.congestionControl(new RenoCongestionControl());
+                                System.out.println("Setting congestion control to NewReno");
+                            } else {
+                                System.out.println("EXCEPTION: Must input reno or cubic!");
+                            }
+                        }
+                    };
+                    executor.execute(req);
+                }
+
+                // Choosing the checksum offered by the server socket.
+                // All sockets that are accepted will negotiate with this checksum.
+                else if (command.equals("checksum")) {
+                    final String responseFinal = response;
+                    Thread req = new Thread() {
+                        public void run() {
+                            String checksum = responseFinal.replace("checksum", "").trim();
+                            if (checksum.equals("crc32c") || checksum.equals("internet")) {
+                                serverSocket.crc32c(checksum.equals("crc32c"));
+                                System.out.println("Setting checksum offered to " + checksum);
+                            } else {
+                                System.out.println("EXCEPTION: Must input crc32c or internet!");
+                            }
+                        }
+                    };
+                    executor.execute(req);
+                }
+
+                // Choosing whether the server socket sends parity packets with files.
+                // All sockets that are accepted will use the same setting.
+                else if (command.equals("fec")) {
+                    final String responseFinal = response;
+                    Thread req = new Thread() {
+                        public void run() {
+                            String fec = responseFinal.replace("fec", "").trim();
+                            if (fec.equals("on") || fec.equals("off")) {
+                                serverSocket.fec(fec.equals("on"));
+                                System.out.println("Setting parity packets " + fec);
+                            } else {
+                                System.out.println("EXCEPTION: Must input on or off!");
+                            }
+                        }
+                    };
+                    executor.execute(req);
+                }
+
+                // Bounding the connections waiting to be accepted by the server socket.
+                else if (command.equals("backlog")) {
+                    final String responseFinal = response;
+                    Thread req = new Thread() {
+                        public void run() {
+                            try {
+                                int backlog = Integer.parseInt(responseFinal.split(" ")[1]);
+                                if (serverSocket.backlog(backlog)) {
+                                    System.out.println("Setting backlog to " + backlog);
+                                } else {
+                                    System.out.println("EXCEPTION: Backlog must be 1 to 32000!");
+                                }
+                            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                                System.out.println("EXCEPTION: " + e.getMessage() + " Must input a valid number!");
+                            }
+                        }
+                    };
+                    executor.execute(req);
+                }
+
+                // Capping the rate all clients are sent files at together.
+                else if (command.equals("totalrate")) {
+                    final String responseFinal = response;
+                    Thread req = new Thread() {
+                        public void run() {
+                            try {
+                                long rate = Long.parseLong(responseFinal.split(" ")[1]);
+                                if (serverSocket.maxTotalRate(rate)) {
+                                    System.out.println("Setting total rate to " + rate + " bytes/s");
+                                } else {
+                                    System.out.println("EXCEPTION: Rate must be 0 or more!");
+                                }
+                            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                                System.out.println("EXCEPTION: " + e.getMessage() + " Must input a valid number!");
+                            }
+                        }
+                    };
+                    executor.execute(req);
+                }
+
+                // Capping the rate each client is sent files at.
+                // Applies to the clients already connected too.
+                else if (command.equals("rate")) {
+                    final String responseFinal = response;
+                    Thread req = new Thread() {
+                        public void run() {
+                            try {
+                                long rate = Long.parseLong(responseFinal.split(" ")[1]);
+                                if (serverSocket.maxRate(rate)) {
+                                    System.out.println("Setting rate per client to " + rate + " bytes/s");
+                                } else {
+                                    System.out.println("EXCEPTION: Rate must be 0 or more!");
+                                }
+                            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                                System.out.println("EXCEPTION: " + e.getMessage() + " Must input a valid number!");
+                            }
+                        }
+                    };
+                    executor.execute(req);
+                }
+
+                // Capping the memory the windows of all clients take together.
+                else if (command.equals("memory")) {
+                    final String responseFinal = response;
+                    Thread req = new Thread() {
+                        public void run() {
+                            try {
+                                long bytes = Long.parseLong(responseFinal.split(" ")[1]);
+                                if (serverSocket.maxReceiveMemory(bytes)) {
+                                    System.out.println("Setting receive memory to " + bytes + " bytes");
+                                } else {
+                                    System.out.println("EXCEPTION: Memory must be 1 or more!");
+                                }
+                            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                                System.out.println("EXCEPTION: " + e.getMessage() + " Must input a valid number!");
+                            }
+                        }
+                    };
+                    executor.execute(req);
+                }
+
+                // Printing how many clients the server socket has and turned away.
+                else if (response.equals("stats")) {
+                    System.out.println("Live connections: " + serverSocket.getConnectionCount());
+                    System.out.println("Clients dropped with a full backlog: "
+                            + serverSocket.getDroppedRequests());
+                    System.out.println("Failed challenges: " + serverSocket.getFailedChallenges());
+                    System.out.println("Packets dropped with a full receive buffer: "
+                            + serverSocket.getDroppedPackets());
+                    System.out.println("Rate per client: " + formatRate(serverSocket.getMaxRate())
+                            + ", total rate: " + formatRate(serverSocket.getMaxTotalRate()));
+                    System.out.println("Receive memory: " + serverSocket.getReceiveMemory()
+                            + " of " + serverSocket.getMaxReceiveMemory() + " bytes");
+                }
+
                 // HELP
                 else if (response.equals("?")) {
                     printHelp();
@@ -261,9 +374,212 @@ public class MagicFTPServer {
         }
     }
 
+    /*
+     * Services the GET and POST requests of one client until it disconnects.
+     * All the state of the session lives here, so clients are serviced
+     * independently of each other. Every request comes on a stream of its own
+     * and is serviced by one of the request workers, so one client can run
+     * several transfers at once.
+     */
+    private static void serviceClient(DTPSocket clientSocket, ExecutorService requestWorkers) {
+        // Set-up to interact with client
+        final String clientName = clientSocket.getSrcIp().toString()
+                + ":" + clientSocket.getSrcPort();
+        System.out.println("Client " + clientName + " accepted!");
+        DTPMultiplexer mux = new DTPMultiplexer(clientSocket, false);
+
+        // servicing the client until it closes the connection
+        try {
+            DTPStream stream;
+            while ((stream = mux.acceptStream()) != null) {
+                final DTPStream request = stream;
+                requestWorkers.execute(new Runnable() {
+                    public void run() {
+                        serviceRequest(request, clientName);
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            System.out.println("EXCEPTION: " + e.getMessage());
+        }
+        System.out.println("Client " + clientName + " disconnected.");
+    }
+
+    /*
+     * Services one GET or POST request on its stream.
+     */
+    private static void serviceRequest(DTPStream stream, String clientName) {
+        byte[] copyBuffer = new byte[BIG_BUFFER_SIZE];
+        String inMsg = "";
+        String outMsg = "";
+
+        try {
+            DataInputStream in = new DataInputStream(stream.getInputStream());
+            DataOutputStream out = new DataOutputStream(stream.getOutputStream());
+            inMsg = in.readUTF();
+
+            // GET of a segment, the file size and the segment are sent right away
+            if (inMsg.startsWith("GET ") && inMsg.contains(" RANGE ")) {
+                String[] msgSplit = inMsg.split(" ");
+                String filename = msgSplit[1];
+                long start = Long.parseLong(msgSplit[3]);
+                long length = Long.parseLong(msgSplit[4]);
+                File file = new File(filename);
+                if (!file.exists()) {
+                    out.writeUTF("FILE " + filename + " DOES NOT EXIST");
+                } else {
+                    FileChannel reader = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    try {
+                        long fileSize = reader.size();
+                        out.writeUTF("FILE " + filename + " OK\nFILE SIZE " + fileSize);
+                        long end = Math.min(fileSize, start + length);
+                        long count = start;
+                        while (count < end) {
+                            ByteBuffer bytes = ByteBuffer.wrap(copyBuffer, 0,
+                                    (int) Math.min(copyBuffer.length, end - count));
+                            int numCopied = reader.read(bytes, count);
+                            if (numCopied < 0) break;
+                            out.write(copyBuffer, 0, numCopied);
+                            count += numCopied;
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                }
+            }
+
+            // GET
+            else if (inMsg.startsWith("GET ")) {
+                String filename = inMsg.replace("GET ", "");
+                System.out.println(clientName + " requests GET " + filename);
+                File file = new File(filename);
+                if (!file.exists()) {
+                    // file does not exist at the server side
+                    System.out.println("File " + filename + " does not exist! Denied...");
+                    outMsg = "FILE " + filename + " DOES NOT EXIST";
+                    out.writeUTF(outMsg);
+                } else {
+                    // telling the client that the file exists
+                    System.out.println("File exists! Telling client...");
+                    outMsg = "FILE " + filename + " OK\nFILE SIZE " + file.length();
+                    out.writeUTF(outMsg);
+
+                    // getting the acknowledgment from the client before sending data
+                    inMsg = in.readUTF();
+
+                    // ready to upload the file to the client
+                    if (inMsg.equals("FILE " + filename + " READY")) {
+                        System.out.println("Ready to upload file to client " + clientName);
+                        DataInputStream reader = new DataInputStream(new FileInputStream(file));
+                        long count = 0;
+                        long fileSize = file.length();
+                        while (count < fileSize) {
+                            int numCopied = reader.read(copyBuffer);
+                            if (numCopied < 0) break;
+                            out.write(copyBuffer, 0, numCopied);
+                            count += numCopied;
+                        }
+                        out.close();
+                        System.out.println("File " + filename + " uploaded to " + clientName);
+                        reader.close();
+                    }
+                }
+            }
+
+            // POST of a segment, written where it belongs in the file
+            else if (inMsg.startsWith("POST ") && inMsg.contains(" RANGE ")) {
+                String[] msgSplit = inMsg.split(" ");
+                String srcFilename = msgSplit[1];
+                String destFilename = msgSplit[3];
+                long start = Long.parseLong(msgSplit[5]);
+                long length = Long.parseLong(msgSplit[6]);
+                long fileSize = Long.parseLong(msgSplit[8]);
+                out.writeUTF("FILE " + srcFilename + " READY");
+
+                FileChannel writer = FileChannel.open(Paths.get(destFilename),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                try {
+                    // the other segments only ever write below fileSize
+                    if (writer.size() > fileSize) {
+                        writer.truncate(fileSize);
+                    }
+                    long count = 0;
+                    while (count < length) {
+                        int numCopied = in.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, length - count));
+                        if (numCopied < 0) {
+                            throw new IOException("Stream ended before the segment was copied!");
+                        }
+                        ByteBuffer bytes = ByteBuffer.wrap(copyBuffer, 0, numCopied);
+                        while (bytes.hasRemaining()) {
+                            writer.write(bytes, start + count + bytes.position());
+                        }
+                        count += numCopied;
+                    }
+                } finally {
+                    writer.close();
+                }
+            }
+
+            // POST
+            else if (inMsg.startsWith("POST ")) {
+                String[] msgSplit = inMsg.split(" ");
+                String srcFilename = msgSplit[1];
+                String destFilename = msgSplit[3];
+
+                // ask client the file size to prepare for downloading
+                System.out.println("Requesting file information");
+                out.writeUTF("FILE " + srcFilename + " OK REQUEST SIZE");
+
+                // getting the file size
+                inMsg = in.readUTF();
+                String fileSizeTemp = inMsg.substring(inMsg.indexOf("FILE SIZE"), inMsg.length())
+                        .replace("FILE SIZE ", "");
+                long fileSize = Long.parseLong(fileSizeTemp);
+
+                // acknowledging client to send data
+                out.writeUTF("FILE " + srcFilename + " READY");
+
+                // downloading file from the client
+                System.out.println("Uploading file " + srcFilename + " to the server.");
+                DataOutputStream writer = new DataOutputStream(new FileOutputStream(destFilename));
+                long count = 0;
+                while (count < fileSize) {
+                    int numCompied = in.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, fileSize - count));
+                    if (numCompied < 0) {
+                        throw new IOException("Stream ended before the file was copied!");
+                    }
+                    count += numCompied;
+                    writer.write(copyBuffer, 0, numCompied);
+                }
+                System.out.println("File " + srcFilename + " was successfully copied.");
+                writer.close();
+            }
+            stream.close();
+        } catch (IOException e) {
+            System.out.println("EXCEPTION: " + e.getMessage());
+        }
+    }
+
+    private static String formatRate(long rate) {
+        return rate == 0 ? "no limit" : rate + " bytes/s";
+    }
+
     private static void printHelp() {
         System.out.println("\nValid commands");
-        System.out.println("  window windowSize   Configure the window size of the TCP server.");
+        System.out.println("  window windowSize|auto");
+        System.out.println("                      Configure or autotune the window size of the TCP server.");
+        System.out.println("  congestion reno|cubic");
+        System.out.println("                      Configure the congestion control of the TCP server.");
+        System.out.println("  mss segmentSize     Configure the maximum segment size of the TCP server.");
+        System.out.println("  checksum crc32c|internet");
+        System.out.println("                      Configure the checksum offered by the TCP server.");
+        System.out.println("  fec on|off          Send parity packets so lost chunks of gets need no resend.");
+        System.out.println("  backlog size        Configure the connections waiting to be accepted.");
+        System.out.println("  rate bytesPerSecond Cap the rate each client is sent at, 0 for no cap.");
+        System.out.println("  totalrate bytesPerSecond");
+        System.out.println("                      Cap the rate all clients are sent at, 0 for no cap.");
+        System.out.println("  memory bytes        Cap the memory the windows of all clients take.");
+        System.out.println("  stats               Show the clients, drops, rate caps and memory of the TCP server.");
         System.out.println("  terminate           Shut down the server.");
     }
 }
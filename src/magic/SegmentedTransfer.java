@@ -0,0 +1,280 @@
+package magic;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import dtp.DTPMultiplexer;
+import dtp.DTPStream;
+
+/**
+ * A get or post split into segments that travel over several connections at once.
+ *
+ * One connection is limited by its own window and its own loss recovery, so on
+ * lossy links a few of them together move a file faster than one. The file is cut
+ * into segments of SEGMENT_SIZE bytes, and every connection takes the next segment
+ * nobody took yet, so faster connections move more of them. Each segment is a
+ * GET or POST with a RANGE, see the README. Segments are written where they
+ * belong in the file with positional writes, in whatever order they arrive.
+ *
+ * The transfer starts on one connection. Once every connection has moved a
+ * segment, another one is added if the last one added raised the throughput by
+ * MIN_GAIN or more, up to the most connections allowed.
+ */
+final class SegmentedTransfer {
+
+    final static long SEGMENT_SIZE = 4 * 1024 * 1024;
+    // how much a new connection must raise the throughput to get another one after it
+    private final static double MIN_GAIN = 1.2;
+
+    private final ConnectionPool pool;
+    private final int maxConnections;
+    private final MagicFTPClient.Transfer transfer;
+    private final boolean isGet;
+    private final String srcFilename;
+    private final String destFilename;
+
+    private FileChannel file;
+    private long size = -1;             // unknown for a get until the first segment
+    private long nextSegment;           // where the next segment nobody took starts
+    private final List<Thread> workers;
+    private final double[] rates;       // bytes per second of each connection's last segment
+    private final boolean[] isMeasured; // connections that moved a segment since the last was added
+    private double lastRate;            // the throughput before the last connection was added
+    private boolean isGrowing = true;
+    private boolean isMissing;
+    private IOException error;
+
+    /**
+     * @param isGet true to download srcFilename to destFilename, false to upload it
+     */
+    SegmentedTransfer(ConnectionPool pool, int maxConnections, MagicFTPClient.Transfer transfer,
+            boolean isGet, String srcFilename, String destFilename) {
+        this.pool = pool;
+        this.maxConnections = maxConnections;
+        this.transfer = transfer;
+        this.isGet = isGet;
+        this.srcFilename = srcFilename;
+        this.destFilename = destFilename;
+        this.workers = new ArrayList<>();
+        this.rates = new double[maxConnections];
+        this.isMeasured = new boolean[maxConnections];
+    }
+
+    /**
+     * Moves the file and waits until every segment is done.
+     * @return the number of connections used.
+     * @throws FileNotFoundException if the file of a get does not exist on the server.
+     */
+    int run() throws IOException, InterruptedException {
+        if (!isGet) {
+            file = FileChannel.open(Paths.get(srcFilename), StandardOpenOption.READ);
+            size = file.size();
+            transfer.setSize(size);
+        }
+        try {
+            synchronized (this) {
+                startWorker();
+            }
+            // workers are only added by running workers, so once every worker in
+            // the list is done, no more are coming
+            for (int i = 0; ; i++) {
+                Thread worker;
+                synchronized (this) {
+                    if (i == workers.size()) break;
+                    worker = workers.get(i);
+                }
+                worker.join();
+            }
+        } finally {
+            if (file != null) file.close();
+        }
+        if (isMissing) throw new FileNotFoundException("File " + srcFilename + " does not exist on the server!");
+        if (error != null) throw new IOException(error.getMessage(), error);
+        return workers.size();
+    }
+
+    private void startWorker() {
+        final int index = workers.size();
+        Thread worker = new Thread() {
+            public void run() {
+                work(index);
+            }
+        };
+        workers.add(worker);
+        worker.start();
+    }
+
+    /*
+     * Moves segments over the index-th connection until there are none left.
+     */
+    private void work(int index) {
+        DTPMultiplexer mux;
+        try {
+            mux = pool.get(index);
+        } catch (IOException | InterruptedException e) {
+            // the connections already open keep going
+            System.out.println("EXCEPTION: Unable to open another connection. " + e.getMessage());
+            synchronized (this) {
+                isGrowing = false;
+            }
+            if (index == 0) setError(new IOException(e.getMessage(), e));
+            return;
+        }
+
+        try {
+            while (true) {
+                long start;
+                synchronized (this) {
+                    if (error != null || isMissing) return;
+                    if (nextSegment > 0 && nextSegment >= size) return;
+                    start = nextSegment;
+                    nextSegment += SEGMENT_SIZE;
+                }
+                long startTime = System.nanoTime();
+                long length = isGet ? getSegment(mux, start) : postSegment(mux, start);
+                if (length < 0) return;
+                segmentDone(index, length, System.nanoTime() - startTime);
+            }
+        } catch (IOException e) {
+            setError(e);
+        }
+    }
+
+    /*
+     * Downloads the segment at start. The server tells the size of the file
+     * along with the segment.
+     * Returns the length of the segment, or -1 if the file does not exist.
+     */
+    private long getSegment(DTPMultiplexer mux, long start) throws IOException {
+        DTPStream stream = mux.openStream();
+        try {
+            DataInputStream in = new DataInputStream(stream.getInputStream());
+            DataOutputStream out = new DataOutputStream(stream.getOutputStream());
+            out.writeUTF("GET " + srcFilename + " RANGE " + start + " " + SEGMENT_SIZE);
+            out.close();
+
+            String msg = in.readUTF();
+            if (!msg.contains("FILE " + srcFilename + " OK")) {
+                synchronized (this) {
+                    isMissing = true;
+                }
+                return -1;
+            }
+            long fileSize = Long.parseLong(msg.substring(msg.indexOf("FILE SIZE"), msg.length())
+                    .replace("FILE SIZE ", ""));
+            FileChannel destination = openDestination(fileSize);
+
+            long length = Math.max(0, Math.min(SEGMENT_SIZE, fileSize - start));
+            byte[] buffer = new byte[MagicFTPServer.BIG_BUFFER_SIZE];
+            long count = 0;
+            while (count < length) {
+                int numCopied = in.read(buffer, 0, (int) Math.min(buffer.length, length - count));
+                if (numCopied < 0) {
+                    throw new IOException("Stream ended before the segment was copied!");
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, numCopied);
+                while (bytes.hasRemaining()) {
+                    destination.write(bytes, start + count + bytes.position());
+                }
+                count += numCopied;
+                transfer.progress(numCopied);
+            }
+            return length;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /*
+     * Creates the destination of a get once the size of the file is known.
+     */
+    private synchronized FileChannel openDestination(long fileSize) throws IOException {
+        if (file == null) {
+            file = FileChannel.open(Paths.get(destFilename), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            size = fileSize;
+            transfer.setSize(fileSize);
+        }
+        return file;
+    }
+
+    /*
+     * Uploads the segment at start, and waits for the server to write it.
+     * Returns the length of the segment.
+     */
+    private long postSegment(DTPMultiplexer mux, long start) throws IOException {
+        long length = Math.min(SEGMENT_SIZE, size - start);
+        DTPStream stream = mux.openStream();
+        try {
+            DataInputStream in = new DataInputStream(stream.getInputStream());
+            DataOutputStream out = new DataOutputStream(stream.getOutputStream());
+            out.writeUTF("POST " + srcFilename + " TO " + destFilename
+                    + " RANGE " + start + " " + length + " OF " + size);
+            String msg = in.readUTF();
+            if (!msg.equals("FILE " + srcFilename + " READY")) {
+                throw new IOException("Server cannot get file " + srcFilename);
+            }
+
+            byte[] buffer = new byte[MagicFTPServer.BIG_BUFFER_SIZE];
+            long count = 0;
+            while (count < length) {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, length - count));
+                int numCopied = file.read(bytes, start + count);
+                if (numCopied < 0) {
+                    throw new IOException("File " + srcFilename + " got shorter!");
+                }
+                out.write(buffer, 0, numCopied);
+                count += numCopied;
+                transfer.progress(numCopied);
+            }
+            out.close();
+
+            // the server ends the stream once the segment is written
+            if (in.read() >= 0) {
+                throw new IOException("Server cannot get file " + srcFilename);
+            }
+            return length;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /*
+     * Measures the connection on its segment and adds a connection while the
+     * last one added paid off.
+     */
+    private synchronized void segmentDone(int index, long length, long nanos) {
+        // only whole segments are fair measurements
+        if (length < SEGMENT_SIZE) return;
+        rates[index] = length * 1e9 / Math.max(nanos, 1);
+        isMeasured[index] = true;
+        if (!isGrowing || workers.size() >= maxConnections || nextSegment >= size) return;
+
+        double rate = 0;
+        for (int i = 0; i < workers.size(); i++) {
+            if (!isMeasured[i]) return;
+            rate += rates[i];
+        }
+        if (workers.size() > 1 && rate < lastRate * MIN_GAIN) {
+            isGrowing = false;
+            return;
+        }
+        lastRate = rate;
+        for (int i = 0; i < workers.size(); i++) {
+            isMeasured[i] = false;
+        }
+        startWorker();
+    }
+
+    private synchronized void setError(IOException e) {
+        if (error == null) error = e;
+    }
+}
@@ -0,0 +1,150 @@
+package test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import dtp.DTPSocket;
+import dtp.Packet;
+
+/**
+ * Test for handshakes in parallel.
+ * A slow client starts connecting first, but the relay drops everything it
+ * sends after its SYN, so it never answers its challenge. Meanwhile other
+ * clients connect all at once. Each of them must be accept()ed quickly, and
+ * the connection must work, while the slow client never is.
+ * No NetEmu is needed, a relay routing by the destination port of the packets
+ * stands in for it.
+ */
+public class ConcurrentHandshakeTest {
+
+    private final static int SERVER_PORT = 8097;
+    private final static int RELAY_PORT = 8098;
+    private final static int SLOW_PORT = 8100;
+    private final static int FIRST_CLIENT_PORT = 8102;
+    private final static int NUM_CLIENTS = 8;
+    private final static long MAX_CONNECT_TIME = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * Run this to test handshakes in parallel.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        startRelay(loopback);
+        final DTPSocket server = new DTPSocket(SERVER_PORT, loopback, RELAY_PORT);
+        server.listen();
+
+        final int[] acceptedPorts = new int[NUM_CLIENTS];
+        Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < NUM_CLIENTS; i++) {
+                        DTPSocket socket = server.accept();
+                        ByteBuffer port = ByteBuffer.allocate(4);
+                        socket.recv(port);
+                        acceptedPorts[i] = port.getInt(0);
+                        socket.send(ByteBuffer.wrap(port.array()));
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        Thread slow = connector(loopback, SLOW_PORT, null);
+        Thread.sleep(50);
+
+        long start = System.nanoTime();
+        final boolean[] isEchoed = new boolean[NUM_CLIENTS];
+        Thread[] clients = new Thread[NUM_CLIENTS];
+        for (int i = 0; i < NUM_CLIENTS; i++) {
+            clients[i] = connector(loopback, FIRST_CLIENT_PORT + 2 * i, isEchoed);
+        }
+        for (Thread client : clients) {
+            client.join(TimeUnit.NANOSECONDS.toMillis(MAX_CONNECT_TIME));
+        }
+        long elapsed = System.nanoTime() - start;
+
+        boolean isAllEchoed = true;
+        for (boolean echoed : isEchoed) {
+            isAllEchoed &= echoed;
+        }
+        boolean isSlowLeftOut = true;
+        for (int port : acceptedPorts) {
+            isSlowLeftOut &= port != SLOW_PORT;
+        }
+
+        System.out.println("--- test ---");
+        System.out.println("connect ms:\t\t" + TimeUnit.NANOSECONDS.toMillis(elapsed));
+        System.out.print("all accepted:\t\t");
+        System.out.println(isAllEchoed && elapsed < MAX_CONNECT_TIME);
+        System.out.print("slow client waiting:\t");
+        System.out.println(isSlowLeftOut && slow.isAlive());
+        System.exit(0);
+    }
+
+    /*
+     * Connects a client on its own thread, and sends its port through the
+     * connection to get it back.
+     */
+    private static Thread connector(final InetAddress loopback, final int port, final boolean[] isEchoed) {
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    DTPSocket client = new DTPSocket(port, loopback, RELAY_PORT);
+                    client.connect(SERVER_PORT);
+                    ByteBuffer message = ByteBuffer.allocate(4).putInt(0, port);
+                    client.send(message);
+                    ByteBuffer echo = ByteBuffer.allocate(4);
+                    client.recv(echo);
+                    isEchoed[(port - FIRST_CLIENT_PORT) / 2] = echo.getInt(0) == port;
+                } catch (Exception e) {
+                    // the slow client gives up in the end
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /*
+     * Forwards what the clients send to the server, and what the server sends
+     * to the client its packets are for. Drops everything the slow client sends
+     * after its first SYN.
+     */
+    private static void startRelay(InetAddress loopback) throws Exception {
+        final DatagramSocket relay = new DatagramSocket(new InetSocketAddress(loopback, RELAY_PORT));
+        Thread thread = new Thread() {
+            public void run() {
+                byte[] buffer = new byte[Packet.MAX_PACKET_SIZE];
+                DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+                boolean isSlowSynSent = false;
+                try {
+                    while (true) {
+                        datagram.setLength(buffer.length);
+                        relay.receive(datagram);
+                        if (datagram.getPort() == SLOW_PORT) {
+                            if (isSlowSynSent) continue;
+                            isSlowSynSent = true;
+                        }
+                        int destPort = datagram.getPort() == SERVER_PORT
+                                ? ByteBuffer.wrap(buffer).getShort(2) : SERVER_PORT;
+                        datagram.setPort(destPort);
+                        relay.send(datagram);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,86 @@
+package test;
+
+import dtp.CongestionControl;
+import dtp.CubicCongestionControl;
+import dtp.RenoCongestionControl;
+
+/**
+ * Test for the congestion control algorithms.
+ * Drives NewReno and CUBIC with ACKs, fast retransmits and timeouts the way
+ * the sender does, and checks how their windows grow and shrink.
+ */
+public class CongestionControlTest {
+
+    private final static long SRTT = 10000000;     // 10 ms
+
+    /**
+     * Run this to test congestion control.
+     * @param args
+     */
+    public static void main(String[] args) {
+        CongestionControl reno = new RenoCongestionControl();
+        boolean isRenoInitial = reno.getWindow() == RenoCongestionControl.INITIAL_WINDOW && reno.isSlowStart();
+        reno.onAck(10, SRTT);
+        boolean isRenoSlowStart = reno.getWindow() == 20;
+        reno.onFastRetransmit();
+        boolean isRenoHalved = reno.getWindow() == 10 && !reno.isSlowStart();
+        reno.onAck(5, SRTT);
+        boolean isRenoHeld = reno.getWindow() == 10;
+        reno.onAck(5, SRTT);
+        boolean isRenoAvoidance = reno.getWindow() == 11;
+        reno.onTimeout();
+        boolean isRenoCollapsed = reno.getWindow() == 1 && reno.isSlowStart();
+        reno.onAck(10, SRTT);
+        boolean isRenoThreshold = reno.getWindow() == 5 && !reno.isSlowStart();
+        boolean isRenoFresh = reno.create().getWindow() == RenoCongestionControl.INITIAL_WINDOW;
+
+        CongestionControl cubic = new CubicCongestionControl();
+        cubic.onAck(10, SRTT);
+        boolean isCubicSlowStart = cubic.getWindow() == 20 && cubic.isSlowStart();
+        cubic.onFastRetransmit();
+        boolean isCubicReduced = cubic.getWindow() == 14 && !cubic.isSlowStart();
+        // a few round trips after the loss, the window grows back towards
+        // the window of the loss without passing it
+        for (int i = 0; i < 5; i++) {
+            cubic.onAck(cubic.getWindow(), SRTT);
+        }
+        boolean isCubicConcave = cubic.getWindow() > 14 && cubic.getWindow() <= 20;
+        int beforeLoss = cubic.getWindow();
+        cubic.onFastRetransmit();
+        boolean isCubicReducedAgain = cubic.getWindow() < beforeLoss
+                && cubic.getWindow() >= (int) (beforeLoss * 0.7);
+        cubic.onTimeout();
+        boolean isCubicCollapsed = cubic.getWindow() == 1 && cubic.isSlowStart();
+        boolean isCubicFresh = cubic.create().getWindow() == CubicCongestionControl.INITIAL_WINDOW;
+
+        System.out.println("--- test ---");
+        System.out.print("reno initial:\t\t");
+        System.out.println(isRenoInitial);
+        System.out.print("reno slow start:\t");
+        System.out.println(isRenoSlowStart);
+        System.out.print("reno halved:\t\t");
+        System.out.println(isRenoHalved);
+        System.out.print("reno held:\t\t");
+        System.out.println(isRenoHeld);
+        System.out.print("reno avoidance:\t\t");
+        System.out.println(isRenoAvoidance);
+        System.out.print("reno timeout:\t\t");
+        System.out.println(isRenoCollapsed);
+        System.out.print("reno threshold:\t\t");
+        System.out.println(isRenoThreshold);
+        System.out.print("reno create:\t\t");
+        System.out.println(isRenoFresh);
+        System.out.print("cubic slow start:\t");
+        System.out.println(isCubicSlowStart);
+        System.out.print("cubic reduced:\t\t");
+        System.out.println(isCubicReduced);
+        System.out.print("cubic concave:\t\t");
+        System.out.println(isCubicConcave);
+        System.out.print("cubic reduced again:\t");
+        System.out.println(isCubicReducedAgain);
+        System.out.print("cubic timeout:\t\t");
+        System.out.println(isCubicCollapsed);
+        System.out.print("cubic create:\t\t");
+        System.out.println(isCubicFresh);
+    }
+}
@@ -0,0 +1,120 @@
+package test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dtp.DTPSocket;
+import dtp.Packet;
+
+/**
+ * Test for delayed ACKs.
+ * The two sockets talk through a relay that counts the datagrams going each
+ * way. While a big message goes through, the receiver should send about one
+ * ACK for every second data packet. Then the relay drops every 50th data
+ * packet, and the message must still arrive whole.
+ * No NetEmu is needed, the relay stands in for it.
+ */
+public class DelayedAckTest {
+
+    private final static int CLIENT_PORT = 8094;
+    private final static int SERVER_PORT = 8095;
+    private final static int RELAY_PORT = 8096;
+    private final static int MESSAGE_SIZE = 1000 * Packet.MAX_PACKET_DATA_SIZE;
+    private final static int DROP_EVERY = 50;
+
+    private final static AtomicInteger dataPackets = new AtomicInteger();
+    private final static AtomicInteger acks = new AtomicInteger();
+    private static volatile boolean isDropping;
+
+    /**
+     * Run this to test delayed ACKs.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        startRelay(loopback);
+        DTPSocket server = new DTPSocket(SERVER_PORT, loopback, RELAY_PORT);
+        server.listen();
+
+        byte[] message = new byte[MESSAGE_SIZE];
+        new Random(1).nextBytes(message);
+        final ByteBuffer[] received = {ByteBuffer.allocate(MESSAGE_SIZE), ByteBuffer.allocate(MESSAGE_SIZE)};
+        Thread receiver = new Thread() {
+            public void run() {
+                try {
+                    DTPSocket socket = server.accept();
+                    for (ByteBuffer buffer : received) {
+                        socket.recv(buffer);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+
+        DTPSocket client = new DTPSocket(CLIENT_PORT, loopback, RELAY_PORT);
+        client.connect(SERVER_PORT);
+        dataPackets.set(0);
+        acks.set(0);
+        client.send(ByteBuffer.wrap(message));
+        double acksPerPacket = (double) acks.get() / dataPackets.get();
+
+        isDropping = true;
+        client.send(ByteBuffer.wrap(message));
+        receiver.join(20000);
+
+        System.out.println("--- test ---");
+        System.out.println("acks/data packet:\t" + acksPerPacket);
+        System.out.print("acks delayed:\t\t");
+        System.out.println(acksPerPacket > 0.4 && acksPerPacket < 0.6);
+        System.out.print("message intact:\t\t");
+        System.out.println(Arrays.equals(message, received[0].array()));
+        System.out.print("intact after losses:\t");
+        System.out.println(Arrays.equals(message, received[1].array()));
+        System.exit(0);
+    }
+
+    /*
+     * Forwards the datagrams of the client to the server and back, counting
+     * full data packets from the client and everything from the server.
+     */
+    private static void startRelay(final InetAddress loopback) throws Exception {
+        final DatagramSocket relay = new DatagramSocket(new InetSocketAddress(loopback, RELAY_PORT));
+        Thread thread = new Thread() {
+            public void run() {
+                byte[] buffer = new byte[Packet.MAX_PACKET_SIZE];
+                DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+                try {
+                    while (true) {
+                        datagram.setLength(buffer.length);
+                        relay.receive(datagram);
+                        boolean isFromClient = datagram.getPort() == CLIENT_PORT;
+                        if (isFromClient && datagram.getLength() > Packet.MAX_PACKET_DATA_SIZE) {
+                            if (isDropping && dataPackets.get() % DROP_EVERY == 0) {
+                                dataPackets.incrementAndGet();
+                                continue;
+                            }
+                            dataPackets.incrementAndGet();
+                        } else if (!isFromClient) {
+                            acks.incrementAndGet();
+                        }
+                        datagram.setPort(isFromClient ? SERVER_PORT : CLIENT_PORT);
+                        relay.send(datagram);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,86 @@
+package test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import dtp.DTPSocket;
+import dtp.Packet;
+
+/**
+ * Test for the framing of message lengths.
+ * The client sends messages around the size of a chunk and bigger, switching
+ * between carrying the length in the data packets and sending a separate size
+ * packet first. The server must get every message whole, with its own length,
+ * whichever framing it came with.
+ * The two sockets send to each other directly, without NetEmu.
+ */
+public class MessageFramingTest {
+
+    private final static int CLIENT_PORT = 8092;
+    private final static int SERVER_PORT = 8093;
+    private final static int CHUNK = Packet.MAX_PACKET_DATA_SIZE;
+    private final static int[] SIZES = {1, CHUNK - 1, CHUNK, CHUNK + 1, 50 * CHUNK + 7, 1, 3 * CHUNK};
+
+    /**
+     * Run this to test message framing.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        DTPSocket server = new DTPSocket(SERVER_PORT, loopback, CLIENT_PORT);
+        server.listen();
+
+        Random random = new Random(1);
+        final byte[][] messages = new byte[SIZES.length * 2][];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = new byte[SIZES[i % SIZES.length]];
+            random.nextBytes(messages[i]);
+        }
+        final boolean[] isIntact = new boolean[messages.length];
+        Thread receiver = new Thread() {
+            public void run() {
+                try {
+                    DTPSocket socket = server.accept();
+                    for (int i = 0; i < messages.length; i++) {
+                        // room for more than the message, so a wrong length shows
+                        ByteBuffer received = ByteBuffer.allocate(messages[i].length + CHUNK);
+                        int length = socket.recv(received);
+                        isIntact[i] = length == messages[i].length
+                                && Arrays.equals(messages[i], Arrays.copyOf(received.array(), length));
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+
+        DTPSocket client = new DTPSocket(CLIENT_PORT, loopback, SERVER_PORT);
+        client.connect(SERVER_PORT);
+        for (int i = 0; i < messages.length; i++) {
+            // the first half carries the length in the data, the second half doesn't
+            client.lengthInData(i < SIZES.length);
+            client.send(ByteBuffer.wrap(messages[i]));
+        }
+        receiver.join(20000);
+
+        boolean isInData = true;
+        boolean isSeparate = true;
+        for (int i = 0; i < messages.length; i++) {
+            if (i < SIZES.length) {
+                isInData &= isIntact[i];
+            } else {
+                isSeparate &= isIntact[i];
+            }
+        }
+        System.out.println("--- test ---");
+        System.out.print("length in data:\t\t");
+        System.out.println(isInData);
+        System.out.print("separate size packet:\t");
+        System.out.println(isSeparate);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,66 @@
+package test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import dtp.DTPSocket;
+
+/**
+ * Test for changing the MSS of serverSocket after listen(), the way the
+ * MagicFTP server console does. The datagrams of the larger MSS must still
+ * fit the buffers serverSocket receives into, so a message sent with it
+ * arrives whole.
+ * The two sockets send to each other directly, without NetEmu.
+ */
+public class MssAfterListenTest {
+
+    private final static int CLIENT_PORT = 8090;
+    private final static int SERVER_PORT = 8091;
+    private final static int MSS = 8000;
+    private final static int MESSAGE_SIZE = 200000;
+
+    /**
+     * Run this to test setting the MSS after listen().
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        DTPSocket server = new DTPSocket(SERVER_PORT, loopback, CLIENT_PORT);
+        server.listen();
+        boolean isSet = server.mss(MSS);
+
+        byte[] message = new byte[MESSAGE_SIZE];
+        new Random(1).nextBytes(message);
+        final ByteBuffer received = ByteBuffer.allocate(MESSAGE_SIZE);
+        final int[] length = {-1};
+        Thread receiver = new Thread() {
+            public void run() {
+                try {
+                    DTPSocket socket = server.accept();
+                    length[0] = socket.recv(received);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+
+        DTPSocket client = new DTPSocket(CLIENT_PORT, loopback, SERVER_PORT);
+        client.mss(MSS);
+        client.connect(SERVER_PORT);
+        client.send(ByteBuffer.wrap(message));
+        receiver.join(10000);
+
+        System.out.println("--- test ---");
+        System.out.print("mss set after listen:\t");
+        System.out.println(isSet);
+        System.out.print("message length:\t\t");
+        System.out.println(length[0] == MESSAGE_SIZE);
+        System.out.print("message intact:\t\t");
+        System.out.println(Arrays.equals(message, Arrays.copyOf(received.array(), MESSAGE_SIZE)));
+        System.exit(0);
+    }
+}
@@ -0,0 +1,179 @@
+package test;
+
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import dtp.DTPMultiplexer;
+import dtp.DTPSocket;
+import dtp.DTPStream;
+import dtp.Packet;
+
+/**
+ * Test for the streams of a DTPMultiplexer.
+ * The two sockets talk through a relay that drops the first packet of a big
+ * stream, again and again, until a short request on a second stream was
+ * answered. The answer must come back while the big stream waits for its lost
+ * packet, and the big stream must still arrive whole. Then the server opens a
+ * stream of its own, and closing the connection ends acceptStream() on the server.
+ * No NetEmu is needed, the relay stands in for it.
+ */
+public class MultiplexerTest {
+
+    private final static int CLIENT_PORT = 8110;
+    private final static int SERVER_PORT = 8111;
+    private final static int RELAY_PORT = 8112;
+    private final static int BIG_SIZE = 256 * 1024;
+    private final static int SERVER_STREAM_SIZE = 100 * 1024;
+    private final static byte[] REQUEST = "ping".getBytes();
+
+    private static volatile boolean isHolding = true;
+    private static volatile boolean isBigStarted;
+
+    /**
+     * Run this to test the multiplexer.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        startRelay(loopback);
+        DTPSocket server = new DTPSocket(SERVER_PORT, loopback, RELAY_PORT);
+        server.listen();
+
+        byte[] big = new byte[BIG_SIZE];
+        new Random(1).nextBytes(big);
+        byte[] serverBytes = new byte[SERVER_STREAM_SIZE];
+        new Random(2).nextBytes(serverBytes);
+        final byte[] bigReceived = new byte[BIG_SIZE];
+        final boolean[] isAcceptEnded = {false};
+        Thread serverThread = new Thread() {
+            public void run() {
+                try {
+                    DTPMultiplexer mux = new DTPMultiplexer(server.accept(), false);
+                    // the first bytes of the big stream are held, so either may come first
+                    DTPStream first = mux.acceptStream();
+                    DTPStream second = mux.acceptStream();
+                    DTPStream bigStream = first.getId() == 1 ? first : second;
+                    DTPStream request = first.getId() == 1 ? second : first;
+                    Thread bigReader = new Thread() {
+                        public void run() {
+                            try {
+                                readFully(bigStream.getInputStream(), bigReceived, true);
+                                bigStream.close();
+                            } catch (Exception e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    };
+                    bigReader.start();
+
+                    byte[] answer = new byte[REQUEST.length];
+                    readFully(request.getInputStream(), answer, false);
+                    request.getOutputStream().write(answer);
+                    request.close();
+
+                    DTPStream own = mux.openStream();
+                    own.getOutputStream().write(serverBytes);
+                    own.close();
+                    bigReader.join();
+                    isAcceptEnded[0] = mux.acceptStream() == null;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        DTPSocket client = new DTPSocket(CLIENT_PORT, loopback, RELAY_PORT);
+        client.connect(SERVER_PORT);
+        DTPMultiplexer mux = new DTPMultiplexer(client, true);
+        DTPStream bigStream = mux.openStream();
+        bigStream.getOutputStream().write(big);
+
+        DTPStream request = mux.openStream();
+        request.getOutputStream().write(REQUEST);
+        byte[] answer = new byte[REQUEST.length];
+        readFully(request.getInputStream(), answer, false);
+        boolean isAnsweredFirst = !isBigStarted;
+        isHolding = false;
+        request.close();
+        bigStream.close();
+
+        DTPStream own = mux.acceptStream();
+        byte[] serverReceived = new byte[SERVER_STREAM_SIZE];
+        readFully(own.getInputStream(), serverReceived, false);
+        own.close();
+        mux.close();
+        client.close();
+        serverThread.join(10000);
+
+        System.out.println("--- test ---");
+        System.out.print("answered while held:\t");
+        System.out.println(isAnsweredFirst && Arrays.equals(REQUEST, answer));
+        System.out.print("held stream intact:\t");
+        System.out.println(Arrays.equals(big, bigReceived));
+        System.out.print("server stream intact:\t");
+        System.out.println(own.getId() % 2 == 0 && Arrays.equals(serverBytes, serverReceived));
+        System.out.print("accept ends on close:\t");
+        System.out.println(isAcceptEnded[0]);
+        System.exit(0);
+    }
+
+    private static void readFully(InputStream in, byte[] b, boolean isBig) throws Exception {
+        int off = 0;
+        while (off < b.length) {
+            int n = in.read(b, off, b.length - off);
+            if (n < 0) throw new Exception("Stream ended early!");
+            if (isBig) isBigStarted = true;
+            off += n;
+        }
+    }
+
+    /*
+     * Forwards the datagrams of the client to the server and back, dropping
+     * the packets with the first bytes of stream 1 while isHolding.
+     */
+    private static void startRelay(final InetAddress loopback) throws Exception {
+        final DatagramSocket relay = new DatagramSocket(new InetSocketAddress(loopback, RELAY_PORT));
+        Thread thread = new Thread() {
+            public void run() {
+                byte[] buffer = new byte[Packet.MAX_PACKET_SIZE];
+                DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+                try {
+                    while (true) {
+                        datagram.setLength(buffer.length);
+                        relay.receive(datagram);
+                        boolean isFromClient = datagram.getPort() == CLIENT_PORT;
+                        if (isFromClient && isHolding && isFirstBytesOfStream1(buffer)) {
+                            continue;
+                        }
+                        datagram.setPort(isFromClient ? SERVER_PORT : CLIENT_PORT);
+                        relay.send(datagram);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * Whether the packet carries the STR flag and a STREAM option for offset 0
+     * of stream 1, which is always the first option.
+     */
+    private static boolean isFirstBytesOfStream1(byte[] packet) {
+        ByteBuffer buffer = ByteBuffer.wrap(packet);
+        return (buffer.get(16) & 0x02) != 0
+                && buffer.get(Packet.MIN_HEADER_SIZE) == Packet.OPTION_STREAM
+                && buffer.getInt(Packet.MIN_HEADER_SIZE + 2) == 1
+                && buffer.getLong(Packet.MIN_HEADER_SIZE + 6) == 0;
+    }
+}
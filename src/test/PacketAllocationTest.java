@@ -0,0 +1,94 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import dtp.Packet;
+import dtp.PacketHeader;
+
+/**
+ * Allocation test for the packet codec.
+ * Writes and reads packets in place with a reused Packet view, the way the
+ * socket does for every data packet and ACK, and measures the bytes the
+ * thread allocated while doing so. The hot path should allocate nothing.
+ * Decoding a header into a new PacketHeader should cost at most one small object.
+ */
+public class PacketAllocationTest {
+
+    private final static int WARM_UP = 200000;
+    private final static int NUM_PACKETS = 1000000;
+
+    /**
+     * Run this to test packet allocations.
+     * @param args
+     */
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Packet.MAX_PACKET_SIZE);
+        ByteBuffer payload = ByteBuffer.allocateDirect(Packet.MAX_PACKET_DATA_SIZE);
+        Packet packet = new Packet(buffer);
+
+        // letting the JIT compile the loops before measuring
+        long sink = codec(packet, buffer, payload, WARM_UP);
+        sink += decode(packet, WARM_UP);
+
+        long before = bean.getThreadAllocatedBytes(threadId);
+        sink += codec(packet, buffer, payload, NUM_PACKETS);
+        long after = bean.getThreadAllocatedBytes(threadId);
+        double codecBytes = (double) (after - before) / NUM_PACKETS;
+
+        before = bean.getThreadAllocatedBytes(threadId);
+        sink += decode(packet, NUM_PACKETS);
+        after = bean.getThreadAllocatedBytes(threadId);
+        double decodeBytes = (double) (after - before) / NUM_PACKETS;
+
+        System.out.println("--- test ---");
+        System.out.println("codec bytes/packet:\t" + codecBytes);
+        System.out.println("decode bytes/packet:\t" + decodeBytes);
+        System.out.print("codec no garbage:\t");
+        System.out.println(codecBytes < 1);
+        System.out.print("decode one object:\t");
+        System.out.println(decodeBytes <= 64);
+        System.out.println("(" + sink + ")");
+    }
+
+    /*
+     * Writes a data packet in place and reads it back through the same view.
+     */
+    private static long codec(Packet packet, ByteBuffer buffer, ByteBuffer payload, int numPackets) {
+        long sink = 0;
+        for (int i = 0; i < numPackets; i++) {
+            packet.clearHeader();
+            packet.setSrcPort((short) 8080);
+            packet.setDestPort((short) 8081);
+            packet.setSeqNum(i);
+            packet.setAckNum(i + 1);
+            packet.setWindowSize((short) 100);
+            packet.setAck(true);
+            buffer.put(Packet.MIN_HEADER_SIZE, payload, 0, payload.capacity());
+            packet.setDataLength(payload.capacity());
+
+            packet.wrap(buffer);
+            sink += packet.getSeqNum() + packet.getAckNum() + packet.getWindowSize();
+            sink += packet.findOption(Packet.OPTION_SACK);
+            sink += packet.getAck() ? packet.getBuffer().remaining() : 0;
+        }
+        return sink;
+    }
+
+    /*
+     * Decodes the header of the packet into a new PacketHeader.
+     */
+    private static long decode(Packet packet, int numPackets) {
+        long sink = 0;
+        for (int i = 0; i < numPackets; i++) {
+            packet.setSeqNum(i);
+            PacketHeader header = packet.getHeader();
+            sink += header.seqNum() + header.length();
+        }
+        return sink;
+    }
+}
@@ -0,0 +1,140 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import dtp.DTPSocket;
+import dtp.Packet;
+
+/**
+ * Allocation test for the receive path of a socket.
+ * Connects two sockets through a relay that keeps the SYN-ACK of the server.
+ * Then the relay sends that SYN-ACK to the client over and over. Nobody reads
+ * from the client, so once its receive buffer is full, every datagram is
+ * received, decoded and dropped on the reactor thread, and goes back to the
+ * buffer pool. The test measures the bytes the reactor thread allocated for
+ * each of them. The receive path should allocate next to nothing.
+ * No NetEmu is needed, the relay stands in for it.
+ */
+public class ReceiveAllocationTest {
+
+    private final static int CLIENT_PORT = 8113;
+    private final static int SERVER_PORT = 8114;
+    private final static int RELAY_PORT = 8115;
+    private final static int WARM_UP = 20000;
+    private final static int NUM_DATAGRAMS = 100000;
+    private final static int BURST = 32;
+
+    private static volatile byte[] synAck;
+
+    /**
+     * Run this to test receive allocations.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        DatagramSocket relay = startRelay(loopback);
+        DTPSocket server = new DTPSocket(SERVER_PORT, loopback, RELAY_PORT);
+        server.listen();
+        Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    server.accept();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        DTPSocket client = new DTPSocket(CLIENT_PORT, loopback, RELAY_PORT);
+        client.connect(SERVER_PORT);
+        DatagramPacket datagram = new DatagramPacket(synAck, synAck.length,
+                new InetSocketAddress(loopback, CLIENT_PORT));
+
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long reactorId = reactorThreadId();
+
+        // filling the receive buffer and letting the JIT compile the receive path
+        replay(relay, datagram, client, WARM_UP);
+
+        long before = bean.getThreadAllocatedBytes(reactorId);
+        long dropped = client.getDroppedPackets();
+        replay(relay, datagram, client, NUM_DATAGRAMS);
+        long received = client.getDroppedPackets() - dropped;
+        long after = bean.getThreadAllocatedBytes(reactorId);
+        double receiveBytes = (double) (after - before) / received;
+
+        System.out.println("--- test ---");
+        System.out.println("datagrams received:\t" + received);
+        System.out.println("bytes/datagram:\t\t" + receiveBytes);
+        System.out.print("most received:\t\t");
+        System.out.println(received > NUM_DATAGRAMS * 9 / 10);
+        System.out.print("receive no garbage:\t");
+        System.out.println(receiveBytes < 8);
+        System.exit(0);
+    }
+
+    /*
+     * Sends the datagram to the client in bursts, waiting for the client to
+     * drop each burst, so the socket buffer of the channel never overflows.
+     */
+    private static void replay(DatagramSocket relay, DatagramPacket datagram,
+            DTPSocket client, int numDatagrams) throws Exception {
+        for (int sent = 0; sent < numDatagrams; sent += BURST) {
+            long dropped = client.getDroppedPackets();
+            for (int i = 0; i < BURST; i++) {
+                relay.send(datagram);
+            }
+            long deadline = System.nanoTime() + 100_000_000L;
+            while (client.getDroppedPackets() - dropped < BURST && System.nanoTime() < deadline) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private static long reactorThreadId() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("DTP reactor")) return thread.getId();
+        }
+        throw new IllegalStateException("No reactor thread!");
+    }
+
+    /*
+     * Forwards the datagrams of the client to the server and back, keeping
+     * the SYN-ACK of the server.
+     */
+    private static DatagramSocket startRelay(final InetAddress loopback) throws Exception {
+        final DatagramSocket relay = new DatagramSocket(new InetSocketAddress(loopback, RELAY_PORT));
+        Thread thread = new Thread() {
+            public void run() {
+                byte[] buffer = new byte[Packet.MAX_PACKET_SIZE];
+                DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+                try {
+                    while (true) {
+                        datagram.setLength(buffer.length);
+                        relay.receive(datagram);
+                        boolean isFromClient = datagram.getPort() == CLIENT_PORT;
+                        // flags byte: SYN and ACK, but not CHL
+                        if (!isFromClient && (buffer[16] & 0xe0) == 0xa0) {
+                            synAck = Arrays.copyOf(buffer, datagram.getLength());
+                        }
+                        datagram.setPort(isFromClient ? SERVER_PORT : CLIENT_PORT);
+                        relay.send(datagram);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return relay;
+    }
+}
@@ -0,0 +1,156 @@
+package dtp;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Test for the packet checksums.
+ * Compares the internet checksum, summed 64 bits at a time and folded, with a
+ * plain sum of 16-bit words on random packets of every length up to the
+ * biggest, odd ones included, in heap and direct buffers, and on packets of
+ * all ones that carry on every word. Packets with their checksum filled in
+ * must check as good, and as bad with any one byte flipped. CRC32C checksums
+ * must check again and not change with the checksum field. They must change
+ * with every flipped bit outside of it. Folded to 16 bits, a flipped byte may
+ * go unnoticed, but no more often than with a random 16-bit checksum.
+ * In package dtp, since the checksums are package-private.
+ */
+public class ChecksumTest {
+
+    private final static int CHECKSUM_INDEX = 12;
+    private final static int MAX_LENGTH = Packet.MAX_PACKET_SIZE;
+    // the share of flipped bytes a random 16-bit checksum misses, with some slack
+    private final static double MAX_MISSED = 2.0 / 0x10000;
+
+    /**
+     * Run this to test the checksums.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(1);
+
+        boolean isSameSum = true;
+        boolean isGood = true;
+        for (int length = 0; length <= MAX_LENGTH; length++) {
+            ByteBuffer[] buffers = {ByteBuffer.allocate(length), ByteBuffer.allocateDirect(length)};
+            for (ByteBuffer buffer : buffers) {
+                byte[] bytes = new byte[length];
+                random.nextBytes(bytes);
+                buffer.put(0, bytes);
+                int pseudoHeaderSum = random.nextInt(0x10000);
+                isSameSum &= Checksum.internet(buffer, length, pseudoHeaderSum)
+                        == (short) ~referenceSum(buffer, length, pseudoHeaderSum);
+                if (length >= CHECKSUM_INDEX + 2) {
+                    buffer.putShort(CHECKSUM_INDEX, (short) 0);
+                    buffer.putShort(CHECKSUM_INDEX, Checksum.internet(buffer, length, pseudoHeaderSum));
+                    isGood &= Checksum.isInternetGood(buffer, length, pseudoHeaderSum);
+                }
+            }
+        }
+        boolean isFlipRejected = true;
+        ByteBuffer good = ByteBuffer.allocate(MAX_LENGTH);
+        byte[] goodBytes = new byte[MAX_LENGTH];
+        random.nextBytes(goodBytes);
+        good.put(0, goodBytes);
+        good.putShort(CHECKSUM_INDEX, (short) 0);
+        good.putShort(CHECKSUM_INDEX, Checksum.internet(good, MAX_LENGTH, 0x1234));
+        for (int i = 0; i < MAX_LENGTH; i++) {
+            for (int flip = 1; flip < 0x100; flip++) {
+                good.put(i, (byte) (good.get(i) ^ flip));
+                isFlipRejected &= !Checksum.isInternetGood(good, MAX_LENGTH, 0x1234);
+                good.put(i, (byte) (good.get(i) ^ flip));
+            }
+        }
+        ByteBuffer ones = ByteBuffer.allocate(MAX_LENGTH);
+        for (int i = 0; i < MAX_LENGTH; i++) ones.put(i, (byte) 0xFF);
+        for (int length = MAX_LENGTH - 9; length <= MAX_LENGTH; length++) {
+            isSameSum &= Checksum.internet(ones, length, 0xFFFF)
+                    == (short) ~referenceSum(ones, length, 0xFFFF);
+        }
+
+        InetAddress[] addresses = {InetAddress.getByName("10.0.0.1"), InetAddress.getByName("255.255.255.255"),
+                InetAddress.getByName("fe80::1"), InetAddress.getByName("ffff::ffff")};
+        boolean isSamePseudoHeader = true;
+        for (InetAddress src : addresses) {
+            for (InetAddress dest : addresses) {
+                byte[] a = src.getAddress();
+                byte[] b = dest.getAddress();
+                ByteBuffer both = ByteBuffer.allocate(a.length + b.length).put(a).put(b);
+                // the pseudo-header sum has no length, the reference adds it to the sum it starts from
+                isSamePseudoHeader &= Checksum.sumPseudoHeader(src, dest)
+                        == referenceSum(both, both.capacity(), -both.capacity());
+            }
+        }
+
+        ByteBuffer packet = ByteBuffer.allocateDirect(MAX_LENGTH);
+        byte[] bytes = new byte[MAX_LENGTH];
+        random.nextBytes(bytes);
+        packet.put(0, bytes);
+        int length = MAX_LENGTH - 1;
+        int pseudoHeaderSum = random.nextInt(0x10000);
+        short crc = Checksum.crc32c(packet, length, pseudoHeaderSum);
+        packet.putShort(CHECKSUM_INDEX, crc);
+        boolean isRoundTrip = Checksum.crc32c(packet, length, pseudoHeaderSum) == crc
+                && packet.position() == 0 && packet.limit() == length;
+        boolean isFieldIgnored = true;
+        for (int value = 0; value < 0x10000; value += 257) {
+            packet.putShort(CHECKSUM_INDEX, (short) value);
+            isFieldIgnored &= Checksum.crc32c(packet, length, pseudoHeaderSum) == crc;
+        }
+        boolean isBitFlipRejected = true;
+        int numFlips = 0;
+        int numMissed = 0;
+        for (int i = 0; i < length; i++) {
+            if (i == CHECKSUM_INDEX || i == CHECKSUM_INDEX + 1) continue;
+            for (int flip = 1; flip < 0x100; flip++) {
+                packet.put(i, (byte) (packet.get(i) ^ flip));
+                boolean isMissed = Checksum.crc32c(packet, length, pseudoHeaderSum) == crc;
+                packet.put(i, (byte) (packet.get(i) ^ flip));
+                if (Integer.bitCount(flip) == 1) isBitFlipRejected &= !isMissed;
+                if (isMissed) numMissed++;
+                numFlips++;
+            }
+        }
+        isRoundTrip &= Checksum.crc32c(packet, length, pseudoHeaderSum) == crc;
+
+        System.out.println("--- test ---");
+        System.out.print("same as 16-bit sum:\t");
+        System.out.println(isSameSum);
+        System.out.print("checksum good:\t\t");
+        System.out.println(isGood);
+        System.out.print("flipped byte rejected:\t");
+        System.out.println(isFlipRejected);
+        System.out.print("pseudo-header sum:\t");
+        System.out.println(isSamePseudoHeader);
+        System.out.print("crc32c round trip:\t");
+        System.out.println(isRoundTrip);
+        System.out.print("crc32c flipped bit:\t");
+        System.out.println(isBitFlipRejected);
+        System.out.print("crc32c flipped byte:\t");
+        System.out.println((double) numMissed / numFlips <= MAX_MISSED);
+        System.out.print("checksum field ignored:\t");
+        System.out.println(isFieldIgnored);
+    }
+
+    /*
+     * Ones' complement sum of the pseudo-header sum, the length and the packet,
+     * one 16-bit word at a time, an odd byte padded with a zero byte on the right.
+     */
+    private static int referenceSum(ByteBuffer packet, int length, int pseudoHeaderSum) {
+        long sum = pseudoHeaderSum + length;
+        for (int i = 0; i < length; i += 2) {
+            int high = packet.get(i) & 0xFF;
+            int low = i + 1 < length ? packet.get(i + 1) & 0xFF : 0;
+            sum += high << 8 | low;
+        }
+        return fold(sum);
+    }
+
+    private static int fold(long sum) {
+        while (sum >>> 16 != 0) {
+            sum = (sum >>> 16) + (sum & 0xFFFF);
+        }
+        return (int) sum;
+    }
+}
@@ -0,0 +1,117 @@
+package dtp;
+
+import java.net.InetAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test for the table of accept()ed sockets.
+ * Puts and removes thousands of clients in a random order, so probe sequences
+ * collide, wrap around the end of the table and are shifted back on removal,
+ * and checks after each round that every client still finds its socket and no
+ * removed client finds one. Also checks that a newer socket replaces the old
+ * one, and that freePort() only picks the few ports left when nearly every
+ * server port is used, and -1 when all are.
+ * In package dtp, since the table is package-private.
+ */
+public class ConnectionTableTest {
+
+    private final static int LISTEN_PORT = 8081;
+    private final static int MAX_PORT = 31999;
+    private final static int NUM_CLIENTS = 5000;
+    private final static int NUM_ROUNDS = 20;
+    private final static int[] FREE_PORTS = {1, 8080, 20000, MAX_PORT};
+
+    /**
+     * Run this to test the connection table.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        InetAddress server = InetAddress.getLoopbackAddress();
+        InetAddress client = InetAddress.getByName("10.0.0.1");
+        InetAddress other = InetAddress.getByName("10.0.0.2");
+        DatagramChannel channel = DatagramChannel.open();
+        Random random = new Random(1);
+
+        // the same clients come and go, checked against a HashMap
+        ConnectionTable table = new ConnectionTable();
+        HashMap<Integer, DTPSocket> expected = new HashMap<>();
+        DTPSocket[] sockets = new DTPSocket[NUM_CLIENTS];
+        for (int i = 0; i < NUM_CLIENTS; i++) {
+            sockets[i] = new DTPSocket(channel, server, i + 1, client, i + 1, LISTEN_PORT);
+        }
+        boolean isFound = true;
+        boolean isRemoved = true;
+        for (int round = 0; round < NUM_ROUNDS; round++) {
+            for (int n = 0; n < NUM_CLIENTS; n++) {
+                int i = random.nextInt(NUM_CLIENTS);
+                if (expected.containsKey(i)) {
+                    isRemoved &= table.remove(client, i + 1, sockets[i]);
+                    expected.remove(i);
+                } else {
+                    table.put(client, i + 1, sockets[i]);
+                    expected.put(i, sockets[i]);
+                }
+            }
+            for (int i = 0; i < NUM_CLIENTS; i++) {
+                isFound &= table.get(client, i + 1) == expected.get(i)
+                        && table.get(other, i + 1) == null
+                        && table.isPortUsed(i + 1) == expected.containsKey(i);
+            }
+            isFound &= table.size() == expected.size();
+        }
+        for (int i : new ArrayList<>(expected.keySet())) {
+            isRemoved &= table.remove(client, i + 1, sockets[i]);
+            isRemoved &= !table.remove(client, i + 1, sockets[i]);
+        }
+        isRemoved &= table.size() == 0 && table.get(client, 1) == null;
+
+        // a client that connects again gets its new socket, the old one is left alone
+        DTPSocket old = new DTPSocket(channel, server, 100, client, 8080, LISTEN_PORT);
+        DTPSocket newer = new DTPSocket(channel, server, 200, client, 8080, LISTEN_PORT);
+        table.put(client, 8080, old);
+        table.put(client, 8080, newer);
+        boolean isReplaced = table.get(client, 8080) == newer && table.size() == 1
+                && !table.isPortUsed(100) && table.isPortUsed(200)
+                && !table.remove(client, 8080, old) && table.get(client, 8080) == newer
+                && table.remove(client, 8080, newer) && !table.isPortUsed(200);
+
+        // every server port but a few is used
+        ConnectionTable full = new ConnectionTable();
+        List<Integer> freePorts = new ArrayList<>();
+        for (int port : FREE_PORTS) freePorts.add(port);
+        DTPSocket lastSocket = null;
+        for (int port = 1; port <= MAX_PORT; port++) {
+            if (port == LISTEN_PORT || freePorts.contains(port)) continue;
+            lastSocket = new DTPSocket(channel, server, port, other, port, LISTEN_PORT);
+            full.put(other, port, lastSocket);
+        }
+        boolean isFreePicked = true;
+        for (int i = 0; i < 1000; i++) {
+            isFreePicked &= freePorts.contains(full.freePort(random, LISTEN_PORT));
+        }
+        for (int port : FREE_PORTS) {
+            full.put(other, port, new DTPSocket(channel, server, port, other, port, LISTEN_PORT));
+        }
+        boolean isNoneLeft = full.freePort(random, LISTEN_PORT) == -1;
+        int lastPort = lastSocket.getSrcPort();
+        full.remove(other, lastPort, lastSocket);
+        isNoneLeft &= full.freePort(random, LISTEN_PORT) == lastPort;
+        channel.close();
+
+        System.out.println("--- test ---");
+        System.out.print("all found:\t\t");
+        System.out.println(isFound);
+        System.out.print("all removed:\t\t");
+        System.out.println(isRemoved);
+        System.out.print("newer replaces:\t\t");
+        System.out.println(isReplaced);
+        System.out.print("free port picked:\t");
+        System.out.println(isFreePicked);
+        System.out.print("none left:\t\t");
+        System.out.println(isNoneLeft);
+    }
+}
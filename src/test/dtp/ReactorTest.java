@@ -0,0 +1,104 @@
+package dtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test for the reactor.
+ * Registers a few channels and sends datagrams to all of them. Every handler
+ * must get the datagrams of its own channel, all on the reactor thread, even
+ * though one handler throws on its first call. A timer scheduled on the reactor
+ * must run there too, and not before its delay.
+ * The stack trace of the throwing handler is expected in the output.
+ * In package dtp, since the reactor is package-private.
+ */
+public class ReactorTest {
+
+    private final static int NUM_CHANNELS = 4;
+    private final static int NUM_DATAGRAMS = 200;
+    private final static long TIMER_DELAY = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /**
+     * Run this to test the reactor.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        Reactor reactor = Reactor.get();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        final CountDownLatch delivered = new CountDownLatch(NUM_CHANNELS * NUM_DATAGRAMS);
+        final AtomicInteger misdelivered = new AtomicInteger();
+        final AtomicInteger offThread = new AtomicInteger();
+
+        DatagramChannel[] channels = new DatagramChannel[NUM_CHANNELS];
+        for (int i = 0; i < NUM_CHANNELS; i++) {
+            final DatagramChannel channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(loopback, 0));
+            final int id = i;
+            final boolean[] hasThrown = {id != 0};
+            reactor.register(channel, new Reactor.Handler() {
+                private final ByteBuffer buffer = ByteBuffer.allocate(16);
+
+                public void onReadable() throws IOException {
+                    if (!Thread.currentThread().getName().equals("DTP reactor")) {
+                        offThread.incrementAndGet();
+                    }
+                    if (!hasThrown[0]) {
+                        // the reactor must keep going after a failing handler
+                        hasThrown[0] = true;
+                        throw new RuntimeException("Handler " + id + " failed on purpose!");
+                    }
+                    buffer.clear();
+                    while (channel.receive(buffer) != null) {
+                        if (buffer.getInt(0) != id) misdelivered.incrementAndGet();
+                        delivered.countDown();
+                        buffer.clear();
+                    }
+                }
+            });
+            channels[i] = channel;
+        }
+
+        DatagramChannel sender = DatagramChannel.open();
+        ByteBuffer datagram = ByteBuffer.allocate(4);
+        for (int n = 0; n < NUM_DATAGRAMS; n++) {
+            for (int i = 0; i < NUM_CHANNELS; i++) {
+                datagram.clear();
+                datagram.putInt(0, i);
+                sender.send(datagram, channels[i].getLocalAddress());
+            }
+            if (n % 50 == 0) Thread.sleep(1);
+        }
+        boolean isDelivered = delivered.await(5, TimeUnit.SECONDS);
+
+        final long[] ranAfter = {-1};
+        final boolean[] isTimerOnReactor = {false};
+        final CountDownLatch ran = new CountDownLatch(1);
+        final long scheduled = System.nanoTime();
+        reactor.schedule(new TimerWheel.Timer(new Runnable() {
+            public void run() {
+                ranAfter[0] = System.nanoTime() - scheduled;
+                isTimerOnReactor[0] = Thread.currentThread().getName().equals("DTP reactor");
+                ran.countDown();
+            }
+        }), TIMER_DELAY);
+        boolean isTimerRun = ran.await(1, TimeUnit.SECONDS);
+
+        System.out.println("--- test ---");
+        System.out.print("all delivered:\t\t");
+        System.out.println(isDelivered);
+        System.out.print("none misdelivered:\t");
+        System.out.println(misdelivered.get() == 0);
+        System.out.print("on reactor thread:\t");
+        System.out.println(offThread.get() == 0);
+        System.out.print("timer run:\t\t");
+        System.out.println(isTimerRun && isTimerOnReactor[0]);
+        System.out.print("timer not early:\t");
+        System.out.println(ranAfter[0] >= TIMER_DELAY);
+    }
+}
@@ -0,0 +1,95 @@
+package dtp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for the SPSC receive ring.
+ * A producer thread offers a long run of datagrams while the consumer takes
+ * them and grows the ring halfway through. Every datagram must come out once,
+ * in the order it went in. Then checks the limit of offer(), the timeout of
+ * poll() and take() ending on expire().
+ * In package dtp, since the ring is package-private.
+ */
+public class ReceiveRingTest {
+
+    private final static int NUM_DATAGRAMS = 2000000;
+    private final static int NUM_DISTINCT = 4096;      // more than the ring ever holds
+    private final static int CAPACITY = 64;
+
+    /**
+     * Run this to test the receive ring.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        final Datagram[] datagrams = new Datagram[NUM_DISTINCT];
+        for (int i = 0; i < NUM_DISTINCT; i++) {
+            datagrams[i] = new Datagram(null, null);
+        }
+
+        final ReceiveRing ring = new ReceiveRing(CAPACITY);
+        Thread producer = new Thread() {
+            public void run() {
+                for (int i = 0; i < NUM_DATAGRAMS; i++) {
+                    while (!ring.offer(datagrams[i % NUM_DISTINCT], Integer.MAX_VALUE)) {
+                        Thread.onSpinWait();
+                    }
+                }
+            }
+        };
+        long start = System.nanoTime();
+        producer.start();
+        boolean isInOrder = true;
+        for (int i = 0; i < NUM_DATAGRAMS; i++) {
+            if (i == NUM_DATAGRAMS / 2) {
+                ring.ensureCapacity(CAPACITY * 16);
+            }
+            Datagram datagram = ring.poll(TimeUnit.SECONDS.toNanos(5));
+            if (datagram != datagrams[i % NUM_DISTINCT]) {
+                isInOrder = false;
+                break;
+            }
+        }
+        producer.join();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        boolean isDrained = ring.size() == 0;
+
+        ReceiveRing limited = new ReceiveRing(CAPACITY);
+        boolean isLimited = limited.offer(datagrams[0], 2) && limited.offer(datagrams[1], 2)
+                && !limited.offer(datagrams[2], 2) && limited.size() == 2;
+
+        long pollStart = System.nanoTime();
+        boolean isTimedOut = new ReceiveRing(CAPACITY).poll(TimeUnit.MILLISECONDS.toNanos(20)) == null
+                && System.nanoTime() - pollStart >= TimeUnit.MILLISECONDS.toNanos(20);
+
+        final ReceiveRing expiring = new ReceiveRing(CAPACITY);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20);
+        Thread expirer = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                expiring.expire(deadline);
+            }
+        };
+        expirer.start();
+        boolean isExpired = expiring.take(deadline) == null;
+        expirer.join();
+        expiring.offer(datagrams[0], Integer.MAX_VALUE);
+        boolean isTaken = expiring.take(deadline + 1) == datagrams[0];
+
+        System.out.println("--- test ---");
+        System.out.println("datagrams/ms:\t\t" + NUM_DATAGRAMS / Math.max(millis, 1));
+        System.out.print("in order:\t\t");
+        System.out.println(isInOrder && isDrained);
+        System.out.print("offer limited:\t\t");
+        System.out.println(isLimited);
+        System.out.print("poll timed out:\t\t");
+        System.out.println(isTimedOut);
+        System.out.print("take expired:\t\t");
+        System.out.println(isExpired);
+        System.out.print("take after expire:\t");
+        System.out.println(isTaken);
+    }
+}
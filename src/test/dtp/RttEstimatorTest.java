@@ -0,0 +1,78 @@
+package dtp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for the RTT estimator.
+ * Feeds it round-trip samples and timeouts and checks the retransmission
+ * timeout it derives: the initial timeout, the variation after the first
+ * sample, the margin once the samples stop varying, the backoff after timeouts
+ * and the bounds.
+ * In package dtp, since the estimator is package-private.
+ */
+public class RttEstimatorTest {
+
+    private final static long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Run this to test the RTT estimator.
+     * @param args
+     */
+    public static void main(String[] args) {
+        RttEstimator rtt = new RttEstimator();
+        boolean isInitial = rtt.getTimeoutNanos() == 1000 * MS && rtt.getSrtt() == 0;
+
+        // SRTT = 100 ms, RTTVAR = 50 ms, RTO = SRTT + 4 * RTTVAR
+        rtt.sample(100 * MS);
+        boolean isFirstSample = rtt.getSrtt() == 100 * MS && rtt.getTimeoutNanos() == 300 * MS;
+
+        rtt.sample(-1);
+        boolean isNegativeIgnored = rtt.getSrtt() == 100 * MS && rtt.getTimeoutNanos() == 300 * MS;
+
+        // samples that stop varying leave SRTT / 4 of margin
+        for (int i = 0; i < 100; i++) {
+            rtt.sample(100 * MS);
+        }
+        boolean isSteady = rtt.getTimeoutNanos() == 125 * MS;
+
+        rtt.backoff();
+        rtt.backoff();
+        boolean isBackedOff = rtt.getTimeoutNanos() == 500 * MS;
+        for (int i = 0; i < 100; i++) {
+            rtt.backoff();
+        }
+        boolean isMaxBackoff = rtt.getTimeoutNanos() == 4000 * MS;
+        rtt.clearBackoff();
+        boolean isCleared = rtt.getTimeoutNanos() == 125 * MS;
+
+        rtt.backoff();
+        rtt.sample(100 * MS);
+        boolean isSampleClearing = rtt.getTimeoutNanos() == 125 * MS;
+
+        RttEstimator fast = new RttEstimator();
+        for (int i = 0; i < 100; i++) {
+            fast.sample(TimeUnit.MICROSECONDS.toNanos(10));
+        }
+        boolean isMinRto = fast.getTimeoutNanos() == 10 * MS;
+
+        System.out.println("--- test ---");
+        System.out.print("initial rto:\t\t");
+        System.out.println(isInitial);
+        System.out.print("first sample:\t\t");
+        System.out.println(isFirstSample);
+        System.out.print("negative ignored:\t");
+        System.out.println(isNegativeIgnored);
+        System.out.print("steady margin:\t\t");
+        System.out.println(isSteady);
+        System.out.print("backoff doubles:\t");
+        System.out.println(isBackedOff);
+        System.out.print("backoff capped:\t\t");
+        System.out.println(isMaxBackoff);
+        System.out.print("backoff cleared:\t");
+        System.out.println(isCleared);
+        System.out.print("sample clears backoff:\t");
+        System.out.println(isSampleClearing);
+        System.out.print("min rto:\t\t");
+        System.out.println(isMinRto);
+    }
+}
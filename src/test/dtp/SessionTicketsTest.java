@@ -0,0 +1,72 @@
+package dtp;
+
+import java.net.InetAddress;
+
+/**
+ * Test for session resumption tickets.
+ * Issues tickets and checks the verdicts on them: a good ticket is accepted
+ * once, a copy of the same SYN is told apart from a replay, and tickets that
+ * were tampered with, presented from another address or issued by another
+ * server are refused. Once the replay cache is full, new tickets are refused
+ * too.
+ * In package dtp, since the tickets are package-private.
+ */
+public class SessionTicketsTest {
+
+    private final static int MAX_USED_TICKETS = 4096;
+
+    /**
+     * Run this to test session tickets.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        InetAddress client = InetAddress.getByName("10.0.0.1");
+        InetAddress other = InetAddress.getByName("10.0.0.2");
+        SessionTickets tickets = new SessionTickets();
+
+        byte[] ticket = tickets.issue(client);
+        boolean isSize = ticket.length == SessionTickets.TICKET_SIZE;
+        boolean isValid = tickets.check(client, ticket, 100) == SessionTickets.Verdict.VALID;
+        boolean isRetransmitted = tickets.check(client, ticket, 100) == SessionTickets.Verdict.RETRANSMITTED;
+        boolean isReplay = tickets.check(client, ticket, 200) == SessionTickets.Verdict.INVALID;
+
+        byte[] stolen = tickets.issue(client);
+        boolean isOtherAddress = tickets.check(other, stolen, 100) == SessionTickets.Verdict.INVALID;
+        boolean isStillValid = tickets.check(client, stolen, 100) == SessionTickets.Verdict.VALID;
+
+        byte[] tampered = tickets.issue(client);
+        tampered[3] ^= 1;
+        boolean isTampered = tickets.check(client, tampered, 100) == SessionTickets.Verdict.INVALID;
+        boolean isMalformed = tickets.check(client, null, 100) == SessionTickets.Verdict.INVALID
+                && tickets.check(client, new byte[5], 100) == SessionTickets.Verdict.INVALID;
+        boolean isOtherServer = new SessionTickets().check(client, tickets.issue(client), 100)
+                == SessionTickets.Verdict.INVALID;
+
+        SessionTickets full = new SessionTickets();
+        boolean isFilled = true;
+        for (int i = 0; i < MAX_USED_TICKETS; i++) {
+            isFilled &= full.check(client, full.issue(client), i) == SessionTickets.Verdict.VALID;
+        }
+        boolean isFullRefused = full.check(client, full.issue(client), -1) == SessionTickets.Verdict.INVALID;
+
+        System.out.println("--- test ---");
+        System.out.print("ticket size:\t\t");
+        System.out.println(isSize);
+        System.out.print("valid:\t\t\t");
+        System.out.println(isValid);
+        System.out.print("retransmitted syn:\t");
+        System.out.println(isRetransmitted);
+        System.out.print("replay refused:\t\t");
+        System.out.println(isReplay);
+        System.out.print("other address refused:\t");
+        System.out.println(isOtherAddress && isStillValid);
+        System.out.print("tampered refused:\t");
+        System.out.println(isTampered);
+        System.out.print("malformed refused:\t");
+        System.out.println(isMalformed);
+        System.out.print("other server refused:\t");
+        System.out.println(isOtherServer);
+        System.out.print("full cache refused:\t");
+        System.out.println(isFilled && isFullRefused);
+    }
+}
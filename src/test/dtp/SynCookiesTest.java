@@ -0,0 +1,64 @@
+package dtp;
+
+import java.net.InetAddress;
+
+/**
+ * Test for SYN cookies.
+ * Creates cookies for many clients and checks that the server finds each one
+ * again from what the client echoes, and only from that: another address,
+ * port, sequence number or server gets nothing. Also checks the ranges of the
+ * derived sequence numbers and ports, and the characters of the challenges.
+ * In package dtp, since the cookies are package-private.
+ */
+public class SynCookiesTest {
+
+    private final static int LISTEN_PORT = 8081;
+    private final static int NUM_CLIENTS = 10000;
+
+    /**
+     * Run this to test SYN cookies.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        InetAddress client = InetAddress.getByName("10.0.0.1");
+        InetAddress other = InetAddress.getByName("10.0.0.2");
+        SynCookies cookies = new SynCookies(LISTEN_PORT);
+
+        SynCookies.Cookie cookie = cookies.create(client, 8080, 1234);
+        SynCookies.Cookie again = cookies.create(client, 8080, 1234);
+        boolean isStateless = cookie.seqNum == again.seqNum && cookie.srcPort == again.srcPort
+                && cookie.challenge.equals(again.challenge);
+        SynCookies.Cookie found = cookies.check(client, 8080, 1234, cookie.seqNum);
+        boolean isFound = found != null && found.challenge.equals(cookie.challenge)
+                && found.srcPort == cookie.srcPort;
+
+        boolean isRefused = cookies.check(client, 8080, 1234, cookie.seqNum + 1) == null
+                && cookies.check(other, 8080, 1234, cookie.seqNum) == null
+                && cookies.check(client, 8082, 1234, cookie.seqNum) == null
+                && cookies.check(client, 8080, 1235, cookie.seqNum) == null
+                && new SynCookies(LISTEN_PORT).check(client, 8080, 1234, cookie.seqNum) == null
+                && new SynCookies(LISTEN_PORT + 1).check(client, 8080, 1234, cookie.seqNum) == null;
+
+        boolean isInRange = true;
+        boolean isAllFound = true;
+        for (int i = 0; i < NUM_CLIENTS; i++) {
+            int port = 1 + i % 31999;
+            SynCookies.Cookie c = cookies.create(client, port, i * 7919);
+            isInRange &= c.seqNum > 0 && c.seqNum <= 0x40000000
+                    && c.srcPort > 0 && c.srcPort <= 31999
+                    && c.challenge.length() == SynCookies.CHALLENGE_SIZE
+                    && c.challenge.chars().allMatch(Character::isLetterOrDigit);
+            isAllFound &= cookies.check(client, port, i * 7919, c.seqNum) != null;
+        }
+
+        System.out.println("--- test ---");
+        System.out.print("stateless:\t\t");
+        System.out.println(isStateless);
+        System.out.print("found again:\t\t");
+        System.out.println(isFound && isAllFound);
+        System.out.print("others refused:\t\t");
+        System.out.println(isRefused);
+        System.out.print("values in range:\t");
+        System.out.println(isInRange);
+    }
+}
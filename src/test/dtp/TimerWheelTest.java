@@ -0,0 +1,152 @@
+package dtp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for the timer wheel.
+ * Drives a small wheel by hand the way the reactor does, with timers due
+ * within a turn of the wheel and several turns away, and checks that each one
+ * runs once, not before its deadline and soon after it. Also checks moving,
+ * cancelling and rescheduling timers from their own task, and that a failing
+ * task doesn't stop the others. The next deadline, which the reactor sleeps
+ * until, must never be later than the earliest timer, and must move on once a
+ * cancelled timer's tick has passed.
+ * The stack trace of the failing task is expected in the output.
+ * In package dtp, since the wheel is package-private.
+ */
+public class TimerWheelTest {
+
+    private final static long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+    private final static int NUM_BUCKETS = 8;
+    private final static long[] DELAYS_MS = {0, 1, 3, 7, 8, 9, 20, 45};
+    private final static long LATE = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * Run this to test the timer wheel.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        final TimerWheel wheel = new TimerWheel(NUM_BUCKETS, TICK);
+        final long start = System.nanoTime();
+        final long[] ranAt = new long[DELAYS_MS.length];
+        final int[] runs = new int[DELAYS_MS.length];
+        for (int i = 0; i < DELAYS_MS.length; i++) {
+            final int index = i;
+            wheel.schedule(new TimerWheel.Timer(new Runnable() {
+                public void run() {
+                    ranAt[index] = System.nanoTime() - start;
+                    runs[index]++;
+                }
+            }), TimeUnit.MILLISECONDS.toNanos(DELAYS_MS[i]));
+        }
+
+        final int[] movedRuns = {0};
+        TimerWheel.Timer moved = new TimerWheel.Timer(new Runnable() {
+            public void run() {
+                movedRuns[0]++;
+            }
+        });
+        wheel.schedule(moved, TimeUnit.MILLISECONDS.toNanos(2));
+        wheel.schedule(moved, TimeUnit.MILLISECONDS.toNanos(30));
+        long movedFrom = System.nanoTime();
+
+        final int[] cancelledRuns = {0};
+        TimerWheel.Timer cancelled = new TimerWheel.Timer(new Runnable() {
+            public void run() {
+                cancelledRuns[0]++;
+            }
+        });
+        wheel.schedule(cancelled, TimeUnit.MILLISECONDS.toNanos(4));
+        wheel.cancel(cancelled);
+
+        final int[] repeats = {0};
+        final TimerWheel.Timer[] repeating = new TimerWheel.Timer[1];
+        repeating[0] = new TimerWheel.Timer(new Runnable() {
+            public void run() {
+                if (++repeats[0] < 5) wheel.schedule(repeating[0], TICK);
+            }
+        });
+        wheel.schedule(repeating[0], TICK);
+
+        wheel.schedule(new TimerWheel.Timer(new Runnable() {
+            public void run() {
+                throw new RuntimeException("Task failed on purpose!");
+            }
+        }), TimeUnit.MILLISECONDS.toNanos(5));
+
+        boolean isMovedEarly = false;
+        long end = start + TimeUnit.MILLISECONDS.toNanos(100);
+        while (System.nanoTime() < end) {
+            wheel.expire();
+            if (movedRuns[0] > 0 && System.nanoTime() - movedFrom < TimeUnit.MILLISECONDS.toNanos(30)) {
+                isMovedEarly = true;
+            }
+            Thread.sleep(0, 200000);
+        }
+
+        boolean isOnTime = true;
+        boolean isOnce = true;
+        for (int i = 0; i < DELAYS_MS.length; i++) {
+            long delay = TimeUnit.MILLISECONDS.toNanos(DELAYS_MS[i]);
+            isOnTime &= ranAt[i] >= delay && ranAt[i] < delay + LATE;
+            isOnce &= runs[i] == 1;
+        }
+
+        System.out.println("--- test ---");
+        System.out.print("on time:\t\t");
+        System.out.println(isOnTime);
+        System.out.print("run once:\t\t");
+        System.out.println(isOnce);
+        System.out.print("moved:\t\t\t");
+        System.out.println(movedRuns[0] == 1 && !isMovedEarly);
+        System.out.print("cancelled:\t\t");
+        System.out.println(cancelledRuns[0] == 0);
+        System.out.print("rescheduled by task:\t");
+        System.out.println(repeats[0] == 5);
+        System.out.print("empty:\t\t\t");
+        System.out.println(wheel.isEmpty());
+        System.out.print("next deadline:\t\t");
+        System.out.println(isNextDeadlineRight());
+    }
+
+    /*
+     * Schedules a far timer and a near one, cancels the near one, and follows
+     * the next deadline until both ticks have passed.
+     */
+    private static boolean isNextDeadlineRight() throws Exception {
+        TimerWheel wheel = new TimerWheel(NUM_BUCKETS, TICK);
+        boolean isRight = wheel.nextDeadline() == Long.MAX_VALUE;
+        Runnable nothing = new Runnable() {
+            public void run() {
+            }
+        };
+        TimerWheel.Timer far = new TimerWheel.Timer(nothing);
+        TimerWheel.Timer near = new TimerWheel.Timer(nothing);
+        long start = System.nanoTime();
+        // more than a turn of the wheel away
+        long farDelay = TimeUnit.MILLISECONDS.toNanos(20);
+        long nearDelay = TimeUnit.MILLISECONDS.toNanos(3);
+        isRight &= wheel.schedule(far, farDelay);
+        isRight &= wheel.schedule(near, nearDelay);
+        isRight &= !wheel.schedule(far, farDelay);
+        long nearDeadline = wheel.nextDeadline();
+        isRight &= nearDeadline >= start + nearDelay && nearDeadline < start + nearDelay + 2 * TICK;
+        wheel.cancel(near);
+        isRight &= wheel.nextDeadline() <= nearDeadline;
+
+        while (System.nanoTime() < nearDeadline + TICK) {
+            wheel.expire();
+            Thread.sleep(0, 200000);
+        }
+        wheel.expire();
+        long farDeadline = wheel.nextDeadline();
+        isRight &= farDeadline >= start + farDelay && farDeadline < start + farDelay + 2 * TICK;
+
+        while (!wheel.isEmpty()) {
+            wheel.expire();
+            Thread.sleep(0, 200000);
+        }
+        return isRight && wheel.nextDeadline() == Long.MAX_VALUE
+                && System.nanoTime() >= farDeadline;
+    }
+}
@@ -0,0 +1,74 @@
+package dtp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for the token bucket.
+ * Sends packets as fast as the bucket lets them go and checks that the bytes
+ * sent over a while match its rate, that no more than the burst goes out back
+ * to back after an idle period, that a packet bigger than the burst still goes
+ * out and puts the bucket in debt, and that a rate of 0 means no limit.
+ * In package dtp, since the bucket is package-private.
+ */
+public class TokenBucketTest {
+
+    private final static long RATE = 1000000;          // 1 MB/s
+    private final static long BURST = 10000;
+    private final static int PACKET = 1000;
+    private final static long RUN = TimeUnit.MILLISECONDS.toNanos(300);
+
+    /**
+     * Run this to test the token bucket.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        TokenBucket bucket = new TokenBucket();
+        boolean isUnlimited = true;
+        for (int i = 0; i < 1000; i++) {
+            bucket.consume(PACKET);
+            isUnlimited &= bucket.delayNanos() == 0;
+        }
+
+        bucket.setRate(RATE, BURST);
+        long start = System.nanoTime();
+        long sent = 0;
+        while (System.nanoTime() - start < RUN) {
+            if (bucket.delayNanos() == 0) {
+                bucket.consume(PACKET);
+                sent += PACKET;
+            }
+        }
+        double rate = (double) sent * TimeUnit.SECONDS.toNanos(1) / (System.nanoTime() - start);
+        boolean isRate = rate > RATE * 0.9 && rate < RATE * 1.1;
+
+        Thread.sleep(100);
+        long burst = 0;
+        while (bucket.delayNanos() == 0) {
+            bucket.consume(PACKET);
+            burst += PACKET;
+        }
+        // the last packet may overdraw the bucket by a packet
+        boolean isBurst = burst >= BURST && burst <= BURST + 2 * PACKET;
+
+        Thread.sleep(20);
+        bucket.consume((int) BURST * 3);
+        long debt = bucket.delayNanos();
+        boolean isDebt = debt > TimeUnit.MILLISECONDS.toNanos(15) && debt <= TimeUnit.MILLISECONDS.toNanos(30);
+
+        bucket.setRate(0, BURST);
+        boolean isLimitRemoved = bucket.delayNanos() == 0 && bucket.getRate() == 0;
+
+        System.out.println("--- test ---");
+        System.out.println("bytes/s:\t\t" + (long) rate);
+        System.out.print("no limit:\t\t");
+        System.out.println(isUnlimited);
+        System.out.print("rate kept:\t\t");
+        System.out.println(isRate);
+        System.out.print("burst capped:\t\t");
+        System.out.println(isBurst);
+        System.out.print("big packet in debt:\t");
+        System.out.println(isDebt);
+        System.out.print("limit removed:\t\t");
+        System.out.println(isLimitRemoved);
+    }
+}
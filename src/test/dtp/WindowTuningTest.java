@@ -0,0 +1,117 @@
+package dtp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for receive window autotuning.
+ * Feeds the window tuner chunks at made-up times: while the window holds the
+ * sender back it must double every round trip, and once the link does, it
+ * must shrink gently towards twice the chunks per round trip. Without a
+ * round trip from the socket, the tuner must measure its own. Then checks how
+ * the receive budget splits its memory between sockets.
+ * In package dtp, since both classes are package-private.
+ */
+public class WindowTuningTest {
+
+    private final static long RTT = TimeUnit.MILLISECONDS.toNanos(10);
+    private final static long STEP = TimeUnit.MILLISECONDS.toNanos(1);
+    private final static int CHUNK_BYTES = 1000;
+
+    private static long now = TimeUnit.SECONDS.toNanos(1);
+    private static int highestReceived;
+    private static double credit;           // the part of a chunk not delivered yet
+
+    /**
+     * Run this to test window autotuning.
+     * @param args
+     */
+    public static void main(String[] args) {
+        // the sender fills whatever window is advertised
+        WindowTuner tuner = new WindowTuner();
+        tuner.startMessage();
+        int window = WindowTuner.INITIAL_WINDOW;
+        int[] windows = new int[5];
+        for (int i = 0; i < windows.length; i++) {
+            window = roundTrip(tuner, window, 0, true, RTT);
+            windows[i] = window;
+        }
+        boolean isDoubling = true;
+        for (int i = 1; i < windows.length; i++) {
+            isDoubling &= windows[i] >= 2 * windows[i - 1] * 9 / 10 && windows[i] <= 2 * windows[i - 1];
+        }
+
+        // the link carries 100 chunks per round trip, whatever the window
+        tuner.startMessage();
+        window = 1000;
+        int previous = window;
+        boolean isGentle = true;
+        for (int i = 0; i < 40; i++) {
+            window = roundTrip(tuner, window, 100, false, RTT);
+            isGentle &= window >= previous - previous / 8;
+            previous = window;
+        }
+        boolean isSettled = window >= 190 && window <= 230;
+
+        // a socket that only receives has no round trip of its own
+        WindowTuner receiver = new WindowTuner();
+        receiver.startMessage();
+        window = WindowTuner.INITIAL_WINDOW;
+        for (int i = 0; i < 3; i++) {
+            window = roundTrip(receiver, window, 0, true, 0);
+        }
+        boolean isMeasured = window > WindowTuner.INITIAL_WINDOW;
+
+        ReceiveBudget budget = new ReceiveBudget();
+        budget.setLimit(100 * CHUNK_BYTES);
+        int first = budget.join(80, CHUNK_BYTES, true);
+        int fixed = budget.join(50, CHUNK_BYTES, false);
+        int third = budget.join(80, CHUNK_BYTES, true);
+        boolean isFairShare = first == 80 && fixed == 50 && third == 33;
+        int shrunk = budget.resize(first, 80, CHUNK_BYTES, true);
+        boolean isShrunk = shrunk == 33;
+        budget.leave(fixed, CHUNK_BYTES);
+        budget.leave(third, CHUNK_BYTES);
+        int grown = budget.resize(shrunk, 200, CHUNK_BYTES, true);
+        boolean isGrown = grown == 100 && budget.getUsed() == 100 * CHUNK_BYTES;
+        int least = budget.join(1, CHUNK_BYTES, true);
+        boolean isMinimum = least == WindowTuner.MIN_WINDOW;
+
+        System.out.println("--- test ---");
+        System.out.print("window doubling:\t");
+        System.out.println(isDoubling);
+        System.out.print("shrinking gently:\t");
+        System.out.println(isGentle);
+        System.out.print("settled at 2x bdp:\t");
+        System.out.println(isSettled);
+        System.out.print("receiver rtt:\t\t");
+        System.out.println(isMeasured);
+        System.out.print("budget fair share:\t");
+        System.out.println(isFairShare);
+        System.out.print("budget shrinks:\t\t");
+        System.out.println(isShrunk);
+        System.out.print("budget grows back:\t");
+        System.out.println(isGrown);
+        System.out.print("budget minimum:\t\t");
+        System.out.println(isMinimum);
+    }
+
+    /*
+     * Delivers chunks over one round trip, spread the way they arrive at the
+     * receiver, and returns the window the tuner ends up with. A sender that
+     * fills the window sends a window of chunks per round trip, whatever the
+     * window is at the time.
+     */
+    private static int roundTrip(WindowTuner tuner, int window, int chunksPerRtt, boolean isFilling, long srtt) {
+        int steps = (int) (RTT / STEP);
+        for (int i = 0; i < steps; i++) {
+            now += STEP;
+            credit += (double) (isFilling ? window : chunksPerRtt) / steps;
+            int chunks = (int) credit;
+            credit -= chunks;
+            highestReceived += chunks;
+            window = tuner.chunksReceived(chunks, highestReceived, highestReceived + window,
+                    window, srtt, now);
+        }
+        return window;
+    }
+}
@@ -0,0 +1,175 @@
+package dtp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test for the XOR parity of message chunks.
+ * Encodes the parities of a message cut across two buffers, with whole
+ * groups and a short final group whose last chunk is shorter than the rest,
+ * and hands them to a Decoder on the receiving side. One lost chunk of a
+ * parity must be rebuilt byte for byte, whether it is a full chunk or the short
+ * one. Two lost chunks of a parity must not be, until one of them arrives.
+ * Parities with a malformed FEC option, or a group the sender never makes,
+ * must be dropped.
+ * In package dtp, since the parity is package-private.
+ */
+public class XorParityTest {
+
+    private final static int MSS = 100;
+    private final static int NUM_PACKETS = 40;
+    private final static int SIZE = NUM_PACKETS * MSS - 37;    // the last chunk is short
+    private final static int GROUP_SIZE = 16;
+    private final static int OPTION_INDEX = 2;
+    private final static int PAYLOAD_INDEX = OPTION_INDEX + XorParity.OPTION_LENGTH;
+
+    private static byte[] message;
+    private static ByteBuffer[] buffers;
+
+    /**
+     * Run this to test XOR parity.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        message = new byte[SIZE];
+        new Random(1).nextBytes(message);
+        // the message is cut across two buffers in the middle of a chunk
+        buffers = new ByteBuffer[] {ByteBuffer.wrap(message, 0, 555).slice(),
+                ByteBuffer.wrap(message, 555, SIZE - 555).slice()};
+
+        // one parity over the whole first group, one chunk lost
+        boolean[] received = receivedAllBut(5);
+        ByteBuffer buffer = receive(received);
+        XorParity.Decoder decoder = new XorParity.Decoder(buffer, MSS, SIZE, NUM_PACKETS);
+        boolean isOneRebuilt = decoder.parityReceived(parity(0, GROUP_SIZE, 1, 0), OPTION_INDEX,
+                PAYLOAD_INDEX, payloadLength(0, GROUP_SIZE, 1, 0), received) == 5
+                && Arrays.equals(message, buffer.array());
+
+        // two chunks of the same parity lost, rebuilt once one of them arrives
+        received = receivedAllBut(3, 9);
+        buffer = receive(received);
+        decoder = new XorParity.Decoder(buffer, MSS, SIZE, NUM_PACKETS);
+        boolean isTwoKept = decoder.parityReceived(parity(0, GROUP_SIZE, 1, 0), OPTION_INDEX,
+                PAYLOAD_INDEX, payloadLength(0, GROUP_SIZE, 1, 0), received) == -1
+                && !isChunkIntact(buffer, 3) && !isChunkIntact(buffer, 9);
+        buffer.put(3 * MSS, message, 3 * MSS, MSS);
+        received[3] = true;
+        boolean isRebuiltLater = decoder.chunkReceived(3, received) == 9
+                && Arrays.equals(message, buffer.array());
+
+        // the short final group, two parities of four chunks each, the last chunk short
+        int first = 2 * GROUP_SIZE;
+        int numChunks = NUM_PACKETS - first;
+        int stride = XorParity.stride(numChunks, 4, 4);
+        int length = payloadLength(first, numChunks, stride, 1);
+        received = receivedAllBut(NUM_PACKETS - 1);
+        buffer = receive(received);
+        decoder = new XorParity.Decoder(buffer, MSS, SIZE, NUM_PACKETS);
+        boolean isShortRebuilt = stride == 2 && length == MSS
+                && decoder.parityReceived(parity(first, numChunks, stride, 1), OPTION_INDEX,
+                        PAYLOAD_INDEX, length, received) == NUM_PACKETS - 1
+                && Arrays.equals(message, buffer.array());
+        // the same parity rebuilds a full chunk, with the short one padded
+        received = receivedAllBut(NUM_PACKETS - 5);
+        buffer = receive(received);
+        decoder = new XorParity.Decoder(buffer, MSS, SIZE, NUM_PACKETS);
+        boolean isFullFromShort = decoder.parityReceived(parity(first, numChunks, stride, 1), OPTION_INDEX,
+                PAYLOAD_INDEX, length, received) == NUM_PACKETS - 5
+                && Arrays.equals(message, buffer.array());
+
+        // malformed options are dropped, even though a good one would rebuild the chunk
+        received = receivedAllBut(5);
+        buffer = receive(received);
+        decoder = new XorParity.Decoder(buffer, MSS, SIZE, NUM_PACKETS);
+        length = payloadLength(0, GROUP_SIZE, 1, 0);
+        ByteBuffer shortOption = parity(0, GROUP_SIZE, 1, 0);
+        shortOption.put(OPTION_INDEX - 1, (byte) (XorParity.OPTION_LENGTH - 1));
+        boolean isMalformedDropped =
+                decoder.parityReceived(shortOption, OPTION_INDEX, PAYLOAD_INDEX, length, received) == -1
+                && isDropped(decoder, 0, 0, 1, 0, length, received)
+                && isDropped(decoder, 0, XorParity.MAX_GROUP_SIZE + 1, 1, 0,
+                        payloadLength(0, XorParity.MAX_GROUP_SIZE + 1, 1, 0), received)
+                && isDropped(decoder, 0, GROUP_SIZE, 0, 0, length, received)
+                && isDropped(decoder, 0, GROUP_SIZE, GROUP_SIZE + 1, 0, length, received)
+                && isDropped(decoder, 0, GROUP_SIZE, 1, 1, length, received)
+                && isDropped(decoder, NUM_PACKETS - 8, GROUP_SIZE, 1, 0, length, received)
+                && isDropped(decoder, -1, GROUP_SIZE, 1, 0, length, received)
+                && isDropped(decoder, Integer.MAX_VALUE - 4, GROUP_SIZE, 1, 0, length, received)
+                && isDropped(decoder, 0, GROUP_SIZE, 1, 0, MSS + 1, received)
+                && !isChunkIntact(buffer, 5);
+        boolean isGoodAfter = decoder.parityReceived(parity(0, GROUP_SIZE, 1, 0), OPTION_INDEX,
+                PAYLOAD_INDEX, length, received) == 5 && Arrays.equals(message, buffer.array());
+
+        System.out.println("--- test ---");
+        System.out.print("one loss rebuilt:\t");
+        System.out.println(isOneRebuilt);
+        System.out.print("two losses kept:\t");
+        System.out.println(isTwoKept);
+        System.out.print("rebuilt once one came:\t");
+        System.out.println(isRebuiltLater);
+        System.out.print("short group rebuilt:\t");
+        System.out.println(isShortRebuilt && isFullFromShort);
+        System.out.print("malformed dropped:\t");
+        System.out.println(isMalformedDropped && isGoodAfter);
+    }
+
+    /*
+     * Builds the option and payload of parity j of a group, the option at
+     * OPTION_INDEX and the payload right after it. The option may describe a
+     * group that doesn't exist, then the payload is the one of the first group.
+     */
+    private static ByteBuffer parity(int first, int groupSize, int stride, int j) {
+        ByteBuffer packet = ByteBuffer.allocate(PAYLOAD_INDEX + MSS);
+        packet.put(0, Packet.OPTION_FEC);
+        packet.put(1, (byte) XorParity.OPTION_LENGTH);
+        packet.putInt(OPTION_INDEX, first);
+        packet.put(OPTION_INDEX + 4, (byte) groupSize);
+        packet.put(OPTION_INDEX + 5, (byte) stride);
+        packet.put(OPTION_INDEX + 6, (byte) j);
+        boolean isGroup = first >= 0 && stride > 0 && j < stride && first + groupSize <= NUM_PACKETS;
+        XorParity encoder = new XorParity();
+        ByteBuffer bytes = isGroup ? encoder.encode(buffers, MSS, SIZE, first, groupSize, stride, j)
+                : encoder.encode(buffers, MSS, SIZE, 0, GROUP_SIZE, 1, 0);
+        packet.put(PAYLOAD_INDEX, bytes, 0, encoder.getLength());
+        return packet;
+    }
+
+    private static int payloadLength(int first, int groupSize, int stride, int j) {
+        XorParity encoder = new XorParity();
+        encoder.encode(buffers, MSS, SIZE, first, groupSize, stride, j);
+        return encoder.getLength();
+    }
+
+    private static boolean isDropped(XorParity.Decoder decoder, int first, int groupSize, int stride,
+            int j, int length, boolean[] received) {
+        return decoder.parityReceived(parity(first, groupSize, stride, j), OPTION_INDEX,
+                PAYLOAD_INDEX, length, received) == -1;
+    }
+
+    private static boolean[] receivedAllBut(int... lost) {
+        boolean[] received = new boolean[NUM_PACKETS];
+        Arrays.fill(received, true);
+        for (int chunk : lost) received[chunk] = false;
+        return received;
+    }
+
+    /*
+     * The receiving buffer, with every chunk that was received.
+     */
+    private static ByteBuffer receive(boolean[] received) {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        for (int c = 0; c < NUM_PACKETS; c++) {
+            if (received[c]) {
+                buffer.put(c * MSS, message, c * MSS, Math.min(MSS, SIZE - c * MSS));
+            }
+        }
+        return buffer;
+    }
+
+    private static boolean isChunkIntact(ByteBuffer buffer, int chunk) {
+        int from = chunk * MSS;
+        int to = Math.min(from + MSS, SIZE);
+        return Arrays.equals(buffer.array(), from, to, message, from, to);
+    }
+}
@@ -16,6 +16,7 @@ import java.security.NoSuchAlgorithmException;
 public class ConvertLib {
 
     public final static Charset ENCODING = StandardCharsets.UTF_8;
+    private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
     /**
      * Converts a string to a 32-long MD5 hashed string.
@@ -29,8 +30,14 @@ public class ConvertLib {
     public static String hashString(String msg)
             throws NoSuchAlgorithmException, UnsupportedEncodingException {
         MessageDigest md = MessageDigest.getInstance("MD5");
-        md.update(msg.getBytes(ENCODING));
-        return new String(md.digest(), ENCODING);
+        byte[] digest = md.digest(msg.getBytes(ENCODING));
+        // every handshake hashes on both ends, String.format() costs more than MD5
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2*i] = HEX_DIGITS[(digest[i] >> 4) & 0x0F];
+            hex[2*i + 1] = HEX_DIGITS[digest[i] & 0x0F];
+        }
+        return new String(hex);
     }
 
     public static String convertBytesToString(byte[] bytes, int length)